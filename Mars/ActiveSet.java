@@ -0,0 +1,242 @@
+package Mars;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The vehicles that need to act this step. A vehicle whose policy says it has
+ * nothing to do, typically one boxed in by obstacles and other vehicles, is
+ * parked: it is left out of the step until the field tells us that something
+ * it could react to has changed nearby. Late in a run many vehicles crowd
+ * round the mothership and stay stuck for long stretches, and they then cost
+ * nothing.
+ *
+ * Vehicles are kept by their index in the simulation's list, so the active
+ * ones are still visited in list order. The vehicles woken since the last
+ * call to clearWoken() are also kept apart, so that the scheduler can give
+ * them their turn in the step that woke them.
+ *
+ * A run that keeps a journal (see StepJournal) writes every change of a
+ * vehicle's place in the set to it, so that rewinding the run parks the
+ * vehicles that were parked at the step it goes back to.
+ */
+class ActiveSet implements Field.ChangeListener {
+	// The vehicles of the run, and which of them are active.
+	private List<Vehicle> vehicles;
+	private BitSet active;
+	private BitSet woken;
+	// The locations of the parked vehicles, and how many there are.
+	private RowBitboard parked;
+	private int parkedCount;
+	// The number of steps a vehicle must stand still before it may be parked.
+	static final int PARK_AFTER = 8;
+
+	// Each vehicle's location when it was last batched, and the number of
+	// steps since it moved or was woken.
+	private Location[] lastSeen;
+	private int[] stillSteps;
+	// How far from a crumb drop a parked vehicle could sense it.
+	private int crumbRadius;
+	// The journal the changes are written to, or null.
+	private StepJournal journal;
+
+	/**
+	 * Start with every vehicle active.
+	 *
+	 * @param vehicles
+	 *            The vehicles of the run; the list must not change while the
+	 *            set is in use
+	 * @param f
+	 *            The field they are on
+	 */
+	public ActiveSet(List<Vehicle> vehicles, Field f) {
+		this.vehicles = vehicles;
+		active = new BitSet(vehicles.size());
+		active.set(0, vehicles.size());
+		woken = new BitSet(vehicles.size());
+		lastSeen = new Location[vehicles.size()];
+		stillSteps = new int[vehicles.size()];
+		parked = new RowBitboard(f.getDepth(), f.getWidth());
+		crumbRadius = 0;
+		for (int i = 0; i < vehicles.size(); i++) {
+			Vehicle v = vehicles.get(i);
+			v.setIndex(i);
+			crumbRadius = Math.max(crumbRadius, v.getCrumbSensingRadius());
+		}
+	}
+
+	/**
+	 * Write every change of a vehicle's place in the set to a journal.
+	 *
+	 * @param journal
+	 *            The journal, or null to write none
+	 */
+	void journalTo(StepJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Put a vehicle's place in the set back as a journal wrote it. A vehicle
+	 * parked again is parked where it stands, which is where it was parked
+	 * once the later changes have been undone.
+	 */
+	void restore(int i, boolean wasActive, Location seen, int still) {
+		if (wasActive != active.get(i)) {
+			Location l = vehicles.get(i).getLocation();
+			if (wasActive) {
+				active.set(i);
+				parked.clear(l.getRow(), l.getCol());
+				parkedCount--;
+			} else {
+				active.clear(i);
+				parked.set(l.getRow(), l.getCol());
+				parkedCount++;
+			}
+		}
+		lastSeen[i] = seen;
+		stillSteps[i] = still;
+	}
+
+	/**
+	 * @return The index of the first active vehicle at or after i, or -1.
+	 */
+	public int nextActive(int i) {
+		return active.nextSetBit(i);
+	}
+
+	/**
+	 * @return The index of the first vehicle woken at or after i, or -1.
+	 */
+	public int nextWoken(int i) {
+		return woken.nextSetBit(i);
+	}
+
+	/**
+	 * @return true if a vehicle has been woken since the last clearWoken().
+	 */
+	public boolean hasWoken() {
+		return !woken.isEmpty();
+	}
+
+	public void clearWoken() {
+		woken.clear();
+	}
+
+	/**
+	 * Tell whether a vehicle has stood still for PARK_AFTER steps in a row,
+	 * counting this one. A vehicle hemmed in by busy neighbours would be woken
+	 * again within a step or two, and parking it costs more than letting it
+	 * act, so only vehicles that have been stuck for a while are worth asking
+	 * their policy about. Moving replaces a vehicle's Location, so comparing
+	 * references is enough to tell that it has moved.
+	 */
+	public boolean stoodStill(Vehicle v) {
+		int i = v.getIndex();
+		Location l = v.getLocation();
+		if (lastSeen[i] != l) {
+			written(i);
+			lastSeen[i] = l;
+			stillSteps[i] = 0;
+			return false;
+		}
+		if (stillSteps[i] < PARK_AFTER) {
+			written(i);
+			stillSteps[i]++;
+		}
+		return stillSteps[i] >= PARK_AFTER;
+	}
+
+	/**
+	 * Leave a vehicle out of the steps until something changes around it.
+	 */
+	public void park(Vehicle v) {
+		written(v.getIndex());
+		active.clear(v.getIndex());
+		parked.set(v.getLocation().getRow(), v.getLocation().getCol());
+		parkedCount++;
+	}
+
+	/**
+	 * @return The number of vehicles that will act in the next step.
+	 */
+	public int getActiveCount() {
+		return active.cardinality();
+	}
+
+	/**
+	 * Write a vehicle's place in the set to the journal before it changes.
+	 */
+	private void written(int i) {
+		if (journal != null) {
+			journal.scheduled(i, active.get(i), lastSeen[i], stillSteps[i]);
+		}
+	}
+
+	/**
+	 * @return Whether the field is being put back by the journal, when its
+	 *         changes wake nobody: the journal puts the set back itself.
+	 */
+	private boolean undoing() {
+		return journal != null && journal.isUndoing();
+	}
+
+	@Override
+	public void locationCleared(Field f, int row, int col) {
+		if (undoing()) {
+			return;
+		}
+		// Filling a location never gives a parked vehicle something to do
+		wakeAround(f, row, col, 1);
+	}
+
+	@Override
+	public void crumbsDropped(Field f, int row, int col) {
+		if (undoing()) {
+			return;
+		}
+		wakeAround(f, row, col, Math.max(1, crumbRadius));
+	}
+
+	@Override
+	public void crumbsReduced(Field f) {
+		if (undoing()) {
+			return;
+		}
+		for (int i = 0; i < vehicles.size(); i++) {
+			if (!active.get(i) || stillSteps[i] != 0) {
+				written(i);
+			}
+		}
+		active.set(0, vehicles.size());
+		parked.clearAll();
+		Arrays.fill(stillSteps, 0);
+		parkedCount = 0;
+	}
+
+	/**
+	 * Wake the parked vehicles within a radius of a location.
+	 */
+	private void wakeAround(Field f, int row, int col, int radius) {
+		if (parkedCount == 0 || !parked.any(row, col, radius)) {
+			return;
+		}
+		int depth = f.getDepth();
+		int width = f.getWidth();
+		int wr = Math.min(radius, (depth - 1) / 2);
+		int wc = Math.min(radius, (width - 1) / 2);
+		for (int dr = -wr; dr <= wr; dr++) {
+			int r = Math.floorMod(row + dr, depth);
+			for (long bits = parked.window(r, col, wc); bits != 0; bits &= bits - 1) {
+				int c = Math.floorMod(col - wc + Long.numberOfTrailingZeros(bits), width);
+				parked.clear(r, c);
+				parkedCount--;
+				Vehicle v = (Vehicle) f.getObjectAt(r, c);
+				written(v.getIndex());
+				active.set(v.getIndex());
+				woken.set(v.getIndex());
+				stillSteps[v.getIndex()] = 0;
+			}
+		}
+	}
+}
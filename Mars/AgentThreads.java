@@ -0,0 +1,279 @@
+package Mars;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs every vehicle on a thread of its own, for studying asynchronous agents
+ * and how a thread-per-agent design scales. Vehicles use virtual threads when
+ * the JVM has them (Java 21 on) and a platform thread each otherwise, which
+ * limits the fleet to a few thousand.
+ *
+ * The field is not locked as a whole. Its rows are split into stripes, each
+ * with its own lock, as deep as a vehicle's reach: its furthest sensing
+ * radius, and at least 1 for moving. Before acting a vehicle locks the stripes
+ * its reach overlaps, at most three, in ascending order so that no two
+ * vehicles can wait on each other. Everything a vehicle reads or changes lies
+ * within its reach, so vehicles in different parts of the field act at the
+ * same time. The field's change counter is not locked and may miss counts
+ * while vehicles run this way; it only ever grows, which is all the idle stop
+ * condition needs.
+ *
+ * With the barrier on, every vehicle waits for the others at the end of each
+ * step, so steps stay steps; what happens within one depends on the threads.
+ * With it off, vehicles run freely and a step is counted each time the fleet
+ * has made as many moves as it has vehicles, whoever made them. Either way
+ * the simulator's step bookkeeping (crumb decay, stop conditions, the view)
+ * runs between steps while no vehicle is acting.
+ *
+ * Runs in this mode are not reproducible from their seed.
+ */
+class AgentThreads {
+	// The most vehicles waiting on one phaser of the barrier; Phaser allows 65535.
+	private static final int PARTIES_PER_PHASER = 1000;
+	// The stack of a platform thread, when virtual threads are not available.
+	private static final long PLATFORM_STACK = 256 * 1024;
+
+	private final Simulator sim;
+	private final Field field;
+	private final Mothership mothership;
+	private final boolean barrier;
+	// The mean pause after each move, and the streams the pauses are drawn from.
+	private final long latencyNanos;
+	private final RandomStream latency;
+	// How far from its row a vehicle reads or changes the field.
+	private final int reach;
+	private final int stripeRows;
+	private final ReentrantLock[] stripes;
+	// The rocks picked up since the end of the last step.
+	private final ConcurrentLinkedQueue<Rock> collected = new ConcurrentLinkedQueue<Rock>();
+	// The moves made so far, counted only without the barrier.
+	private final AtomicLong moves = new AtomicLong();
+	// The steps still to run; only changed between steps.
+	private int stepsLeft;
+	private volatile boolean stopped;
+
+	/**
+	 * @param sim
+	 *            The simulation to run
+	 * @param reach
+	 *            How far from its row a vehicle may read or change the field
+	 * @param barrier
+	 *            Whether vehicles wait for each other at the end of every step
+	 * @param latencyNanos
+	 *            The mean pause a vehicle takes after each move, 0 for none
+	 * @param latency
+	 *            The stream to draw the pauses from
+	 */
+	public AgentThreads(Simulator sim, int reach, boolean barrier, long latencyNanos, RandomStream latency) {
+		this.sim = sim;
+		this.field = sim.getField();
+		this.mothership = sim.getMothership();
+		this.barrier = barrier;
+		this.latencyNanos = latencyNanos;
+		this.latency = latency;
+		this.reach = Math.max(1, reach);
+		// A reach that wraps right round the field needs the whole of it
+		this.stripeRows = 2 * this.reach + 1 >= field.getDepth() ? field.getDepth() : 2 * this.reach + 1;
+		this.stripes = new ReentrantLock[(field.getDepth() + stripeRows - 1) / stripeRows];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * @return true if vehicles get virtual threads.
+	 */
+	static boolean hasVirtualThreads() {
+		return virtualThreadFactory() != null;
+	}
+
+	/**
+	 * Run every vehicle for a number of steps, or until a stop condition is met.
+	 *
+	 * @param vehicles
+	 *            The vehicles to run
+	 * @param steps
+	 *            The number of steps
+	 * @param rocksCollected
+	 *            ArrayList collecting the rocks picked up each step, emptied by
+	 *            the simulator between steps
+	 */
+	public void run(List<Vehicle> vehicles, int steps, ArrayList<Rock> rocksCollected) throws InterruptedException {
+		if (vehicles.isEmpty() || steps <= 0) {
+			return;
+		}
+		field.prepareGradient();
+		stepsLeft = steps;
+		stopped = false;
+		long fleet = vehicles.size();
+		sim.beginStep();
+
+		Phaser[] leaves = null;
+		if (barrier) {
+			Phaser root = new Phaser() {
+				@Override
+				protected boolean onAdvance(int phase, int parties) {
+					return !endStep(rocksCollected);
+				}
+			};
+			leaves = new Phaser[(vehicles.size() + PARTIES_PER_PHASER - 1) / PARTIES_PER_PHASER];
+			for (int i = 0; i < leaves.length; i++) {
+				leaves[i] = new Phaser(root, Math.min(PARTIES_PER_PHASER, vehicles.size() - i * PARTIES_PER_PHASER));
+			}
+		}
+
+		ThreadFactory factory = virtualThreadFactory();
+		if (factory == null) {
+			factory = r -> {
+				Thread t = new Thread(null, r, "vehicle", PLATFORM_STACK);
+				t.setDaemon(true);
+				return t;
+			};
+		}
+		Thread[] threads = new Thread[vehicles.size()];
+		for (int i = 0; i < threads.length; i++) {
+			Vehicle v = vehicles.get(i);
+			Phaser leaf = barrier ? leaves[i / PARTIES_PER_PHASER] : null;
+			threads[i] = factory.newThread(() -> live(v, leaf, steps, fleet, rocksCollected));
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+	}
+
+	/**
+	 * The life of one vehicle's thread.
+	 */
+	private void live(Vehicle v, Phaser leaf, int steps, long fleet, ArrayList<Rock> rocksCollected) {
+		ArrayList<Vehicle> alone = new ArrayList<Vehicle>(1);
+		alone.add(v);
+		ArrayList<Rock> picked = new ArrayList<Rock>();
+		RandomStream pauses = latency.split(v.getIndex());
+		int[] held = new int[3];
+		for (int s = 0; s < steps && !stopped; s++) {
+			act(v, alone, picked, held);
+			if (!picked.isEmpty()) {
+				collected.addAll(picked);
+				picked.clear();
+			}
+			if (latencyNanos > 0) {
+				LockSupport.parkNanos((long) (2 * latencyNanos * pauses.nextDouble()));
+			}
+			if (leaf != null) {
+				leaf.arriveAndAwaitAdvance();
+			} else if (moves.incrementAndGet() % fleet == 0) {
+				lockAll();
+				try {
+					endStep(rocksCollected);
+				} finally {
+					unlockAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Let one vehicle act, holding the stripes within its reach.
+	 */
+	private void act(Vehicle v, ArrayList<Vehicle> alone, ArrayList<Rock> picked, int[] held) {
+		int n = lockReach(v.getLocation().getRow(), held);
+		try {
+			BehaviourPolicy policy = v.getPolicy();
+			switch (v.getState(field)) {
+			case CARRYING:
+				policy.actCarrying(alone, field, mothership, picked);
+				break;
+			case ON_CRUMBS:
+				policy.actOnCrumbs(alone, field, mothership, picked);
+				break;
+			default:
+				policy.actSearching(alone, field, mothership, picked);
+			}
+		} finally {
+			for (int i = n - 1; i >= 0; i--) {
+				stripes[held[i]].unlock();
+			}
+		}
+	}
+
+	/**
+	 * Lock the stripes within reach of a row, in ascending order.
+	 *
+	 * @return The number of stripes locked, listed in held
+	 */
+	private int lockReach(int row, int[] held) {
+		int depth = field.getDepth();
+		int from = Math.floorMod(row - reach, depth) / stripeRows;
+		int to = Math.floorMod(row + reach, depth) / stripeRows;
+		int n = 0;
+		for (int s = from;; s = (s + 1) % stripes.length) {
+			held[n++] = s;
+			if (s == to) {
+				break;
+			}
+		}
+		// The range may wrap round the last stripe; sort it into lock order
+		for (int i = 1; i < n; i++) {
+			for (int j = i; j > 0 && held[j - 1] > held[j]; j--) {
+				int t = held[j];
+				held[j] = held[j - 1];
+				held[j - 1] = t;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			stripes[held[i]].lock();
+		}
+		return n;
+	}
+
+	private void lockAll() {
+		for (ReentrantLock l : stripes) {
+			l.lock();
+		}
+	}
+
+	private void unlockAll() {
+		for (int i = stripes.length - 1; i >= 0; i--) {
+			stripes[i].unlock();
+		}
+	}
+
+	/**
+	 * Close the current step and start the next, while no vehicle is acting.
+	 *
+	 * @return true if there is a next step.
+	 */
+	private boolean endStep(ArrayList<Rock> rocksCollected) {
+		for (Rock r = collected.poll(); r != null; r = collected.poll()) {
+			rocksCollected.add(r);
+		}
+		sim.endStep();
+		if (--stepsLeft == 0 || sim.getStopReason() != null) {
+			stopped = true;
+			return false;
+		}
+		sim.beginStep();
+		return true;
+	}
+
+	/**
+	 * @return A factory of virtual threads, or null if this JVM has none. Looked
+	 *         up by reflection so that the code still builds for Java 17.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package Mars;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures how many bytes a headless simulation allocates per step once it
+ * has warmed up, and fails if that exceeds a budget. The step loop is meant
+ * not to allocate at all, so the default budget is zero; run this after
+ * touching anything on the step path to keep it that way. The warm-up has to
+ * be long enough for the JIT to settle and for the vehicles to have visited
+ * most cells, since the field makes each cell's Location on first use.
+ *
+ * Usage: java Mars.AllocationCheck [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * warmup = 40000       # steps run before measuring
+ * steps = 5000         # steps measured, in each of three rounds
+ * budget = 0           # allowed bytes per step
+ * </pre>
+ *
+ * Exits with status 1 if the budget is exceeded and 2 if the JVM cannot count
+ * allocations.
+ */
+public class AllocationCheck {
+	// The number of times the measured steps are run.
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		// Keep going after the mission is over, so there is a steady state to measure.
+		config.stopDeliveredFraction = 0;
+		config.length = Integer.MAX_VALUE;
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "warmup", "steps", "budget");
+		int warmup = Integer.parseInt(own.getOrDefault("warmup", "40000"));
+		int steps = Integer.parseInt(own.getOrDefault("steps", "5000"));
+		double budget = Double.parseDouble(own.getOrDefault("budget", "0"));
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.err.println("This JVM cannot count allocated bytes per thread.");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM cannot count allocated bytes per thread.");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		Simulator s = new Simulator(config, false);
+		for (int i = 0; i < warmup; i++) {
+			s.simulateOneStep();
+		}
+		// Gate on the worst of a few rounds, so that allocation happening only
+		// now and then, e.g. at every crumb decay, cannot slip through. The best
+		// round is shown as well: if it is clean while the worst is not, the
+		// allocation is occasional rather than on every step.
+		long allocated = 0;
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long before = threads.getThreadAllocatedBytes(thread);
+			for (int i = 0; i < steps; i++) {
+				s.simulateOneStep();
+			}
+			long bytes = threads.getThreadAllocatedBytes(thread) - before;
+			allocated = Math.max(allocated, bytes);
+			best = Math.min(best, bytes);
+		}
+		// The counter itself may allocate a little when read, so allow one read's
+		// worth of slack over each round.
+		double perStep = Math.max(0, allocated - 64) / (double) steps;
+
+		System.out.println(String.format(Locale.ROOT,
+				"%d bytes allocated in %d steps after %d warm-up steps: %.2f per step (budget %.2f); best of %d rounds %d bytes",
+				allocated, steps, warmup, perStep, budget, ROUNDS, best));
+		if (perStep > budget) {
+			System.err.println("Allocation budget exceeded.");
+			System.exit(1);
+		}
+	}
+}
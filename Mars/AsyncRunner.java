@@ -0,0 +1,53 @@
+package Mars;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares the throughput of vehicles on threads of their own (see
+ * AgentThreads) with the usual sequential step, on the same world. Both runs
+ * start from the same seed and go for the same number of steps; the
+ * asynchronous run's results are not reproducible, so its deliveries are a
+ * guide only.
+ *
+ * Usage: java Mars.AsyncRunner [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * steps = 1000           # steps run by each engine
+ * barrier = true         # vehicles wait for each other after every step
+ * latencyMicros = 0      # mean pause of a vehicle after each move
+ * </pre>
+ */
+public class AsyncRunner {
+
+	public static void main(String[] args) throws InterruptedException {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		// Run for the full number of steps, so the two engines do the same work.
+		config.stopDeliveredFraction = 0;
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "steps", "barrier", "latencyMicros");
+		int steps = Integer.parseInt(own.getOrDefault("steps", "1000"));
+		boolean barrier = Boolean.parseBoolean(own.getOrDefault("barrier", "true"));
+		long latencyMicros = Long.parseLong(own.getOrDefault("latencyMicros", "0"));
+
+		Simulator sequential = new Simulator(config, false);
+		int fleet = sequential.getVehicles().size();
+		long start = System.nanoTime();
+		sequential.simulate(steps);
+		report("sequential", sequential, fleet, System.nanoTime() - start);
+
+		Simulator async = new Simulator(config, false);
+		start = System.nanoTime();
+		async.simulateAsync(steps, barrier, latencyMicros * 1000);
+		report((AgentThreads.hasVirtualThreads() ? "virtual" : "platform") + " threads"
+				+ (barrier ? ", barrier" : ", free-running"), async, fleet, System.nanoTime() - start);
+	}
+
+	private static void report(String engine, Simulator s, int fleet, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.println(String.format(Locale.ROOT,
+				"%-30s %d vehicles, %d steps in %.2f s: %.0f vehicle moves/s, %d rocks delivered", engine, fleet,
+				s.getStep(), seconds, (double) fleet * s.getStep() / seconds, s.getStats().getRocksDelivered()));
+	}
+}
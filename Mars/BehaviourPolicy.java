@@ -0,0 +1,109 @@
+package Mars;
+
+import java.util.ArrayList;
+
+/**
+ * A rule set deciding what a vehicle does in a step. The scheduler groups the
+ * vehicles by the state they are in at the start of the step and hands each
+ * group to the matching handler in one call, so the loop inside a handler only
+ * ever deals with a single policy and a single state.
+ */
+interface BehaviourPolicy {
+
+	/**
+	 * @return The name used to select this policy, e.g. "collaborative".
+	 */
+	String getName();
+
+	/**
+	 * Act for every vehicle in the batch that is carrying a sample. A vehicle
+	 * that is not full may pick up more before heading back; see
+	 * Vehicle.setCarryingCapacity().
+	 *
+	 * @param batch
+	 *            The vehicles carrying a sample
+	 * @param f
+	 *            Instance of class Field
+	 * @param m
+	 *            Instance of class Mothership
+	 * @param rocksCollected
+	 *            ArrayList containing the rocks collected this step
+	 */
+	void actCarrying(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected);
+
+	/**
+	 * Act for every vehicle in the batch that is not carrying a sample and is
+	 * standing on crumbs.
+	 *
+	 * @param batch
+	 *            The vehicles standing on crumbs
+	 * @param f
+	 *            Instance of class Field
+	 * @param m
+	 *            Instance of class Mothership
+	 * @param rocksCollected
+	 *            ArrayList containing the rocks collected this step
+	 */
+	void actOnCrumbs(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected);
+
+	/**
+	 * Act for every vehicle in the batch that is not carrying a sample and is not
+	 * standing on crumbs.
+	 *
+	 * @param batch
+	 *            The vehicles searching for samples
+	 * @param f
+	 *            Instance of class Field
+	 * @param m
+	 *            Instance of class Mothership
+	 * @param rocksCollected
+	 *            ArrayList containing the rocks collected this step
+	 */
+	void actSearching(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected);
+
+	/**
+	 * Tell whether acting would leave both the vehicle and the field exactly as
+	 * they are, so that the scheduler can park the vehicle until something
+	 * changes around it. Parked vehicles are woken when a location next to
+	 * them is taken or freed, when crumbs are dropped within their crumb
+	 * sensing range and when crumbs decay, so the answer may only depend on
+	 * those. It must not use the vehicle's random stream.
+	 *
+	 * @param v
+	 *            The vehicle
+	 * @param state
+	 *            The state it is in at the start of the step
+	 * @param f
+	 *            Instance of class Field
+	 * @return true if the vehicle has nothing to do
+	 */
+	default boolean isIdle(Vehicle v, VehicleState state, Field f) {
+		return false;
+	}
+
+	/**
+	 * Look up one of the built-in policies by name.
+	 *
+	 * @param name
+	 *            "simple" or "collaborative" (case is ignored)
+	 * @return The policy with the given name
+	 * @throws IllegalArgumentException
+	 *             if there is no policy with that name
+	 */
+	static BehaviourPolicy forName(String name) {
+		if (SimplePolicy.NAME.equalsIgnoreCase(name.trim())) {
+			return SimplePolicy.INSTANCE;
+		}
+		if (CollaborativePolicy.NAME.equalsIgnoreCase(name.trim())) {
+			return CollaborativePolicy.INSTANCE;
+		}
+		throw new IllegalArgumentException("Unknown behaviour policy: " + name);
+	}
+
+	/**
+	 * @return The names of the built-in policies.
+	 */
+	static String[] names() {
+		return new String[] { CollaborativePolicy.NAME, SimplePolicy.NAME };
+	}
+}
@@ -0,0 +1,125 @@
+package Mars;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs a simulation headlessly to a step, forks it into many branches (see
+ * Simulator.fork()) and runs every branch on from there, reporting what the
+ * forks cost in time and memory and how each branch did.
+ *
+ * Usage: java Mars.BranchRunner [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * forkAt = 500      # the step to fork at
+ * branches = 100    # the number of branches
+ * steps = 500       # the steps each branch runs on for
+ * branch.name = a,b # a parameter of the branches, given to them in turn
+ * </pre>
+ *
+ * Without branch parameters every branch must do exactly what the original
+ * does from the fork on; the runner exits with status 1 if one does not.
+ */
+public class BranchRunner {
+
+	public static void main(String[] args) {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "forkAt", "branches", "steps", "branch.");
+		int forkAt = Integer.parseInt(own.getOrDefault("forkAt", "500"));
+		int branches = Integer.parseInt(own.getOrDefault("branches", "100"));
+		int steps = Integer.parseInt(own.getOrDefault("steps", "500"));
+		Map<String, String[]> varied = new LinkedHashMap<String, String[]>();
+		for (Map.Entry<String, String> e : own.entrySet()) {
+			if (e.getKey().startsWith("branch.")) {
+				varied.put(e.getKey().substring("branch.".length()), e.getValue().split(","));
+			}
+		}
+
+		Simulator original = new Simulator(config, false);
+		original.simulate(forkAt);
+		long before = usedMemory();
+
+		long start = System.nanoTime();
+		List<Simulator> forks = new ArrayList<Simulator>();
+		List<String> labels = new ArrayList<String>();
+		for (int b = 0; b < branches; b++) {
+			SimulationConfig branch = config.copy();
+			StringBuilder label = new StringBuilder();
+			for (Map.Entry<String, String[]> e : varied.entrySet()) {
+				String value = e.getValue()[b % e.getValue().length].trim();
+				branch.set(e.getKey(), value);
+				label.append(label.length() == 0 ? "" : " ").append(e.getKey()).append('=').append(value);
+			}
+			forks.add(original.fork(branch));
+			labels.add(label.toString());
+		}
+		long forked = System.nanoTime() - start;
+		long afterFork = usedMemory();
+		System.out.println(String.format(Locale.ROOT,
+				"%d vehicles, forked at step %d into %d branches in %.3f ms, %.1f KB each; the field alone is %.1f KB",
+				original.getVehicles().size(), original.getStep(), branches, forked / 1e6,
+				(afterFork - before) / 1024.0 / branches, fieldBytes(original.getField()) / 1024.0));
+
+		original.simulate(steps);
+		long expected = digest(original.getField());
+		start = System.nanoTime();
+		int differ = 0;
+		for (int b = 0; b < branches; b++) {
+			Simulator fork = forks.get(b);
+			fork.simulate(steps);
+			MissionStats stats = fork.getStats();
+			boolean same = digest(fork.getField()) == expected
+					&& stats.getRocksDelivered() == original.getStats().getRocksDelivered()
+					&& stats.getRocksPickedUp() == original.getStats().getRocksPickedUp();
+			if (!varied.isEmpty() && b < varied.values().stream().mapToInt(v -> v.length).max().getAsInt()) {
+				System.out.println(String.format(Locale.ROOT, "%s: picked up %d, delivered %d by step %d", labels.get(b),
+						stats.getRocksPickedUp(), stats.getRocksDelivered(), fork.getStep()));
+			}
+			differ += same ? 0 : 1;
+		}
+		long ran = System.nanoTime() - start;
+		System.out.println(String.format(Locale.ROOT,
+				"%d more steps: the original picked up %d, delivered %d; the branches took %.2f s, %.1f KB each after",
+				steps, original.getStats().getRocksPickedUp(), original.getStats().getRocksDelivered(), ran / 1e9,
+				(usedMemory() - before) / 1024.0 / branches));
+		if (varied.isEmpty()) {
+			System.out.println(differ == 0 ? "Every branch matches the original."
+					: differ + " branches differ from the original");
+			if (differ > 0) {
+				System.exit(1);
+			}
+		}
+		// Keep the branches alive until their memory has been measured
+		forks.clear();
+	}
+
+	/**
+	 * @return The bytes a full copy of a field's entities, crumbs and bitboards
+	 *         takes, roughly.
+	 */
+	private static long fieldBytes(Field f) {
+		long cells = (long) f.getDepth() * f.getWidth();
+		return cells * 4 + cells * 4 + 4 * cells / 8 + 2L * f.getDepth() * 16 * 6;
+	}
+
+	private static long digest(Field f) {
+		long[] rows = new long[f.getDepth()];
+		for (int row = 0; row < rows.length; row++) {
+			rows[row] = ShardWorker.rowDigest(f, row);
+		}
+		return ShardedRunner.fieldDigest(rows);
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,95 @@
+package Mars;
+
+import java.util.Arrays;
+
+/**
+ * A set of grid cells, each identified by its index row * width + col. It uses
+ * open addressing over a flat long array, so its size follows the number of
+ * cells stored rather than the size of the grid, and adding or testing a cell
+ * does not allocate.
+ */
+class CellSet {
+	// Marks an empty slot; cell indices are never negative.
+	private static final long EMPTY = -1;
+
+	private long[] slots;
+	private int size;
+
+	/**
+	 * @param expected
+	 *            The number of cells expected, to size the table
+	 */
+	public CellSet(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		slots = newTable(capacity);
+	}
+
+	/**
+	 * @param cell
+	 *            The cell index
+	 * @return true if the cell is in the set.
+	 */
+	public boolean contains(long cell) {
+		int mask = slots.length - 1;
+		for (int i = slot(cell, mask);; i = (i + 1) & mask) {
+			long s = slots[i];
+			if (s == cell) {
+				return true;
+			}
+			if (s == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @param cell
+	 *            The cell index
+	 * @return true if the cell was not in the set before.
+	 */
+	public boolean add(long cell) {
+		if (2 * (size + 1) > slots.length) {
+			grow();
+		}
+		int mask = slots.length - 1;
+		for (int i = slot(cell, mask);; i = (i + 1) & mask) {
+			long s = slots[i];
+			if (s == cell) {
+				return false;
+			}
+			if (s == EMPTY) {
+				slots[i] = cell;
+				size++;
+				return true;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void grow() {
+		long[] old = slots;
+		slots = newTable(old.length * 2);
+		size = 0;
+		for (long s : old) {
+			if (s != EMPTY) {
+				add(s);
+			}
+		}
+	}
+
+	private static long[] newTable(int capacity) {
+		long[] table = new long[capacity];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int slot(long cell, int mask) {
+		return (int) RandomStream.mix64(cell) & mask;
+	}
+}
@@ -1,37 +1,176 @@
 package Mars;
 
-public class ClusterGenerator 
+import java.util.stream.IntStream;
+
+/**
+ * Places rocks in Gaussian clusters around randomly chosen centres.
+ *
+ * Work is bounded however dense the clusters are: each rock gets a few
+ * Gaussian draws to find a cell not yet used by its own cluster. A rock that
+ * still lands on a taken cell takes the next free cell from its cluster's
+ * pool, a spiral walked outwards from the centre that never goes back, so a
+ * crowded cluster grows at its edge instead of being drawn again and again.
+ * Occupancy is kept in sparse cell sets, so memory follows the number of rocks
+ * rather than the size of the field.
+ *
+ * Every cluster draws from its own stream, split from the world generation
+ * stream, and clusters are merged in a fixed order. Large fields therefore
+ * generate their clusters in parallel and still give exactly the rocks a
+ * sequential run would.
+ */
+public class ClusterGenerator
 {
-	static Location[] generateClusters(int numOfClusters, int numOfLocations, int fieldWidth, int fieldDepth, double std)
+	// Gaussian draws per rock before falling back to the cluster's pool.
+	private static final int MAX_ATTEMPTS = 8;
+	// From this many rocks on, clusters are generated in parallel.
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	static Location[] generateClusters(int numOfClusters, int numOfLocations, int fieldWidth, int fieldDepth, double std, RandomStream random)
 	{
-		boolean hasRock[][] = new boolean[fieldWidth][fieldDepth];
-		for(int i=0;i<fieldWidth;i++)
-			for(int j=0; j<fieldDepth; j++)
-				hasRock[i][j]=false;
-						
-		Location locations[] = new Location[numOfLocations];
-		Location clusters[] = new Location[numOfLocations];
-		
+		// There can be no more rocks than cells.
+		numOfLocations = (int) Math.min(numOfLocations, (long) fieldWidth * fieldDepth);
+		if(numOfClusters <= 0 || numOfLocations <= 0)
+			return new Location[0];
+
+		// Choose the centres, then how many rocks each cluster gets.
+		final int centreRow[] = new int[numOfClusters];
+		final int centreCol[] = new int[numOfClusters];
 		for(int i=0; i<numOfClusters; i++)
 		{
-			int x= ModelConstants.random.nextInt(fieldWidth);
-			int y= ModelConstants.random.nextInt(fieldDepth);
-			clusters[i] = new Location(x,y);
+			centreCol[i] = random.nextInt(fieldWidth);
+			centreRow[i] = random.nextInt(fieldDepth);
 		}
+		final int count[] = new int[numOfClusters];
 		for(int i=0; i<numOfLocations; i++)
+			count[random.nextInt(numOfClusters)]++;
+
+		// Draw the candidate cells of every cluster independently.
+		final long candidates[][] = new long[numOfClusters][];
+		IntStream clusters = IntStream.range(0, numOfClusters);
+		if(numOfLocations >= PARALLEL_THRESHOLD)
+			clusters = clusters.parallel();
+		clusters.forEach(c -> candidates[c] = drawCluster(centreRow[c], centreCol[c], count[c], fieldWidth,
+				fieldDepth, std, random.split(c)));
+
+		// Merge in cluster order; a rock colliding with an earlier cluster takes
+		// the next free cell of its own cluster's pool.
+		CellSet taken = new CellSet(numOfLocations);
+		Location locations[] = new Location[numOfLocations];
+		int n = 0;
+		for(int c=0; c<numOfClusters; c++)
 		{
-			int c = ModelConstants.random.nextInt(numOfClusters);
-			int x = clusters[c].getCol() + (int)(std*ModelConstants.random.nextGaussian());
-			int y = clusters[c].getRow() + (int)(std*ModelConstants.random.nextGaussian());
-			x = (x+10*fieldWidth) % fieldWidth;
-			y = (y+10*fieldDepth) % fieldDepth;
-			if(!hasRock[x][y]){
-				locations[i] = new Location(x,y);
-				hasRock[x][y] = true;
+			Spiral pool = new Spiral(centreRow[c], centreCol[c], fieldWidth, fieldDepth);
+			for(long cell : candidates[c])
+			{
+				if(!taken.add(cell))
+				{
+					cell = pool.nextFree(taken);
+					taken.add(cell);
+				}
+				locations[n++] = new Location((int) (cell / fieldWidth), (int) (cell % fieldWidth));
 			}
-			else
-				i--;
 		}
 		return locations;
 	}
+
+	/**
+	 * Draw the cells of one cluster, avoiding cells the cluster already uses
+	 * for a bounded number of attempts.
+	 *
+	 * @return The cell indices, in draw order.
+	 */
+	private static long[] drawCluster(int row, int col, int count, int fieldWidth, int fieldDepth, double std, RandomStream random)
+	{
+		long cells[] = new long[count];
+		CellSet own = new CellSet(count);
+		Spiral pool = new Spiral(row, col, fieldWidth, fieldDepth);
+		for(int i=0; i<count; i++)
+		{
+			long cell = 0;
+			for(int attempt=0; attempt<MAX_ATTEMPTS; attempt++)
+			{
+				int x = col + (int)(std*random.nextGaussian());
+				int y = row + (int)(std*random.nextGaussian());
+				x = Math.floorMod(x, fieldWidth);
+				y = Math.floorMod(y, fieldDepth);
+				cell = (long) y * fieldWidth + x;
+				if(!own.contains(cell))
+					break;
+			}
+			if(!own.add(cell))
+			{
+				cell = pool.nextFree(own);
+				own.add(cell);
+			}
+			cells[i] = cell;
+		}
+		return cells;
+	}
+
+	/**
+	 * The cells around a centre in square rings of growing radius. The walk only
+	 * moves forward: a cell found taken once stays taken, so the whole walk costs
+	 * at most the area the cluster ends up covering.
+	 */
+	private static class Spiral
+	{
+		private final int row, col, fieldWidth, fieldDepth;
+		// The current ring and the position within it.
+		private int radius, index;
+
+		Spiral(int row, int col, int fieldWidth, int fieldDepth)
+		{
+			this.row = row;
+			this.col = col;
+			this.fieldWidth = fieldWidth;
+			this.fieldDepth = fieldDepth;
+		}
+
+		/**
+		 * @return The next cell of the walk that is not in the set. The caller
+		 *         guarantees that there is one.
+		 */
+		long nextFree(CellSet taken)
+		{
+			// Rings past this radius wrap round the torus onto cells already seen.
+			int maxRadius = Math.max(fieldWidth, fieldDepth) / 2 + 1;
+			while(radius <= maxRadius)
+			{
+				int ringSize = radius == 0 ? 1 : 8 * radius;
+				while(index < ringSize)
+				{
+					long cell = cellAt(index++);
+					if(!taken.contains(cell))
+						return cell;
+				}
+				radius++;
+				index = 0;
+			}
+			throw new IllegalStateException("No free cell left for a rock");
+		}
+
+		/**
+		 * The i-th cell of the current ring: the top row, the bottom row, then
+		 * the left and right ends of the rows in between.
+		 */
+		private long cellAt(int i)
+		{
+			int r = radius, dr, dc;
+			int side = 2 * r + 1;
+			if(i < side) {
+				dr = -r;
+				dc = i - r;
+			}
+			else if(i < 2 * side) {
+				dr = r;
+				dc = i - side - r;
+			}
+			else {
+				int j = i - 2 * side;
+				dr = -r + 1 + j / 2;
+				dc = (j % 2 == 0) ? -r : r;
+			}
+			return (long) Math.floorMod(row + dr, fieldDepth) * fieldWidth + Math.floorMod(col + dc, fieldWidth);
+		}
+	}
 }
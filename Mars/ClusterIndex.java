@@ -0,0 +1,253 @@
+package Mars;
+
+import java.util.List;
+
+/**
+ * The rock clusters of a run and the rocks each still has.
+ *
+ * Clusters are worked out once, when the world is built (see label()): two
+ * rocks are in the same cluster if a chain of rocks leads from one to the
+ * other with no more than LINK_RADIUS king moves between neighbours, so
+ * Gaussian clusters that overlap count as one. Each rock keeps its cluster
+ * for good. A run then only counts down: every rock picked up takes one from
+ * its cluster, and a cluster that reaches none leaves the list of live
+ * clusters, all in O(1). Clusters are not split as they are picked apart;
+ * a cluster is the rocks that started out together.
+ *
+ * Undoing a step (see StepJournal) puts rocks back with restored().
+ */
+final class ClusterIndex {
+	// The most king moves between neighbouring rocks of one cluster.
+	static final int LINK_RADIUS = 2;
+
+	// The rocks each cluster started with, shared with the world.
+	private final int[] sizes;
+	// The rocks each cluster still has, and the step it ran out, or -1.
+	private final int[] remaining;
+	private final int[] exhaustedAt;
+	// The clusters with rocks left, in no particular order, and where each
+	// cluster is in that list, or -1 once it has run out.
+	private final int[] live;
+	private final int[] slot;
+	private int liveCount;
+
+	/**
+	 * Start with every rock of the world's clusters on the field.
+	 *
+	 * @param sizes
+	 *            The rocks of each cluster, not to be changed
+	 */
+	ClusterIndex(int[] sizes) {
+		this(sizes, sizes.clone());
+	}
+
+	/**
+	 * Start with only the rocks given on the field, e.g. those of one shard.
+	 *
+	 * @param sizes
+	 *            The rocks of each cluster, not to be changed
+	 */
+	ClusterIndex(int[] sizes, List<Rock> rocks) {
+		this(sizes, countRocks(sizes.length, rocks));
+	}
+
+	private ClusterIndex(int[] sizes, int[] remaining) {
+		this.sizes = sizes;
+		this.remaining = remaining;
+		exhaustedAt = new int[sizes.length];
+		live = new int[sizes.length];
+		slot = new int[sizes.length];
+		for (int c = 0; c < sizes.length; c++) {
+			exhaustedAt[c] = remaining[c] > 0 ? -1 : 0;
+			slot[c] = -1;
+			if (remaining[c] > 0) {
+				slot[c] = liveCount;
+				live[liveCount++] = c;
+			}
+		}
+	}
+
+	private static int[] countRocks(int clusters, List<Rock> rocks) {
+		int[] counts = new int[clusters];
+		for (int i = 0; i < rocks.size(); i++) {
+			int c = rocks.get(i).getCluster();
+			if (c >= 0) {
+				counts[c]++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return An independent copy, e.g. for a fork of the run.
+	 */
+	ClusterIndex copy() {
+		ClusterIndex c = new ClusterIndex(sizes, remaining.clone());
+		System.arraycopy(exhaustedAt, 0, c.exhaustedAt, 0, exhaustedAt.length);
+		return c;
+	}
+
+	/**
+	 * A rock was picked up.
+	 *
+	 * @param step
+	 *            The step it was picked up in
+	 */
+	void removed(Rock r, int step) {
+		int c = r.getCluster();
+		if (c < 0 || remaining[c] == 0) {
+			return;
+		}
+		if (--remaining[c] == 0) {
+			exhaustedAt[c] = step;
+			int last = live[--liveCount];
+			live[slot[c]] = last;
+			slot[last] = slot[c];
+			slot[c] = -1;
+		}
+	}
+
+	/**
+	 * A rock picked up is back on the field, when a step is undone.
+	 */
+	void restored(Rock r) {
+		int c = r.getCluster();
+		if (c < 0) {
+			return;
+		}
+		if (remaining[c]++ == 0) {
+			exhaustedAt[c] = -1;
+			slot[c] = liveCount;
+			live[liveCount++] = c;
+		}
+	}
+
+	/**
+	 * @return The number of clusters the world started with.
+	 */
+	int getClusters() {
+		return sizes.length;
+	}
+
+	/**
+	 * @return The number of clusters with rocks left.
+	 */
+	int getLiveClusters() {
+		return liveCount;
+	}
+
+	/**
+	 * @return The number of clusters picked clean.
+	 */
+	int getExhaustedClusters() {
+		return sizes.length - liveCount;
+	}
+
+	/**
+	 * @param i
+	 *            From 0 to getLiveClusters() - 1
+	 * @return The i-th cluster with rocks left, in no particular order.
+	 */
+	int getLiveCluster(int i) {
+		return live[i];
+	}
+
+	/**
+	 * @return The rocks a cluster started with.
+	 */
+	int getSize(int cluster) {
+		return sizes[cluster];
+	}
+
+	/**
+	 * @return The rocks a cluster still has.
+	 */
+	int getRemaining(int cluster) {
+		return remaining[cluster];
+	}
+
+	/**
+	 * @return Whether a cluster has no rocks left.
+	 */
+	boolean isExhausted(int cluster) {
+		return remaining[cluster] == 0;
+	}
+
+	/**
+	 * @return The step a cluster ran out of rocks in, or -1 if it has not.
+	 */
+	int getExhaustedAt(int cluster) {
+		return exhaustedAt[cluster];
+	}
+
+	/**
+	 * Put rocks into clusters with a union-find over their neighbours on a
+	 * field holding them, and tell each rock its cluster. Clusters are numbered
+	 * in the order of their first rock.
+	 *
+	 * @param rocks
+	 *            The rocks, placed on the field
+	 * @param f
+	 *            The field
+	 * @return The rocks of each cluster.
+	 */
+	static int[] label(Rock[] rocks, Field f) {
+		int n = rocks.length;
+		int[] parent = new int[n];
+		// Each rock is labelled with its own index until its set is known
+		for (int i = 0; i < n; i++) {
+			parent[i] = i;
+			rocks[i].setCluster(i);
+		}
+		int depth = f.getDepth(), width = f.getWidth();
+		int reach = Math.min(LINK_RADIUS, Math.min(depth, width) / 2);
+		for (int i = 0; i < n; i++) {
+			Location l = rocks[i].getLocation();
+			for (int dr = -reach; dr <= reach; dr++) {
+				int row = Math.floorMod(l.getRow() + dr, depth);
+				for (int dc = -reach; dc <= reach; dc++) {
+					Entity e = f.getObjectAt(row, Math.floorMod(l.getCol() + dc, width));
+					if (e instanceof Rock && e != rocks[i]) {
+						union(parent, i, ((Rock) e).getCluster());
+					}
+				}
+			}
+		}
+		int[] clusterOfRoot = new int[n];
+		int[] counts = new int[n];
+		int clusters = 0;
+		for (int i = 0; i < n; i++) {
+			clusterOfRoot[i] = -1;
+		}
+		for (int i = 0; i < n; i++) {
+			int root = find(parent, i);
+			if (clusterOfRoot[root] < 0) {
+				clusterOfRoot[root] = clusters++;
+			}
+			counts[clusterOfRoot[root]]++;
+		}
+		for (int i = 0; i < n; i++) {
+			rocks[i].setCluster(clusterOfRoot[find(parent, i)]);
+		}
+		int[] sizes = new int[clusters];
+		System.arraycopy(counts, 0, sizes, 0, clusters);
+		return sizes;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			// Halve the path as we go
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a), rb = find(parent, b);
+		if (ra != rb) {
+			// The smaller index wins, so roots do not depend on the order of unions
+			parent[Math.max(ra, rb)] = Math.min(ra, rb);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package Mars;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs a simulation headlessly and reports its rock clusters (see
+ * ClusterIndex): how many there are and how large, and the step each was
+ * picked clean at. With check=true it counts every cluster's rocks on the
+ * field after each step as well, and checks the index against the count.
+ *
+ * Usage: java Mars.ClusterRunner [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * check = false     # count the rocks on the field after each step as well
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class ClusterRunner {
+
+	public static void main(String[] args) {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "check");
+		boolean check = Boolean.parseBoolean(own.getOrDefault("check", "false"));
+
+		Simulator sim = new Simulator(config, false);
+		ClusterIndex clusters = sim.getClusters();
+		int largest = 0, single = 0, rocks = 0;
+		for (int c = 0; c < clusters.getClusters(); c++) {
+			largest = Math.max(largest, clusters.getSize(c));
+			single += clusters.getSize(c) == 1 ? 1 : 0;
+			rocks += clusters.getSize(c);
+		}
+		System.out.println(String.format(Locale.ROOT,
+				"%d rocks in %d clusters (%d generated): the largest has %d rocks, %d are single rocks",
+				rocks, clusters.getClusters(), config.rockClusters, largest, single));
+
+		int wrong = 0;
+		long start = System.nanoTime();
+		for (int tick = 0; tick < config.length && sim.getStopReason() == null; tick++) {
+			sim.simulateOneStep();
+			if (check && !matchesField(sim)) {
+				wrong++;
+			}
+		}
+		long ran = System.nanoTime() - start;
+
+		int[] byStep = new int[sim.getStep() + 1];
+		for (int c = 0; c < clusters.getClusters(); c++) {
+			if (clusters.isExhausted(c)) {
+				byStep[clusters.getExhaustedAt(c)]++;
+			}
+		}
+		System.out.println(String.format(Locale.ROOT, "%d steps in %.2f s%s; %s", sim.getStep(), ran / 1e9,
+				check ? " with the check" : "", sim.getStopReason() == null ? "ran its length" : sim.getStopReason()));
+		int exhausted = 0;
+		for (int step = 0; step < byStep.length; step++) {
+			if (byStep[step] > 0) {
+				exhausted += byStep[step];
+				System.out.println(String.format(Locale.ROOT, "step %6d: %d exhausted, %d left", step, exhausted,
+						clusters.getClusters() - exhausted));
+			}
+		}
+		int live = clusters.getLiveClusters();
+		if (live > 0) {
+			StringBuilder left = new StringBuilder();
+			for (int i = 0; i < Math.min(live, 10); i++) {
+				int c = clusters.getLiveCluster(i);
+				left.append(i == 0 ? "" : ", ").append(clusters.getRemaining(c)).append('/').append(clusters.getSize(c));
+			}
+			System.out.println("Rocks left in the live clusters: " + left + (live > 10 ? ", ..." : ""));
+		}
+		if (check) {
+			System.out.println(wrong == 0 ? "The clusters match a count of the field after every step."
+					: "The clusters differ from a count of the field after " + wrong + " steps");
+			if (wrong > 0) {
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * @return Whether every cluster has as many rocks left as there are on the
+	 *         field, and the live clusters are those with rocks.
+	 */
+	private static boolean matchesField(Simulator sim) {
+		ClusterIndex clusters = sim.getClusters();
+		Field f = sim.getField();
+		int[] counts = new int[clusters.getClusters()];
+		for (int row = 0; row < f.getDepth(); row++) {
+			for (int col = 0; col < f.getWidth(); col++) {
+				Entity e = f.getObjectAt(row, col);
+				if (e instanceof Rock) {
+					counts[((Rock) e).getCluster()]++;
+				}
+			}
+		}
+		int live = 0;
+		for (int c = 0; c < counts.length; c++) {
+			if (counts[c] != clusters.getRemaining(c) || (counts[c] == 0) != clusters.isExhausted(c)) {
+				return false;
+			}
+			live += counts[c] > 0 ? 1 : 0;
+		}
+		for (int i = 0; i < clusters.getLiveClusters(); i++) {
+			if (counts[clusters.getLiveCluster(i)] == 0) {
+				return false;
+			}
+		}
+		return live == clusters.getLiveClusters();
+	}
+}
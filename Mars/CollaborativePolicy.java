@@ -0,0 +1,114 @@
+package Mars;
+
+import java.util.ArrayList;
+
+/**
+ * The collaborative implementation: vehicles returning with a sample drop
+ * crumbs to help other agents find their way to rock clusters, and vehicles
+ * standing on crumbs follow the trail away from the mothership.
+ */
+final class CollaborativePolicy implements BehaviourPolicy {
+	static final String NAME = "collaborative";
+	static final CollaborativePolicy INSTANCE = new CollaborativePolicy();
+
+	private CollaborativePolicy() {
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isIdle(Vehicle v, VehicleState state, Field f) {
+		// Boxed in, a vehicle can only act on what it senses and on its own
+		// location's crumbs; a vehicle on crumbs always picks one up
+		if (state == VehicleState.ON_CRUMBS || !v.isBoxedIn(f)) {
+			return false;
+		}
+		if (state == VehicleState.CARRYING) {
+			return !v.sensesMothership(f) && !v.canDropCrumbs(f) && (v.isFull() || !v.sensesSample(f));
+		}
+		return !v.sensesSample(f) && !v.sensesNearbyCrumbs(f);
+	}
+
+	@Override
+	public void actCarrying(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		for (int i = 0; i < batch.size(); i++) {
+			Vehicle v = batch.get(i);
+			if (v.findAdjacentMothership(f) != null) {
+				// if carrying samples and at the base then drop them all (1)
+				v.dropSample();
+			} else {
+				Location sample = v.isFull() ? null : v.detectSample(f);
+				if (sample != null) {
+					// if there is room for another sample and one is in sensing range then
+					// harvest it before heading back
+					if (v.isAdjacent(f, sample)) {
+						v.pickUpSample(f, sample, rocksCollected);
+					} else {
+						v.moveTowards(f, sample);
+					}
+				} else {
+					// if full or out of samples in reach and not at the base then drop two
+					// crumbs and travel up gradient (5), or straight for the base once it is
+					// in sensing range
+					v.dropCrumbs(f);
+					Location base = v.senseMothership(f);
+					if (base != null) {
+						v.moveTowards(f, base);
+					} else {
+						v.moveUpGradient(f);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void actOnCrumbs(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		for (int i = 0; i < batch.size(); i++) {
+			Vehicle v = batch.get(i);
+			Location sample = v.detectSample(f);
+			if (sample != null) {
+				if (v.isAdjacent(f, sample)) {
+					// if detect a sample then pick sample (3)
+					v.pickUpSample(f, sample, rocksCollected);
+				} else {
+					// if a sample is in sensing range then head for it
+					v.moveTowards(f, sample);
+				}
+			} else {
+				// if sense crumbs then pick up one crumb and travel down gradient (6)
+				v.pickUpCrumb(f);
+				v.moveDownGradient(f);
+			}
+		}
+	}
+
+	@Override
+	public void actSearching(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		for (int i = 0; i < batch.size(); i++) {
+			Vehicle v = batch.get(i);
+			Location sample = v.detectSample(f);
+			if (sample != null) {
+				if (v.isAdjacent(f, sample)) {
+					// if detect a sample then pick sample (3)
+					v.pickUpSample(f, sample, rocksCollected);
+				} else {
+					// if a sample is in sensing range then head for it
+					v.moveTowards(f, sample);
+				}
+			} else {
+				Location trail = v.senseNearbyCrumbs(f);
+				if (trail != null) {
+					// if crumbs are in sensing range then head for the trail
+					v.moveTowards(f, trail);
+				} else {
+					// if true then move randomly (4)
+					v.moveRandomly(f);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package Mars;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the epochs that copy-on-write grids stamp their rows with. A grid
+ * may write a row in place only if the row carries the grid's own epoch; a
+ * fork gives the original and the copy fresh epochs, so every row they share
+ * is copied by whichever of them writes it first, and neither needs to know
+ * how many others still hold it.
+ */
+final class Epoch {
+	private static final AtomicInteger NEXT = new AtomicInteger();
+
+	private Epoch() {
+	}
+
+	/**
+	 * @return An epoch no grid has had before.
+	 */
+	static int next() {
+		return NEXT.incrementAndGet();
+	}
+}
@@ -1,6 +1,7 @@
 package Mars;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -9,19 +10,128 @@ import java.util.Random;
 /**
  * Represent a rectangular grid of field positions. Each position is able to
  * store a single entity.
+ *
+ * A field can be forked (see fork()) to try something else from the state it
+ * is in. Its entities and crumbs are kept in tiles of TILE columns of a row,
+ * and the tiles and the rows of the bitboards are copied on write: a fork
+ * shares all of them with the field it came from, and one is copied only when
+ * one of the two first changes it, so many forks of one field take little
+ * more memory than what they have changed.
  * 
  * @author David J. Barnes and Michael Kolling
  * @author Maria Chli
  * @version 22-Oct-2008
  */
 public class Field {
-	// The depth and width of the field.
+	// The most crumbs a location can hold, unless the run sets its own.
+	static final int MAX_CRUMBS = 10;
+	// The columns of a tile of entities or crumbs, as many as a word of a
+	// RowBitboard holds.
+	static final int TILE = 64;
+	private static final int TILE_SHIFT = 6;
+
+	/**
+	 * Told about changes to the field, e.g. to wake a vehicle waiting for
+	 * something to happen around it or to stream the changes to a viewer.
+	 */
+	interface ChangeListener {
+		/**
+		 * The entity or the crumbs at a location changed.
+		 */
+		default void cellChanged(Field f, int row, int col) {
+		}
+
+		/**
+		 * A location was cleared, so its neighbours may be able to move.
+		 */
+		default void locationCleared(Field f, int row, int col) {
+		}
+
+		/**
+		 * Crumbs were dropped at a location.
+		 */
+		default void crumbsDropped(Field f, int row, int col) {
+		}
+
+		/**
+		 * Crumbs were taken from every location at once. cellChanged() is called
+		 * for each location that had crumbs as well.
+		 */
+		default void crumbsReduced(Field f) {
+		}
+
+		/**
+		 * The number of crumbs at a location went up or down by delta.
+		 * cellChanged() is called as well.
+		 */
+		default void crumbsChanged(Field f, int row, int col, int delta) {
+		}
+
+		/**
+		 * The cluster the crumbs at a location lead to changed; see
+		 * followTrails().
+		 *
+		 * @param before
+		 *            The cluster they led to before, or -1
+		 */
+		default void trailChanged(Field f, int row, int col, int before) {
+		}
+	}
+
+	// The depth and width of the field, and the tiles across each row.
 	private int depth, width;
-	// Storage for the entities.
-	private Entity[][] field;
-	// Storage for the crumbs.
-	private int[][] crumbsQuant;
+	private int tilesAcross;
+	// Storage for the entities, by row and tile: column c of a row is element
+	// c % TILE of tile c / TILE.
+	private Entity[][][] field;
+	// Storage for the crumbs, by row and tile likewise.
+	private int[][][] crumbsQuant;
+	// The cluster plus one that the crumbs of each location lead to, by row
+	// and tile likewise, 0 for none. Made the first time crumbs are tagged and
+	// copied along with the crumb tiles.
+	private int[][][] crumbTrails;
+	// The epoch each tile of entities and of crumbs was last copied in, by row
+	// and tile, and the epoch each row's arrays of tiles and stamps were last
+	// copied in. Those stamped with this field's epoch belong to it alone; see
+	// Epoch. The arrays of rows are copied whole the first time a fork writes.
+	private int[][] entityStamps, crumbStamps;
+	private int[] rowStamps;
+	private boolean rowsShared;
+	private int epoch;
+	// Whether this field has been forked or is a fork. Until it is, every tile
+	// is its own and writes need not look at the stamps.
+	private boolean forked;
+	// Whether the signal is shared with a fork, so must be copied before it
+	// is changed.
+	private boolean signalForked;
 	private int[][] signalStrength;
+	// The neighbours of each cell ranked by signal, built on first use after
+	// the signal changes. Never written once built, so clones share it.
+	private FlowField flowField;
+	// One bit per cell holding a rock, a mothership, or at least one crumb,
+	// kept up to date as the field changes, for sensing at a distance.
+	private RowBitboard rockBoard, mothershipBoard, crumbBoard;
+	// One bit per occupied cell, whatever occupies it, for free-cell queries.
+	private RowBitboard occupancyBoard;
+	// The number of changes made to entities and crumbs since the field was made.
+	private long changes;
+	// Told about changes. Clones start without any.
+	private ChangeListener[] listeners = new ChangeListener[0];
+	// The random generator used to shuffle neighbourhoods.
+	private Random random;
+	// One shared Location per cell, made the first time it is asked for, so
+	// that moving and sensing do not allocate once the run has warmed up. A
+	// shared world makes them all up front; see WorldTemplate.
+	private Location[] locations;
+	// Whether the signal belongs to a WorldTemplate, so must not be changed.
+	private boolean signalShared;
+	// The most crumbs a location of this field can hold.
+	private int maxCrumbs = MAX_CRUMBS;
+	// The clusters whose trails are followed, or null if crumbs are not
+	// tagged; see followTrails().
+	private ClusterIndex trailClusters;
+	// Leaves crumbs of clusters picked clean out of sensing.
+	private final RowBitboard.Mask liveCrumbs = this::keepLiveCrumbs;
 
 	/**
 	 * Represent a field of the given dimensions. The topology of the grid is torus
@@ -31,24 +141,278 @@ public class Field {
 	 *            The depth of the field.
 	 * @param width
 	 *            The width of the field.
+	 * @param random
+	 *            The random generator of the simulation the field belongs to.
 	 */
-	public Field(int depth, int width) {
+	public Field(int depth, int width, Random random) {
+		this.random = random;
 		this.depth = depth;
 		this.width = width;
-		field = new Entity[depth][width];
-		crumbsQuant = new int[depth][width];
+		makeTiles();
 		signalStrength = new int[depth][width];
+		rockBoard = new RowBitboard(depth, width);
+		mothershipBoard = new RowBitboard(depth, width);
+		crumbBoard = new RowBitboard(depth, width);
+		occupancyBoard = new RowBitboard(depth, width);
+		locations = new Location[depth * width];
+	}
+
+	/**
+	 * Make an empty field for a run of a shared world. The signal, the flow
+	 * field and the locations are the world's; entities and crumbs are the
+	 * field's own.
+	 *
+	 * @param world
+	 *            The world
+	 * @param random
+	 *            The random generator of the simulation the field belongs to.
+	 */
+	Field(WorldTemplate world, Random random) {
+		this.random = random;
+		this.depth = world.getDepth();
+		this.width = world.getWidth();
+		makeTiles();
+		signalStrength = world.getSignal();
+		signalShared = true;
+		flowField = world.getFlowField();
+		rockBoard = new RowBitboard(depth, width);
+		mothershipBoard = new RowBitboard(depth, width);
+		crumbBoard = new RowBitboard(depth, width);
+		occupancyBoard = new RowBitboard(depth, width);
+		locations = world.getLocations();
+	}
+
+	/**
+	 * Make a fork of a field: see fork().
+	 */
+	private Field(Field parent) {
+		depth = parent.depth;
+		width = parent.width;
+		tilesAcross = parent.tilesAcross;
+		field = parent.field;
+		crumbsQuant = parent.crumbsQuant;
+		crumbTrails = parent.crumbTrails;
+		entityStamps = parent.entityStamps;
+		crumbStamps = parent.crumbStamps;
+		rowStamps = parent.rowStamps;
+		rowsShared = true;
+		epoch = Epoch.next();
+		forked = true;
+		signalStrength = parent.signalStrength;
+		signalShared = parent.signalShared;
+		signalForked = !signalShared;
+		flowField = parent.flowField;
+		rockBoard = parent.rockBoard.fork();
+		mothershipBoard = parent.mothershipBoard.fork();
+		crumbBoard = parent.crumbBoard.fork();
+		occupancyBoard = parent.occupancyBoard.fork();
+		changes = parent.changes;
+		random = parent.random instanceof RandomStream ? ((RandomStream) parent.random).copy() : parent.random;
+		locations = parent.locations;
+		maxCrumbs = parent.maxCrumbs;
+		trailClusters = parent.trailClusters;
+	}
+
+	/**
+	 * Fork this field: make a copy that shares every row with it until one of
+	 * the two changes the row. Costs the same however large the field is. The
+	 * fork has a copy of the field's random stream and no listeners.
+	 *
+	 * The fork holds the same entities. Rocks, obstacles and motherships never
+	 * change, but vehicles do, so a fork that is to run on its own needs copies
+	 * of them put in their place with replace(); see Simulator.fork().
+	 *
+	 * @return The fork
+	 */
+	Field fork() {
+		Field f = new Field(this);
+		rowsShared = true;
+		epoch = Epoch.next();
+		forked = true;
+		signalForked = !signalShared;
+		return f;
+	}
+
+	/**
+	 * Make empty tiles, stamped as this field's own in a new epoch.
+	 */
+	private void makeTiles() {
+		tilesAcross = (width + TILE - 1) >> TILE_SHIFT;
+		field = new Entity[depth][tilesAcross][TILE];
+		crumbsQuant = new int[depth][tilesAcross][TILE];
+		epoch = Epoch.next();
+		entityStamps = new int[depth][tilesAcross];
+		crumbStamps = new int[depth][tilesAcross];
+		rowStamps = new int[depth];
 		for (int row = 0; row < depth; row++) {
-			for (int col = 0; col < width; col++) {
-				crumbsQuant[row][col] = 0;
-				signalStrength[row][col] = 0;
+			Arrays.fill(entityStamps[row], epoch);
+			Arrays.fill(crumbStamps[row], epoch);
+		}
+		Arrays.fill(rowStamps, epoch);
+		rowsShared = false;
+	}
+
+	/**
+	 * Make a row's arrays of tiles and stamps this field's own, if they are
+	 * shared with a fork. The tiles themselves may still be shared.
+	 */
+	private void ownRow(int row) {
+		if (rowStamps[row] != epoch) {
+			if (rowsShared) {
+				field = field.clone();
+				crumbsQuant = crumbsQuant.clone();
+				if (crumbTrails != null) {
+					crumbTrails = crumbTrails.clone();
+				}
+				entityStamps = entityStamps.clone();
+				crumbStamps = crumbStamps.clone();
+				rowStamps = rowStamps.clone();
+				rowsShared = false;
+			}
+			field[row] = field[row].clone();
+			crumbsQuant[row] = crumbsQuant[row].clone();
+			if (crumbTrails != null) {
+				crumbTrails[row] = crumbTrails[row].clone();
 			}
+			entityStamps[row] = entityStamps[row].clone();
+			crumbStamps[row] = crumbStamps[row].clone();
+			rowStamps[row] = epoch;
+		}
+	}
+
+	/**
+	 * @return A tile of entities this field alone holds, copied first if it is
+	 *         shared with a fork.
+	 */
+	private Entity[] entityTile(int row, int col) {
+		int w = col >> TILE_SHIFT;
+		if (forked && entityStamps[row][w] != epoch) {
+			ownRow(row);
+			field[row][w] = field[row][w].clone();
+			entityStamps[row][w] = epoch;
 		}
+		return field[row][w];
+	}
+
+	/**
+	 * @return A tile of crumbs this field alone holds, copied first if it is
+	 *         shared with a fork. The tile of trails goes with it.
+	 */
+	private int[] crumbTile(int row, int col) {
+		int w = col >> TILE_SHIFT;
+		if (forked && crumbStamps[row][w] != epoch) {
+			ownRow(row);
+			crumbsQuant[row][w] = crumbsQuant[row][w].clone();
+			if (crumbTrails != null) {
+				crumbTrails[row][w] = crumbTrails[row][w].clone();
+			}
+			crumbStamps[row][w] = epoch;
+		}
+		return crumbsQuant[row][w];
+	}
+
+	/**
+	 * @return A tile of trails this field alone holds, made or copied first if
+	 *         need be.
+	 */
+	private int[] trailTile(int row, int col) {
+		if (crumbTrails == null) {
+			// Every tile of a new array is this field's own
+			crumbTrails = new int[depth][tilesAcross][TILE];
+		}
+		crumbTile(row, col);
+		return crumbTrails[row][col >> TILE_SHIFT];
+	}
 
+	/**
+	 * Put an entity in place of the one at a location without telling anyone,
+	 * e.g. a vehicle in place of the one it was copied from in a fork. The
+	 * two must be of the same type.
+	 */
+	void replace(int row, int col, Entity entity) {
+		entityTile(row, col)[col & TILE - 1] = entity;
 	}
 
 	public void setSignalStrength(int row, int col, int signal) {
+		checkSignalOwned();
 		signalStrength[row][col] = signal;
+		flowField = null;
+	}
+
+	/**
+	 * Set a whole row of the signal in one flat pass: the signal at column c
+	 * becomes base - terms[c].
+	 */
+	void setSignalRow(int row, int base, int[] terms) {
+		checkSignalOwned();
+		GridKernels.subtract(base, terms, signalStrength[row], width);
+		flowField = null;
+	}
+
+	/**
+	 * @param maxCrumbs
+	 *            The most crumbs a location can hold, from 1 to 127 so that a
+	 *            count still fits the byte it is sent as between shards
+	 * @throws IllegalArgumentException
+	 *             if the limit is out of range
+	 */
+	public void setMaxCrumbs(int maxCrumbs) {
+		if (maxCrumbs < 1 || maxCrumbs > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("The most crumbs a location holds must be from 1 to 127: " + maxCrumbs);
+		}
+		this.maxCrumbs = maxCrumbs;
+	}
+
+	public int getMaxCrumbs() {
+		return maxCrumbs;
+	}
+
+	private void checkSignalOwned() {
+		if (signalShared) {
+			throw new IllegalStateException("The signal of a shared world cannot be changed");
+		}
+		if (signalForked) {
+			int[][] copy = new int[depth][];
+			for (int row = 0; row < depth; row++) {
+				copy[row] = signalStrength[row].clone();
+			}
+			signalStrength = copy;
+			signalForked = false;
+		}
+	}
+
+	/**
+	 * @return The signal, by row, for building a WorldTemplate.
+	 */
+	int[][] signalRows() {
+		return signalStrength;
+	}
+
+	/**
+	 * @return The flow field, or null if it has not been built.
+	 */
+	FlowField flowField() {
+		return flowField;
+	}
+
+	/**
+	 * @return The cells' Locations, row by row, null for those not asked for
+	 *         yet.
+	 */
+	Location[] locations() {
+		return locations;
+	}
+
+	/**
+	 * @return Every cell's Location, row by row, made now if need be.
+	 */
+	Location[] allLocations() {
+		for (int row = 0; row < depth; row++) {
+			for (int col = 0; col < width; col++) {
+				locationAt(row, col);
+			}
+		}
+		return locations;
 	}
 
 	public int getSignalStrength(int row, int col) {
@@ -59,15 +423,60 @@ public class Field {
 		return getSignalStrength(loc.getRow(), loc.getCol());
 	}
 
+	/**
+	 * Find the free neighbour of a location with the strongest or weakest signal.
+	 * The ranking of the neighbours is looked up rather than recomputed, so this
+	 * only has to check which of them are free.
+	 * 
+	 * @param location
+	 *            The location to move from.
+	 * @param up
+	 *            true for the strongest signal, false for the weakest.
+	 * @param rand
+	 *            The stream used to choose between neighbours of equal signal.
+	 * @return The neighbour, or null if all neighbours are occupied.
+	 */
+	public Location gradientStep(Location location, boolean up, Random rand) {
+		prepareGradient();
+		return flowField.step(this, location, up, rand);
+	}
+
+	/**
+	 * Build the flow field now rather than on the first gradient step, e.g.
+	 * before vehicles start acting on threads of their own.
+	 */
+	public void prepareGradient() {
+		if (flowField == null) {
+			flowField = new FlowField(this);
+		}
+	}
+
 	/**
 	 * Empty the field.
 	 */
 	public void clear() {
 		for (int row = 0; row < depth; row++) {
+			for (int w = 0; forked && w < tilesAcross; w++) {
+				if (entityStamps[row][w] != epoch) {
+					// A tile shared with a fork is replaced, not written
+					ownRow(row);
+					field[row][w] = new Entity[TILE];
+					entityStamps[row][w] = epoch;
+				}
+			}
+			if (GridKernels.enabled()) {
+				for (int w = 0; w < tilesAcross; w++) {
+					Arrays.fill(field[row][w], null);
+				}
+				continue;
+			}
 			for (int col = 0; col < width; col++) {
-				field[row][col] = null;
+				field[row][col >> TILE_SHIFT][col & TILE - 1] = null;
 			}
 		}
+		rockBoard = new RowBitboard(depth, width);
+		mothershipBoard = new RowBitboard(depth, width);
+		occupancyBoard = new RowBitboard(depth, width);
 	}
 
 	/**
@@ -82,7 +491,7 @@ public class Field {
 	 *            Column coordinate of the location.
 	 */
 	public void place(Entity entity, int row, int col) {
-		place(entity, new Location(row, col));
+		place(entity, locationAt(row, col));
 	}
 
 	/**
@@ -95,7 +504,15 @@ public class Field {
 	 *            Where to place the entity.
 	 */
 	public void place(Entity entity, Location location) {
-		field[location.getRow()][location.getCol()] = entity;
+		int row = location.getRow();
+		int col = location.getCol();
+		untrack(getObjectAt(row, col), row, col);
+		entityTile(row, col)[col & TILE - 1] = entity;
+		track(entity, row, col);
+		changes++;
+		for (ChangeListener l : listeners) {
+			l.cellChanged(this, row, col);
+		}
 	}
 
 	/**
@@ -106,7 +523,166 @@ public class Field {
 	 *            The location to be cleared.
 	 */
 	public void clearLocation(Location location) {
-		field[location.getRow()][location.getCol()] = null;
+		int row = location.getRow();
+		int col = location.getCol();
+		untrack(getObjectAt(row, col), row, col);
+		entityTile(row, col)[col & TILE - 1] = null;
+		changes++;
+		for (ChangeListener l : listeners) {
+			l.cellChanged(this, row, col);
+			l.locationCleared(this, row, col);
+		}
+	}
+
+	/**
+	 * @param listener
+	 *            Told about changes from now on
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listeners = Arrays.copyOf(listeners, listeners.length + 1);
+		listeners[listeners.length - 1] = listener;
+	}
+
+	/**
+	 * @param listener
+	 *            No longer told about changes
+	 */
+	public void removeChangeListener(ChangeListener listener) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				ChangeListener[] fewer = new ChangeListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, fewer, 0, i);
+				System.arraycopy(listeners, i + 1, fewer, i, fewer.length - i);
+				listeners = fewer;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Set the bit of an entity's type, if that type is sensed at a distance.
+	 */
+	private void track(Entity entity, int row, int col) {
+		if (entity != null) {
+			occupancyBoard.set(row, col);
+		}
+		RowBitboard board = boardFor(entity);
+		if (board != null) {
+			board.set(row, col);
+		}
+	}
+
+	/**
+	 * Clear the bit of an entity's type, if that type is sensed at a distance.
+	 */
+	private void untrack(Entity entity, int row, int col) {
+		if (entity != null) {
+			occupancyBoard.clear(row, col);
+		}
+		RowBitboard board = boardFor(entity);
+		if (board != null) {
+			board.clear(row, col);
+		}
+	}
+
+	private RowBitboard boardFor(Entity entity) {
+		if (entity instanceof Rock) {
+			return rockBoard;
+		}
+		if (entity instanceof Mothership) {
+			return mothershipBoard;
+		}
+		return null;
+	}
+
+	/**
+	 * Find the nearest rock or mothership within a radius of a location, counting
+	 * distance in king moves round the torus. The cost grows with the radius,
+	 * not with its square.
+	 * 
+	 * @param type
+	 *            Rock.class or Mothership.class
+	 * @param location
+	 *            The location to search around.
+	 * @param radius
+	 *            How far to search, at most RowBitboard.MAX_RADIUS.
+	 * @param rand
+	 *            The stream used to choose between equally near entities.
+	 * @return The location of the nearest one, or null if there is none in range.
+	 */
+	public Location senseNearest(Class<? extends Entity> type, Location location, int radius, Random rand) {
+		RowBitboard board = type == Rock.class ? rockBoard : type == Mothership.class ? mothershipBoard : null;
+		if (board == null) {
+			throw new IllegalArgumentException("Cannot sense " + type.getSimpleName() + " at a distance");
+		}
+		return nearestOn(board, location, radius, rand, null);
+	}
+
+	/**
+	 * Find the nearest location holding crumbs within a radius of a location,
+	 * the location itself included.
+	 * 
+	 * @param location
+	 *            The location to search around.
+	 * @param radius
+	 *            How far to search, at most RowBitboard.MAX_RADIUS.
+	 * @param rand
+	 *            The stream used to choose between equally near locations.
+	 * @return The nearest location with crumbs, or null if there is none in range.
+	 */
+	public Location senseNearestCrumbs(Location location, int radius, Random rand) {
+		return nearestOn(crumbBoard, location, radius, rand, trailClusters == null ? null : liveCrumbs);
+	}
+
+	/**
+	 * Tell whether senseNearest would find anything, without choosing between
+	 * what it finds.
+	 * 
+	 * @return true if a rock or mothership is within the radius of the location.
+	 */
+	public boolean senses(Class<? extends Entity> type, Location location, int radius) {
+		RowBitboard board = type == Rock.class ? rockBoard : type == Mothership.class ? mothershipBoard : null;
+		if (board == null) {
+			throw new IllegalArgumentException("Cannot sense " + type.getSimpleName() + " at a distance");
+		}
+		return board.any(location.getRow(), location.getCol(), radius);
+	}
+
+	/**
+	 * @return true if a location within the radius of the given one, itself
+	 *         included, holds crumbs.
+	 */
+	public boolean sensesCrumbs(Location location, int radius) {
+		return crumbBoard.any(location.getRow(), location.getCol(), radius, trailClusters == null ? null : liveCrumbs);
+	}
+
+	/**
+	 * @return The bits of a window of the crumb board whose crumbs lead to a
+	 *         cluster with rocks left, or to none in particular.
+	 */
+	private long keepLiveCrumbs(int row, int col, int w, long bits) {
+		long kept = bits;
+		for (long rest = bits; rest != 0; rest &= rest - 1) {
+			int i = Long.numberOfTrailingZeros(rest);
+			if (!isLiveTrail(row, Math.floorMod(col - w + i, width))) {
+				kept &= ~(1L << i);
+			}
+		}
+		return kept;
+	}
+
+	private Location nearestOn(RowBitboard board, Location location, int radius, Random rand, RowBitboard.Mask mask) {
+		long cell = board.nearest(location.getRow(), location.getCol(), radius, rand, mask);
+		return cell < 0 ? null : locationAt((int) (cell / width), (int) (cell % width));
+	}
+
+	/**
+	 * @return The number of king moves between two locations round the torus.
+	 */
+	public int distance(Location a, Location b) {
+		int dr = Math.abs(a.getRow() - b.getRow());
+		int dc = Math.abs(a.getCol() - b.getCol());
+		return Math.max(Math.min(dr, depth - dr), Math.min(dc, width - dc));
 	}
 
 	/**
@@ -130,7 +706,7 @@ public class Field {
 	 * @return The entity at the given location, or null if there is none.
 	 */
 	public Entity getObjectAt(int row, int col) {
-		return field[row][col];
+		return field[row][col >> TILE_SHIFT][col & TILE - 1];
 	}
 
 	/**
@@ -143,19 +719,38 @@ public class Field {
 	 *         list if all locations around are full.
 	 */
 	public ArrayList<Location> getAllfreeAdjacentLocations(Location location) {
-		Iterator<Location> adjacent = adjacentLocations(location);
 		ArrayList<Location> freeLocations = new ArrayList<Location>();
-		while (adjacent.hasNext()) {
-			Location next = (Location) adjacent.next();
-			if (field[next.getRow()][next.getCol()] == null) {
-				freeLocations.add(next);
+		int row = location.getRow();
+		int col = location.getCol();
+		int wr = Math.min(1, (depth - 1) / 2);
+		int wc = Math.min(1, (width - 1) / 2);
+		for (int dr = -wr; dr <= wr; dr++) {
+			int r = Math.floorMod(row + dr, depth);
+			for (long free = freeBits(r, col, wc); free != 0; free &= free - 1) {
+				int c = Math.floorMod(col - wc + Long.numberOfTrailingZeros(free), width);
+				freeLocations.add(new Location(r, c));
 			}
 		}
+		Collections.shuffle(freeLocations, random);
 		return freeLocations;
 	}
 
 	public ArrayList<Location> getAllAdjacentLocations(Location location) {
-		Iterator<Location> adjacent = adjacentLocations(location);
+		return getAllAdjacentLocations(location, random);
+	}
+
+	/**
+	 * Return all locations adjacent to the given location, shuffled with the
+	 * given random stream.
+	 * 
+	 * @param location
+	 *            The location from which to generate an adjacency.
+	 * @param rand
+	 *            The stream to shuffle with, normally the caller's own.
+	 * @return A list of the locations around, in random order.
+	 */
+	public ArrayList<Location> getAllAdjacentLocations(Location location, Random rand) {
+		Iterator<Location> adjacent = adjacentLocations(location, 1, rand);
 		ArrayList<Location> locations = new ArrayList<Location>();
 		while (adjacent.hasNext()) {
 			Location next = (Location) adjacent.next();
@@ -175,19 +770,84 @@ public class Field {
 	 *         the location parameter, or null if all locations around are full.
 	 */
 	public Location freeAdjacentLocation(Location location) {
-		Iterator<Location> adjacent = adjacentLocations(location);
-		while (adjacent.hasNext()) {
-			Location next = (Location) adjacent.next();
-			if (field[next.getRow()][next.getCol()] == null) {
-				return next;
+		return freeAdjacentLocation(location, random);
+	}
+
+	/**
+	 * Try to find a free location that is adjacent to the given location, trying
+	 * the neighbours in an order drawn from the given random stream.
+	 * 
+	 * @param location
+	 *            The location from which to generate an adjacency.
+	 * @param rand
+	 *            The stream to shuffle with, normally the caller's own.
+	 * @return A valid location within the grid area, or null if all locations
+	 *         around are full.
+	 */
+	public Location freeAdjacentLocation(Location location, Random rand) {
+		return randomFreeLocation(location, 1, rand);
+	}
+
+	/**
+	 * @return true if the location or one of its neighbours is free.
+	 */
+	public boolean hasFreeAdjacentLocation(Location location) {
+		int wr = Math.min(1, (depth - 1) / 2);
+		int wc = Math.min(1, (width - 1) / 2);
+		for (int dr = -wr; dr <= wr; dr++) {
+			if (freeBits(Math.floorMod(location.getRow() + dr, depth), location.getCol(), wc) != 0) {
+				return true;
 			}
 		}
-		// check whether current location is free
-		if (field[location.getRow()][location.getCol()] == null) {
-			return location;
-		} else {
+		return false;
+	}
+
+	/**
+	 * Pick a free location uniformly at random from the square of the given radius
+	 * around a location, the location itself included. The free cells of each row
+	 * of the square come out of the occupancy bitboard as one mask, so this costs
+	 * two passes over 2 * radius + 1 rows and no per-cell tests.
+	 * 
+	 * @param location
+	 *            The centre of the square.
+	 * @param radius
+	 *            The radius of the square, at most RowBitboard.MAX_RADIUS.
+	 * @param rand
+	 *            The stream to choose with.
+	 * @return A free location, or null if the whole square is occupied.
+	 */
+	public Location randomFreeLocation(Location location, int radius, Random rand) {
+		int row = location.getRow();
+		int col = location.getCol();
+		int wr = Math.min(radius, (depth - 1) / 2);
+		int wc = Math.min(radius, (width - 1) / 2);
+		int total = 0;
+		for (int dr = -wr; dr <= wr; dr++) {
+			total += Long.bitCount(freeBits(Math.floorMod(row + dr, depth), col, wc));
+		}
+		if (total == 0) {
 			return null;
 		}
+		int k = rand.nextInt(total);
+		for (int dr = -wr; dr <= wr; dr++) {
+			int r = Math.floorMod(row + dr, depth);
+			long free = freeBits(r, col, wc);
+			int count = Long.bitCount(free);
+			if (k < count) {
+				int c = Math.floorMod(col - wc + RowBitboard.selectBit(free, k), width);
+				return locationAt(r, c);
+			}
+			k -= count;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The free cells of columns col - w to col + w of a row, bit i
+	 *         standing for column col - w + i.
+	 */
+	private long freeBits(int row, int col, int w) {
+		return ~occupancyBoard.window(row, col, w) & ((1L << (2 * w + 1)) - 1);
 	}
 
 	/*
@@ -195,14 +855,37 @@ public class Field {
 	 * @return A copy of this field
 	 */
 	public Field cloneField() {
-		Field clone = new Field(this.getDepth(), this.getWidth());
+		Field clone = new Field(this.getDepth(), this.getWidth(), this.random);
 		for (int row = 0; row < depth; row++) {
+			if (this.crumbTrails != null) {
+				for (int w = 0; w < tilesAcross; w++) {
+					System.arraycopy(this.crumbTrails[row][w], 0, clone.trailTile(row, w << TILE_SHIFT), 0, TILE);
+				}
+			}
+			if (GridKernels.enabled()) {
+				for (int w = 0; w < tilesAcross; w++) {
+					System.arraycopy(this.field[row][w], 0, clone.field[row][w], 0, TILE);
+					System.arraycopy(this.crumbsQuant[row][w], 0, clone.crumbsQuant[row][w], 0, TILE);
+				}
+				System.arraycopy(this.signalStrength[row], 0, clone.signalStrength[row], 0, width);
+				continue;
+			}
 			for (int col = 0; col < width; col++) {
-				clone.field[row][col] = this.field[row][col];
-				clone.crumbsQuant[row][col] = this.crumbsQuant[row][col];
+				int w = col >> TILE_SHIFT, i = col & TILE - 1;
+				clone.field[row][w][i] = this.field[row][w][i];
+				clone.crumbsQuant[row][w][i] = this.crumbsQuant[row][w][i];
 				clone.signalStrength[row][col] = this.signalStrength[row][col];
 			}
 		}
+		clone.flowField = this.flowField;
+		clone.locations = this.locations;
+		clone.rockBoard = this.rockBoard.copy();
+		clone.mothershipBoard = this.mothershipBoard.copy();
+		clone.crumbBoard = this.crumbBoard.copy();
+		clone.occupancyBoard = this.occupancyBoard.copy();
+		clone.changes = this.changes;
+		clone.maxCrumbs = this.maxCrumbs;
+		clone.trailClusters = this.trailClusters;
 		return clone;
 	}
 
@@ -219,7 +902,7 @@ public class Field {
 	 * @return An iterator over locations adjacent to that given.
 	 */
 	private Iterator<Location> adjacentLocations(Location location) {
-		return adjacentLocations(location, 1);
+		return adjacentLocations(location, 1, random);
 	}
 
 	/**
@@ -232,7 +915,7 @@ public class Field {
 	 * @return boolean.
 	 */
 	public <T> boolean isNeighbourTo(Location loc, Class<T> c) {
-		Iterator<Location> it = adjacentLocations(loc, 1);
+		Iterator<Location> it = adjacentLocations(loc, 1, random);
 		while (it.hasNext()) {
 			Entity e = getObjectAt(it.next());
 			if (e != null && e.getClass() == c)
@@ -242,7 +925,7 @@ public class Field {
 	}
 
 	public <T> Location getNeighbour(Location loc, Class<T> c) {
-		Iterator<Location> it = adjacentLocations(loc, 1);
+		Iterator<Location> it = adjacentLocations(loc, 1, random);
 		while (it.hasNext()) {
 			Location adjLoc = it.next();
 			Entity e = getObjectAt(adjLoc);
@@ -265,9 +948,11 @@ public class Field {
 	 *            The location from which to generate adjacencies.
 	 * @param w
 	 *            The "manhattan" radius of the neighbourhood.
+	 * @param rand
+	 *            The random stream used for the shuffle.
 	 * @return An iterator over locations adjacent to that given.
 	 */
-	private Iterator<Location> adjacentLocations(Location location, int w) {
+	private Iterator<Location> adjacentLocations(Location location, int w, Random rand) {
 		int row = location.getRow();
 		int col = location.getCol();
 		LinkedList<Location> locations = new LinkedList<Location>();
@@ -293,21 +978,111 @@ public class Field {
 			}
 			// }
 		}
-		Random rand = ModelConstants.random;
 		Collections.shuffle(locations, rand);
 		return locations.iterator();
 	}
 
 	public void reduceCrumbs() {
+		for (ChangeListener l : listeners) {
+			l.crumbsReduced(this);
+		}
+		if (GridKernels.enabled()) {
+			reduceCrumbsByRow();
+			return;
+		}
 		for (int row = 0; row < depth; row++) {
 			for (int col = 0; col < width; col++) {
-				if (crumbsQuant[row][col] > 0) {
-					crumbsQuant[row][col]--;
+				if (crumbsQuant[row][col >> TILE_SHIFT][col & TILE - 1] > 0) {
+					int[] quantities = crumbTile(row, col);
+					quantities[col & TILE - 1]--;
+					if (quantities[col & TILE - 1] == 0) {
+						crumbBoard.clear(row, col);
+					}
+					changes++;
+					for (ChangeListener l : listeners) {
+						l.cellChanged(this, row, col);
+						l.crumbsChanged(this, row, col, -1);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * reduceCrumbs as a flat pass over each tile that has crumbs. A tile spans
+	 * the columns of one word of the crumb board, which, read before the pass,
+	 * says which locations changed.
+	 */
+	private void reduceCrumbsByRow() {
+		int words = crumbBoard.wordsPerRow();
+		for (int row = 0; row < depth; row++) {
+			for (int w = 0; w < words; w++) {
+				long bits = crumbBoard.word(row, w);
+				if (bits == 0) {
+					continue;
+				}
+				int[] quantities = crumbTile(row, w << TILE_SHIFT);
+				GridKernels.decrementToZero(quantities, TILE);
+				for (; bits != 0; bits &= bits - 1) {
+					int col = (w << 6) + Long.numberOfTrailingZeros(bits);
+					if (quantities[col & TILE - 1] == 0) {
+						crumbBoard.clear(row, col);
+					}
+					changes++;
+					for (ChangeListener l : listeners) {
+						l.cellChanged(this, row, col);
+						l.crumbsChanged(this, row, col, -1);
+					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * The shade of red the view gives each location of a row for its crumbs.
+	 *
+	 * @param out
+	 *            Filled with one shade per column, 0 to 255
+	 */
+	void crumbShades(int row, int[] out) {
+		for (int w = 0; w < tilesAcross; w++) {
+			int from = w << TILE_SHIFT;
+			GridKernels.crumbShades(crumbsQuant[row][w], out, from, Math.min(TILE, width - from));
+		}
+	}
+
+	/**
+	 * Locations are immutable, so one instance per cell can be handed out to
+	 * everyone who asks.
+	 * 
+	 * @return The location of a cell.
+	 */
+	public Location locationAt(int row, int col) {
+		int i = row * width + col;
+		Location l = locations[i];
+		if (l == null) {
+			l = new Location(row, col);
+			locations[i] = l;
+		}
+		return l;
+	}
+
+	/**
+	 * @return The number of times an entity has been placed or cleared, or a
+	 *         crumb count changed, since the field was made. Equal counts mean
+	 *         nothing has happened in between.
+	 */
+	public long getChangeCount() {
+		return changes;
+	}
+
+	/**
+	 * @return The random generator used to shuffle neighbourhoods.
+	 */
+	Random getRandom() {
+		return random;
+	}
+
 	/**
 	 * @return The depth of the field.
 	 */
@@ -330,18 +1105,151 @@ public class Field {
 	 * @return The number of crumbs at the given location.
 	 */
 	public int getCrumbQuantityAt(Location l) {
-		return this.crumbsQuant[l.getRow()][l.getCol()];
+		int col = l.getCol();
+		return crumbsQuant[l.getRow()][col >> TILE_SHIFT][col & TILE - 1];
+	}
+
+	/**
+	 * @return true if there are crumbs at a location, read from the crumb
+	 *         bitboard, which is far more likely to be in the cache than the
+	 *         counts.
+	 */
+	boolean hasCrumbs(int row, int col) {
+		return crumbBoard.get(row, col);
+	}
+
+	/**
+	 * Tag the crumbs dropped from now on with the cluster their trail leads
+	 * to, and leave those of clusters picked clean out of sensing: a whole
+	 * trail dies in O(1), the moment its cluster's last rock is picked up,
+	 * without a pass over the field. The crumbs themselves stay until they
+	 * decay.
+	 *
+	 * @param clusters
+	 *            The rocks each cluster has left, or null to sense every crumb
+	 *            again
+	 */
+	void followTrails(ClusterIndex clusters) {
+		trailClusters = clusters;
+	}
+
+	/**
+	 * @return The cluster the crumbs at a location lead to, or -1 if none.
+	 */
+	int getCrumbTrail(int row, int col) {
+		return crumbTrails == null ? -1 : crumbTrails[row][col >> TILE_SHIFT][col & TILE - 1] - 1;
+	}
+
+	/**
+	 * Set the cluster the crumbs at a location lead to outright, e.g. when a
+	 * step is undone.
+	 *
+	 * @param cluster
+	 *            The cluster, or -1 for none
+	 */
+	void setCrumbTrail(int row, int col, int cluster) {
+		if (getCrumbTrail(row, col) != cluster) {
+			trailTile(row, col)[col & TILE - 1] = cluster + 1;
+		}
+	}
+
+	/**
+	 * @return Whether the crumbs at a location, if any, count: they lead to a
+	 *         cluster with rocks left or to none in particular, or trails are
+	 *         not followed.
+	 */
+	boolean isLiveTrail(int row, int col) {
+		if (trailClusters == null) {
+			return true;
+		}
+		int trail = getCrumbTrail(row, col);
+		return trail < 0 || !trailClusters.isExhausted(trail);
+	}
+
+	/**
+	 * @return Whether a location holds crumbs that count; see isLiveTrail().
+	 */
+	boolean hasLiveCrumbs(Location l) {
+		return getCrumbQuantityAt(l) > 0 && isLiveTrail(l.getRow(), l.getCol());
+	}
+
+	/**
+	 * Set the number of crumbs at a location outright, e.g. to copy what a
+	 * neighbouring shard holds into this field's halo.
+	 */
+	public void setCrumbQuantity(int row, int col, int q) {
+		int before = crumbsQuant[row][col >> TILE_SHIFT][col & TILE - 1];
+		if (before == q) {
+			return;
+		}
+		crumbTile(row, col)[col & TILE - 1] = q;
+		if (q > 0) {
+			crumbBoard.set(row, col);
+		} else {
+			crumbBoard.clear(row, col);
+		}
+		changes++;
+		for (ChangeListener listener : listeners) {
+			listener.cellChanged(this, row, col);
+			listener.crumbsChanged(this, row, col, q - before);
+		}
 	}
 
 	public void pickUpACrumb(Location l) {
 		if (this.getCrumbQuantityAt(l) > 0) {
-			this.crumbsQuant[l.getRow()][l.getCol()]--;
+			int[] quantities = crumbTile(l.getRow(), l.getCol());
+			quantities[l.getCol() & TILE - 1]--;
+			if (quantities[l.getCol() & TILE - 1] == 0) {
+				crumbBoard.clear(l.getRow(), l.getCol());
+			}
+			changes++;
+			for (ChangeListener listener : listeners) {
+				listener.cellChanged(this, l.getRow(), l.getCol());
+				listener.crumbsChanged(this, l.getRow(), l.getCol(), -1);
+			}
 		}
 	}
 
+	/**
+	 * @return true if dropping q crumbs at the location would not take it over
+	 *         the limit, so dropCrumbs would change it.
+	 */
+	public boolean canDropCrumbs(Location l, int q) {
+		return q > 0 && this.getCrumbQuantityAt(l) < maxCrumbs - q;
+	}
+
 	public void dropCrumbs(Location l, int q) {
-		if (this.getCrumbQuantityAt(l) < 10 - q) {
-			this.crumbsQuant[l.getRow()][l.getCol()] += q;
+		dropCrumbs(l, q, -1);
+	}
+
+	/**
+	 * Drop crumbs on a trail to a cluster. The location's crumbs then lead to
+	 * that cluster, if trails are followed; see followTrails().
+	 *
+	 * @param trail
+	 *            The cluster, or -1 for none in particular
+	 */
+	void dropCrumbs(Location l, int q, int trail) {
+		if (this.getCrumbQuantityAt(l) < maxCrumbs - q) {
+			crumbTile(l.getRow(), l.getCol())[l.getCol() & TILE - 1] += q;
+			if (q > 0) {
+				int row = l.getRow(), col = l.getCol();
+				int before = getCrumbTrail(row, col);
+				boolean retagged = trailClusters != null && trail >= 0 && trail != before;
+				if (retagged) {
+					trailTile(row, col)[col & TILE - 1] = trail + 1;
+				}
+				crumbBoard.set(row, col);
+				changes++;
+				for (ChangeListener listener : listeners) {
+					listener.cellChanged(this, row, col);
+					listener.crumbsDropped(this, row, col);
+					listener.crumbsChanged(this, row, col, q);
+					if (retagged) {
+						listener.trailChanged(this, row, col, before);
+					}
+				}
+			}
 		}
 	}
 }
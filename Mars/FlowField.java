@@ -0,0 +1,137 @@
+package Mars;
+
+import java.util.Random;
+
+/**
+ * The gradient of the mothership signal, precomputed for every cell. For each
+ * cell the eight neighbours are ranked by signal strength once, when the
+ * signal is set, so a vehicle moving up or down the gradient only has to walk
+ * down the ranking until it meets a free neighbour. The signal only changes
+ * when the mothership lands, so the table is built far less often than it is
+ * read.
+ *
+ * Each cell's ranking is packed into one int: bits 3k to 3k+2 hold the
+ * direction of rank k (rank 0 has the strongest signal), and bit 23+k is set
+ * when rank k has the same signal as rank k-1. Neighbours of equal signal are
+ * chosen between at random, as they were when neighbourhoods were shuffled.
+ */
+class FlowField {
+	// Row and column offsets of the eight directions.
+	static final int[] DR = { -1, -1, -1, 0, 0, 1, 1, 1 };
+	static final int[] DC = { -1, 0, 1, -1, 1, -1, 0, 1 };
+
+	private final int depth, width;
+	// The packed ranking of every cell, indexed by row * width + col.
+	private final int[] ranking;
+
+	/**
+	 * Rank the neighbours of every cell of a field by its current signal.
+	 *
+	 * @param f
+	 *            The field holding the signal
+	 */
+	public FlowField(Field f) {
+		depth = f.getDepth();
+		width = f.getWidth();
+		ranking = new int[depth * width];
+		int[] dirs = new int[8];
+		int[] signals = new int[8];
+		for (int row = 0; row < depth; row++) {
+			for (int col = 0; col < width; col++) {
+				// Insertion sort by decreasing signal, ties kept in direction order.
+				for (int d = 0; d < 8; d++) {
+					int s = f.getSignalStrength(wrap(row + DR[d], depth), wrap(col + DC[d], width));
+					int k = d;
+					while (k > 0 && signals[k - 1] < s) {
+						signals[k] = signals[k - 1];
+						dirs[k] = dirs[k - 1];
+						k--;
+					}
+					signals[k] = s;
+					dirs[k] = d;
+				}
+				int packed = 0;
+				for (int k = 0; k < 8; k++) {
+					packed |= dirs[k] << (3 * k);
+					if (k > 0 && signals[k] == signals[k - 1]) {
+						packed |= 1 << (23 + k);
+					}
+				}
+				ranking[row * width + col] = packed;
+			}
+		}
+	}
+
+	/**
+	 * Find the free neighbour with the strongest (up) or weakest (down) signal.
+	 *
+	 * @param f
+	 *            The field to check occupancy in
+	 * @param from
+	 *            The location to move from
+	 * @param up
+	 *            true to climb towards the mothership, false to move away
+	 * @param rand
+	 *            The stream used to choose between neighbours of equal signal
+	 * @return The neighbour to move to, or null if all neighbours are taken.
+	 */
+	public Location step(Field f, Location from, boolean up, Random rand) {
+		int row = from.getRow();
+		int col = from.getCol();
+		int packed = ranking[row * width + col];
+
+		// Walk the ranking from the preferred end to the first free neighbour.
+		int first = -1;
+		for (int i = 0; i < 8; i++) {
+			int k = up ? i : 7 - i;
+			if (isFree(f, row, col, direction(packed, k))) {
+				first = k;
+				break;
+			}
+		}
+		if (first < 0) {
+			return null;
+		}
+
+		// Count the free neighbours sharing that signal and pick one of them.
+		int step = up ? 1 : -1;
+		int free = 0;
+		int chosen = first;
+		for (int k = first; k >= 0 && k < 8 && (k == first || tied(packed, up ? k : k + 1)); k += step) {
+			if (isFree(f, row, col, direction(packed, k))) {
+				free++;
+				// Keep each candidate with probability 1/free.
+				if (free == 1 || rand.nextInt(free) == 0) {
+					chosen = k;
+				}
+			}
+		}
+		int d = direction(packed, chosen);
+		return f.locationAt(wrap(row + DR[d], depth), wrap(col + DC[d], width));
+	}
+
+	private boolean isFree(Field f, int row, int col, int d) {
+		return f.getObjectAt(wrap(row + DR[d], depth), wrap(col + DC[d], width)) == null;
+	}
+
+	private static int direction(int packed, int rank) {
+		return (packed >>> (3 * rank)) & 7;
+	}
+
+	/**
+	 * @return true if rank k has the same signal as rank k-1.
+	 */
+	private static boolean tied(int packed, int k) {
+		return k > 0 && k < 8 && (packed & (1 << (23 + k))) != 0;
+	}
+
+	private static int wrap(int i, int n) {
+		if (i < 0) {
+			return i + n;
+		}
+		if (i >= n) {
+			return i - n;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,164 @@
+package Mars;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Turns a running simulation into frames for remote viewers. It listens to the
+ * field and notes every location whose entity or crumbs change, so a delta
+ * frame lists just those locations; a keyframe holds the whole field,
+ * compressed. Frames are JSON, each location described by its code (see
+ * codeOf) and its number of crumbs:
+ *
+ * <pre>
+ * delta:    {"step":12,"delivered":3,"cells":[index,code,crumbs, ...]}
+ * keyframe: {"step":12,"delivered":3,"depth":100,"width":100,"cells":"..."}
+ * </pre>
+ *
+ * where index is row * width + col and the keyframe's cells are two bytes per
+ * location, code then crumbs, zlib compressed and base64 encoded.
+ */
+class FrameEncoder implements Field.ChangeListener {
+	// The codes of what a location holds.
+	static final int EMPTY = 0, ROCK = 1, OBSTACLE = 2, VEHICLE = 3, VEHICLE_CARRYING = 4, MOTHERSHIP = 5;
+
+	private final Simulator sim;
+	// The locations changed since the last frame, each listed once.
+	private RowBitboard marked;
+	private int[] changed;
+	private int changedCount;
+	// Whether each vehicle was carrying at the last frame. Picking up or
+	// dropping a sample changes a vehicle without changing the field.
+	private boolean[] carrying;
+
+	/**
+	 * Start recording the changes of a simulation's current field.
+	 */
+	public FrameEncoder(Simulator sim) {
+		this.sim = sim;
+		Field f = sim.getField();
+		marked = new RowBitboard(f.getDepth(), f.getWidth());
+		changed = new int[64];
+		List<Vehicle> vehicles = sim.getVehicles();
+		carrying = new boolean[vehicles.size()];
+		for (int i = 0; i < carrying.length; i++) {
+			carrying[i] = vehicles.get(i).carryingSample;
+		}
+		f.addChangeListener(this);
+	}
+
+	/**
+	 * Stop recording.
+	 */
+	public void detach() {
+		sim.getField().removeChangeListener(this);
+	}
+
+	@Override
+	public void cellChanged(Field f, int row, int col) {
+		mark(row, col);
+	}
+
+	private void mark(int row, int col) {
+		if (marked.get(row, col)) {
+			return;
+		}
+		marked.set(row, col);
+		if (changedCount == changed.length) {
+			changed = Arrays.copyOf(changed, 2 * changed.length);
+		}
+		changed[changedCount++] = row * sim.getField().getWidth() + col;
+	}
+
+	/**
+	 * @return The changes since the last frame, after which they are forgotten.
+	 */
+	public String delta() {
+		Field f = sim.getField();
+		List<Vehicle> vehicles = sim.getVehicles();
+		for (int i = 0; i < carrying.length; i++) {
+			Vehicle v = vehicles.get(i);
+			if (v.carryingSample != carrying[i]) {
+				carrying[i] = v.carryingSample;
+				mark(v.getLocation().getRow(), v.getLocation().getCol());
+			}
+		}
+		StringBuilder b = header();
+		b.append(",\"cells\":[");
+		int width = f.getWidth();
+		for (int i = 0; i < changedCount; i++) {
+			int row = changed[i] / width;
+			int col = changed[i] % width;
+			marked.clear(row, col);
+			if (i > 0) {
+				b.append(',');
+			}
+			b.append(changed[i]).append(',').append(codeOf(f.getObjectAt(row, col))).append(',')
+					.append(f.getCrumbQuantityAt(f.locationAt(row, col)));
+		}
+		changedCount = 0;
+		return b.append("]}").toString();
+	}
+
+	/**
+	 * @return The whole field. Changes recorded so far are left for the next
+	 *         delta, which a viewer can apply on top.
+	 */
+	public String keyframe() {
+		Field f = sim.getField();
+		int depth = f.getDepth();
+		int width = f.getWidth();
+		byte[] raw = new byte[2 * depth * width];
+		int i = 0;
+		for (int row = 0; row < depth; row++) {
+			for (int col = 0; col < width; col++) {
+				raw[i++] = (byte) codeOf(f.getObjectAt(row, col));
+				raw[i++] = (byte) f.getCrumbQuantityAt(f.locationAt(row, col));
+			}
+		}
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] packed = new byte[raw.length / 2 + 64];
+		int n = 0;
+		while (!deflater.finished()) {
+			if (n == packed.length) {
+				packed = Arrays.copyOf(packed, 2 * packed.length);
+			}
+			n += deflater.deflate(packed, n, packed.length - n);
+		}
+		deflater.end();
+		StringBuilder b = header();
+		b.append(",\"depth\":").append(depth).append(",\"width\":").append(width).append(",\"cells\":\"");
+		b.append(Base64.getEncoder().encodeToString(Arrays.copyOf(packed, n)));
+		return b.append("\"}").toString();
+	}
+
+	private StringBuilder header() {
+		StringBuilder b = new StringBuilder(256);
+		b.append("{\"step\":").append(sim.getStep()).append(",\"delivered\":")
+				.append(sim.getStats().getRocksDelivered());
+		return b;
+	}
+
+	/**
+	 * @return The code of what a location holds.
+	 */
+	static int codeOf(Entity e) {
+		if (e == null) {
+			return EMPTY;
+		}
+		if (e instanceof Rock) {
+			return ROCK;
+		}
+		if (e instanceof Obstacle) {
+			return OBSTACLE;
+		}
+		if (e instanceof Vehicle) {
+			return ((Vehicle) e).carryingSample ? VEHICLE_CARRYING : VEHICLE;
+		}
+		return MOTHERSHIP;
+	}
+}
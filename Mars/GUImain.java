@@ -11,7 +11,6 @@ import java.awt.event.WindowEvent;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.WindowConstants;
@@ -40,9 +39,13 @@ public class GUImain {
 	private LabelledTextArea rockLocations;
 	private LabelledTextArea rockClusterStd;
 	private LabelledCheckBox showTrails;
+	private LabelledComboBox behaviourPolicy;
+	private LabelledComboBox secondaryPolicy;
+	private LabelledTextArea secondaryShare;
 
 	JButton setUpButton;
 	JButton stepOnceButton;
+	JButton stepBackButton;
 	JButton runLongButton;
 	JButton resetButton;
 	JButton quitButton;
@@ -54,6 +57,7 @@ public class GUImain {
 	private String defRockClusterNum = "7"; // default value for the number of clusters
 	private String defRockLocations = "300"; // default value for number of rock locations
 	private String defRockClusterStd = "2.0"; // default value for number of rock cluster std
+	private String defSecondaryShare = "0.0"; // default share of the fleet using the secondary policy
 
 	private Simulator s;
 
@@ -69,6 +73,7 @@ public class GUImain {
 		// Step 1: create the components
 		setUpButton = new JButton();
 		stepOnceButton = new JButton();
+		stepBackButton = new JButton();
 		runLongButton = new JButton();
 		resetButton = new JButton();
 		quitButton = new JButton();
@@ -87,6 +92,10 @@ public class GUImain {
 		rockClusterStd = new LabelledTextArea("Rock Clusters Std: ", defRockClusterStd);
 		showTrails = new LabelledCheckBox("Show Crumb Trails: ", true);
 
+		behaviourPolicy = new LabelledComboBox("Policy: ", BehaviourPolicy.names(), CollaborativePolicy.NAME);
+		secondaryPolicy = new LabelledComboBox("Secondary Policy: ", BehaviourPolicy.names(), SimplePolicy.NAME);
+		secondaryShare = new LabelledTextArea("Secondary Share: ", defSecondaryShare);
+
 		// Step 2: set the properties of the components
 		setUpButton.setText("Set up simulation");
 		setUpButton.setToolTipText("Feed simulation parameters and set up simulation.");
@@ -94,6 +103,9 @@ public class GUImain {
 		stepOnceButton.setText("Step Once");
 		stepOnceButton.setToolTipText("Run simulation for only one step.");
 		stepOnceButton.setEnabled(false);
+		stepBackButton.setText("Step Back");
+		stepBackButton.setToolTipText("Undo the last step; drag the slider above the field to go further back.");
+		stepBackButton.setEnabled(false);
 		runLongButton.setText("Run");
 		runLongButton.setToolTipText("Run simulation for the duration specified.");
 		runLongButton.setEnabled(false);
@@ -109,6 +121,7 @@ public class GUImain {
 		JPanel simParamsBox = new JPanel();
 		JPanel creationProbBox = new JPanel();
 		JPanel rockBox = new JPanel();
+		JPanel behaviourBox = new JPanel();
 		JPanel commandBox = new JPanel();
 		JPanel entityParamsBox = new JPanel();
 		JPanel lowerBox = new JPanel();
@@ -118,12 +131,14 @@ public class GUImain {
 		simParamsBox.setBorder(new TitledBorder("Simulation Parameters"));
 		creationProbBox.setBorder(new TitledBorder("Obstacles & Vehicles"));
 		rockBox.setBorder(new TitledBorder("Rock Placement"));
+		behaviourBox.setBorder(new TitledBorder("Vehicle Behaviour"));
 
 		// Step 4: specify LayoutManagers
 		mainFrame.getContentPane().setLayout(new BorderLayout());
 		simParamsBox.setLayout(new GridLayout(2, 2));
 		creationProbBox.setLayout(new GridLayout(3, 1));
 		rockBox.setLayout(new GridLayout(3, 1));
+		behaviourBox.setLayout(new GridLayout(1, 3));
 		commandBox.setLayout(new GridLayout(3, 2));
 		lowerBox.setLayout(new BorderLayout());
 		entityParamsBox.setLayout(new BorderLayout());
@@ -133,7 +148,7 @@ public class GUImain {
 		commandBox.add(resetButton);
 		commandBox.add(stepOnceButton);
 		commandBox.add(runLongButton);
-		commandBox.add(new JLabel());
+		commandBox.add(stepBackButton);
 		commandBox.add(quitButton);
 
 		simParamsBox.add(simLength);
@@ -151,6 +166,11 @@ public class GUImain {
 
 		entityParamsBox.add(creationProbBox, BorderLayout.CENTER);
 		entityParamsBox.add(rockBox, BorderLayout.WEST);
+		entityParamsBox.add(behaviourBox, BorderLayout.SOUTH);
+
+		behaviourBox.add(behaviourPolicy);
+		behaviourBox.add(secondaryPolicy);
+		behaviourBox.add(secondaryShare);
 		lowerBox.add(entityParamsBox, BorderLayout.NORTH);
 		lowerBox.add(commandBox, BorderLayout.SOUTH);
 
@@ -213,6 +233,12 @@ public class GUImain {
 				mainFrame.setVisible(false);
 			}
 		});
+		stepBackButton.addActionListener(new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				stepBack();
+			}
+		});
 		setUpButton.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
@@ -267,6 +293,9 @@ public class GUImain {
 			int valRockLocations = (int) (Math.round(rockLocations.getValue()));
 			double valRockClusterStd = rockClusterStd.getValue();
 			boolean valShowTrails = showTrails.getValue();
+			String valBehaviourPolicy = behaviourPolicy.getValue();
+			String valSecondaryPolicy = secondaryPolicy.getValue();
+			double valSecondaryShare = secondaryShare.getValue();
 
 			// Set the values in the ModelConstants class
 			ModelConstants.LENGTH = time;
@@ -279,8 +308,9 @@ public class GUImain {
 			ModelConstants.ROCK_CLUSTER_STD = valRockClusterStd;
 			ModelConstants.ROCK_LOCATIONS = valRockLocations;
 			ModelConstants.SHOW_CRUMBS = valShowTrails;
-
-			ModelConstants.setRandom();
+			ModelConstants.BEHAVIOUR_POLICY = valBehaviourPolicy;
+			ModelConstants.SECONDARY_BEHAVIOUR_POLICY = valSecondaryPolicy;
+			ModelConstants.SECONDARY_POLICY_PROPORTION = valSecondaryShare;
 
 			// set up simulator
 			this.s = new Simulator();
@@ -288,6 +318,7 @@ public class GUImain {
 			// Enable run buttons
 			setUpButton.setEnabled(false);
 			stepOnceButton.setEnabled(true);
+			stepBackButton.setEnabled(true);
 			runLongButton.setEnabled(true);
 			resetButton.setEnabled(true);
 
@@ -300,8 +331,10 @@ public class GUImain {
 		try {
 
 			// Run the simulation
-			for (int i = 0; i < ModelConstants.LENGTH; i++) {
-				s.simulateOneStep();
+			s.simulate(ModelConstants.LENGTH);
+			if (s.getStopReason() != null) {
+				JOptionPane.showMessageDialog(mainFrame,
+						"Simulation stopped at step " + s.getStep() + ": " + s.getStopReason() + ".");
 			}
 			runLongButton.setText("Continue running");
 			runLongButton.setToolTipText("Continue running simulation for the duration specified.");
@@ -318,11 +351,25 @@ public class GUImain {
 		}
 	}
 
+	/**
+	 * Undo the last step, if the run still keeps it.
+	 */
+	private void stepBack() {
+		try {
+			if (!s.stepBack()) {
+				JOptionPane.showMessageDialog(mainFrame, "There is no step left to undo.");
+			}
+		} catch (Exception e) {
+			JOptionPane.showMessageDialog(mainFrame, "Problem stepping back." + e.getMessage());
+		}
+	}
+
 	public void reset() {
 		if (this.s != null)
 			s.closeView();
 		setUpButton.setEnabled(true);
 		stepOnceButton.setEnabled(false);
+		stepBackButton.setEnabled(false);
 		runLongButton.setEnabled(false);
 		runLongButton.setText("Run");
 		runLongButton.setToolTipText("Run simulation for the duration specified.");
@@ -0,0 +1,63 @@
+package Mars;
+
+/**
+ * The loops that sweep the whole grid, written as flat passes over one row
+ * array at a time. Each body is straight-line integer arithmetic with no calls
+ * and no branches, which is the shape HotSpot's loop vectoriser (superword)
+ * turns into SIMD instructions, as wide as the machine has: AVX-512 on our
+ * servers. The nested cell-by-cell loops they replace are kept by their
+ * callers and used when ModelConstants.FLAT_KERNELS is off; both give the same
+ * values bit for bit (see KernelCheck).
+ */
+final class GridKernels {
+
+	private GridKernels() {
+	}
+
+	/**
+	 * @return true if the flat kernels should be used.
+	 */
+	static boolean enabled() {
+		return ModelConstants.FLAT_KERNELS;
+	}
+
+	/**
+	 * The squared distance of every column from a centre column on a torus:
+	 * out[c] = min(d * d, (n - d) * (n - d)) where d = |c - centre|.
+	 */
+	static void torusSquares(int centre, int n, int[] out) {
+		for (int c = 0; c < n; c++) {
+			int d = Math.abs(c - centre);
+			int e = n - d;
+			out[c] = Math.min(d * d, e * e);
+		}
+	}
+
+	/**
+	 * out[c] = base - terms[c] for the first n columns.
+	 */
+	static void subtract(int base, int[] terms, int[] out, int n) {
+		for (int c = 0; c < n; c++) {
+			out[c] = base - terms[c];
+		}
+	}
+
+	/**
+	 * Take one from every positive count of a row: row[c] = max(row[c] - 1, 0).
+	 */
+	static void decrementToZero(int[] row, int n) {
+		for (int c = 0; c < n; c++) {
+			row[c] = Math.max(row[c] - 1, 0);
+		}
+	}
+
+	/**
+	 * The shade of red the view gives each count of crumbs in part of a row:
+	 * out[from + c] = 255 - 20 * crumbs[c], kept within 0 to 255.
+	 */
+	static void crumbShades(int[] crumbs, int[] out, int from, int n) {
+		for (int c = 0; c < n; c++) {
+			out[from + c] = Math.max(0, Math.min(255, 255 - 20 * crumbs[c]));
+		}
+	}
+}
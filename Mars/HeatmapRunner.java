@@ -0,0 +1,113 @@
+package Mars;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs a simulation headlessly with heatmaps (see Heatmaps), writes them as
+ * binary and as one PNG per layer, and checks them: the pickups against the
+ * mission statistics, the file against the heatmaps it was written from and,
+ * with check=true, the crumbs against a sum of every location's crumbs taken
+ * after each step.
+ *
+ * Usage: java Mars.HeatmapRunner [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * prefix = heatmaps   # writes heatmaps.bin and heatmaps-visits.png etc.
+ * check = false       # sum the crumbs after each step as well
+ * </pre>
+ *
+ * Exits with status 1 if a check fails.
+ */
+public class HeatmapRunner {
+
+	public static void main(String[] args) throws IOException {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "prefix", "check");
+		String prefix = own.getOrDefault("prefix", "heatmaps");
+		boolean check = Boolean.parseBoolean(own.getOrDefault("check", "false"));
+
+		// The same run without and then with the heatmaps, to see what they cost
+		config.heatmaps = false;
+		long start = System.nanoTime();
+		new Simulator(config, false).simulate(config.length);
+		long plain = System.nanoTime() - start;
+
+		config.heatmaps = true;
+		Simulator sim = new Simulator(config, false);
+		Field field = sim.getField();
+		long[][] crumbs = check ? new long[config.depth][config.width] : null;
+		start = System.nanoTime();
+		if (check) {
+			for (int tick = 0; tick < config.length && sim.getStopReason() == null; tick++) {
+				sim.simulateOneStep();
+				for (int row = 0; row < config.depth; row++) {
+					for (int col = 0; col < config.width; col++) {
+						crumbs[row][col] += field.getCrumbQuantityAt(field.locationAt(row, col));
+					}
+				}
+			}
+		} else {
+			sim.simulate(config.length);
+		}
+		long accumulated = System.nanoTime() - start;
+		Heatmaps heatmaps = sim.getHeatmaps();
+		System.out.println(String.format(Locale.ROOT,
+				"%d vehicles, %d steps: %.2f s without heatmaps, %.2f s with%s, %d tiles of %d",
+				sim.getVehicles().size(), sim.getStep(), plain / 1e9, accumulated / 1e9,
+				check ? " and the check" : "", heatmaps.getTiles(), 3 * ((config.depth + Heatmaps.TILE - 1)
+						/ Heatmaps.TILE) * ((config.width + Heatmaps.TILE - 1) / Heatmaps.TILE)));
+
+		Path binary = Paths.get(prefix + ".bin");
+		heatmaps.write(binary);
+		for (Heatmaps.Layer layer : Heatmaps.Layer.values()) {
+			heatmaps.writePng(layer, Paths.get(prefix + "-" + layer.getName() + ".png"));
+		}
+		Heatmaps read = Heatmaps.read(binary);
+
+		boolean ok = true;
+		long[] totals = new long[Heatmaps.Layer.values().length];
+		int unread = 0, wrongCrumbs = 0;
+		for (int row = 0; row < config.depth; row++) {
+			for (int col = 0; col < config.width; col++) {
+				for (Heatmaps.Layer layer : Heatmaps.Layer.values()) {
+					long count = heatmaps.get(layer, row, col);
+					totals[layer.ordinal()] += count;
+					if (read.get(layer, row, col) != count) {
+						unread++;
+					}
+				}
+				if (check && crumbs[row][col] != heatmaps.get(Heatmaps.Layer.CRUMBS, row, col)) {
+					wrongCrumbs++;
+				}
+			}
+		}
+		for (Heatmaps.Layer layer : Heatmaps.Layer.values()) {
+			System.out.println(String.format(Locale.ROOT, "%-8s total %d, highest %d", layer.getName(),
+					totals[layer.ordinal()], heatmaps.max(layer)));
+		}
+		System.out.println(Files.size(binary) + " bytes written to " + binary);
+		if (totals[Heatmaps.Layer.PICKUPS.ordinal()] != sim.getStats().getRocksPickedUp()) {
+			System.out.println("The pickups do not add up to the " + sim.getStats().getRocksPickedUp() + " counted");
+			ok = false;
+		}
+		if (unread > 0) {
+			System.out.println(unread + " counts read back differ from those written");
+			ok = false;
+		}
+		if (check) {
+			System.out.println(wrongCrumbs == 0 ? "The crumbs match a sum taken after every step."
+					: wrongCrumbs + " locations' crumbs differ from a sum taken after every step");
+			ok &= wrongCrumbs == 0;
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
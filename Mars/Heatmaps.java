@@ -0,0 +1,339 @@
+package Mars;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Heatmaps of a run, added to as it goes: how often vehicles moved onto each
+ * location, how many crumbs lay on it summed over the steps, and how many
+ * samples were picked up from it.
+ *
+ * Every event costs one addition to one counter. Vehicles count their own
+ * moves and pickups (see Vehicle.accumulateInto()); crumbs are counted as a
+ * listener of the field. Rather than add up every location's crumbs after
+ * each step, a change of d crumbs at step s adds d * s to its location. The
+ * crumbs summed over steps 1 to T are then (T + 1) * q - that total, where q
+ * is the number there now, since each change has been in place for T - s + 1
+ * steps.
+ *
+ * Counters are kept in tiles of TILE x TILE locations, each made the first
+ * time something happens on it, so a large field that vehicles only ever see
+ * part of keeps only that part. On a small field every tile soon exists and
+ * the counters are one primitive per location, as a plain array would be.
+ *
+ * Heatmaps are written either as binary, with only the tiles that exist, or
+ * as one PNG per layer. The binary starts with MAGIC, the depth, the width and
+ * the step the heatmaps were taken at; each layer follows as the number of
+ * its tiles, then the index and the counters of each tile, all big-endian.
+ * The crumb layer is written as crumbs summed over steps.
+ */
+final class Heatmaps implements Field.ChangeListener {
+	static final int MAGIC = 0x48454154;
+	// The side of a tile, in locations.
+	static final int TILE = 64;
+	private static final int SHIFT = 6;
+
+	/**
+	 * What a heatmap counts.
+	 */
+	enum Layer {
+		VISITS("visits"), CRUMBS("crumbs"), PICKUPS("pickups");
+
+		private final String name;
+
+		Layer(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return The name of the layer, as in file names and the view.
+		 */
+		String getName() {
+			return name;
+		}
+	}
+
+	private final int depth, width;
+	private final int tilesAcross;
+	// The counters of each layer, by tile. The crumb layer holds the changes
+	// times their steps, until written or read.
+	private final long[][][] tiles;
+	// The field whose crumbs are counted, null once detached or when read from
+	// a file, and the step being taken.
+	private Field field;
+	private int step;
+
+	/**
+	 * Make empty heatmaps of a field of the given size.
+	 */
+	Heatmaps(int depth, int width) {
+		this.depth = depth;
+		this.width = width;
+		tilesAcross = (width + TILE - 1) / TILE;
+		int count = tilesAcross * ((depth + TILE - 1) / TILE);
+		tiles = new long[Layer.values().length][count][];
+	}
+
+	/**
+	 * Start counting the crumbs of a field. Crumbs already on it count from the
+	 * next step on.
+	 *
+	 * @param f
+	 *            The field
+	 * @param step
+	 *            The last step taken
+	 */
+	void attach(Field f, int step) {
+		field = f;
+		this.step = step + 1;
+		for (int row = 0; row < depth; row++) {
+			for (int col = 0; col < width; col++) {
+				if (f.hasCrumbs(row, col)) {
+					crumbsChanged(f, row, col, f.getCrumbQuantityAt(f.locationAt(row, col)));
+				}
+			}
+		}
+		this.step = step;
+		f.addChangeListener(this);
+	}
+
+	/**
+	 * Stop counting the crumbs of the field. Its crumbs as they are now are
+	 * folded into the crumb layer, which holds crumbs summed over steps from
+	 * then on.
+	 */
+	void detach() {
+		if (field == null) {
+			return;
+		}
+		field.removeChangeListener(this);
+		long[][] crumbs = tiles[Layer.CRUMBS.ordinal()];
+		for (int t = 0; t < crumbs.length; t++) {
+			if (crumbs[t] != null) {
+				for (int i = 0; i < crumbs[t].length; i++) {
+					crumbs[t][i] = crumbSteps(t, i);
+				}
+			}
+		}
+		field = null;
+	}
+
+	/**
+	 * Note the step about to be taken; crumbs changing from now on change
+	 * during it. Decay at the start of a step belongs to that step.
+	 */
+	void startStep(int step) {
+		this.step = step;
+	}
+
+	/**
+	 * A vehicle moved onto a location.
+	 */
+	void visit(int row, int col) {
+		add(Layer.VISITS.ordinal(), row, col, 1);
+	}
+
+	/**
+	 * A sample was picked up from a location.
+	 */
+	void pickUp(int row, int col) {
+		add(Layer.PICKUPS.ordinal(), row, col, 1);
+	}
+
+	@Override
+	public void crumbsChanged(Field f, int row, int col, int delta) {
+		add(Layer.CRUMBS.ordinal(), row, col, (long) delta * step);
+	}
+
+	private void add(int layer, int row, int col, long amount) {
+		int t = (row >> SHIFT) * tilesAcross + (col >> SHIFT);
+		long[] tile = tiles[layer][t];
+		if (tile == null) {
+			tile = new long[TILE * TILE];
+			tiles[layer][t] = tile;
+		}
+		tile[(row & TILE - 1) << SHIFT | col & TILE - 1] += amount;
+	}
+
+	/**
+	 * @return The count of a layer at a location: for the crumb layer, the
+	 *         crumbs there summed over every step taken.
+	 */
+	long get(Layer layer, int row, int col) {
+		int t = (row >> SHIFT) * tilesAcross + (col >> SHIFT);
+		int i = (row & TILE - 1) << SHIFT | col & TILE - 1;
+		if (layer == Layer.CRUMBS) {
+			return crumbSteps(t, i);
+		}
+		long[] tile = tiles[layer.ordinal()][t];
+		return tile == null ? 0 : tile[i];
+	}
+
+	/**
+	 * @return The crumbs summed over steps at one location of a tile.
+	 */
+	private long crumbSteps(int t, int i) {
+		long[] tile = tiles[Layer.CRUMBS.ordinal()][t];
+		if (tile == null) {
+			return 0;
+		}
+		int row = (t / tilesAcross << SHIFT) + (i >> SHIFT);
+		int col = (t % tilesAcross << SHIFT) + (i & TILE - 1);
+		// Tiles on the edge may run off the field; nothing changes there
+		if (field == null || row >= depth || col >= width) {
+			return tile[i];
+		}
+		return (long) (step + 1) * field.getCrumbQuantityAt(field.locationAt(row, col)) - tile[i];
+	}
+
+	/**
+	 * @return The highest count of a layer.
+	 */
+	long max(Layer layer) {
+		long max = 0;
+		long[][] counts = tiles[layer.ordinal()];
+		for (int t = 0; t < counts.length; t++) {
+			if (counts[t] == null) {
+				continue;
+			}
+			for (int i = 0; i < counts[t].length; i++) {
+				max = Math.max(max, layer == Layer.CRUMBS ? crumbSteps(t, i) : counts[t][i]);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return The number of tiles holding counters, over every layer.
+	 */
+	int getTiles() {
+		int n = 0;
+		for (long[][] layer : tiles) {
+			for (long[] tile : layer) {
+				n += tile == null ? 0 : 1;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return The step being taken, or the last one taken once a step is over.
+	 */
+	int getStep() {
+		return step;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Write the heatmaps as binary, with only the tiles that exist.
+	 */
+	void write(Path file) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(depth);
+			out.writeInt(width);
+			out.writeInt(step);
+			for (Layer layer : Layer.values()) {
+				long[][] counts = tiles[layer.ordinal()];
+				int n = 0;
+				for (long[] tile : counts) {
+					n += tile == null ? 0 : 1;
+				}
+				out.writeInt(n);
+				for (int t = 0; t < counts.length; t++) {
+					if (counts[t] == null) {
+						continue;
+					}
+					out.writeInt(t);
+					for (int i = 0; i < counts[t].length; i++) {
+						out.writeLong(layer == Layer.CRUMBS ? crumbSteps(t, i) : counts[t][i]);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read heatmaps written by write(). They are no longer added to.
+	 *
+	 * @throws IOException
+	 *             if the file cannot be read or is not a heatmap file
+	 */
+	static Heatmaps read(Path file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a heatmap file: " + file);
+			}
+			Heatmaps h = new Heatmaps(in.readInt(), in.readInt());
+			h.step = in.readInt();
+			for (Layer layer : Layer.values()) {
+				long[][] counts = h.tiles[layer.ordinal()];
+				int n = in.readInt();
+				for (int k = 0; k < n; k++) {
+					int t = in.readInt();
+					if (t < 0 || t >= counts.length) {
+						throw new IOException("Tile " + t + " is off the field in " + file);
+					}
+					counts[t] = new long[TILE * TILE];
+					for (int i = 0; i < counts[t].length; i++) {
+						counts[t][i] = in.readLong();
+					}
+				}
+			}
+			return h;
+		}
+	}
+
+	/**
+	 * Draw a layer as a PNG, one pixel per location, from black through red
+	 * and yellow to white on a logarithmic scale up to the highest count.
+	 */
+	void writePng(Layer layer, Path file) throws IOException {
+		BufferedImage image = new BufferedImage(width, depth, BufferedImage.TYPE_INT_RGB);
+		double scale = Math.log1p(max(layer));
+		for (int row = 0; row < depth; row++) {
+			for (int col = 0; col < width; col++) {
+				image.setRGB(col, row, heat(shade(get(layer, row, col), scale)));
+			}
+		}
+		if (!ImageIO.write(image, "png", file.toFile())) {
+			throw new IOException("No PNG writer available");
+		}
+	}
+
+	/**
+	 * @param scale
+	 *            log(1 + the highest count)
+	 * @return A count as a shade from 0 to 255, on a logarithmic scale.
+	 */
+	static int shade(long count, double scale) {
+		return scale <= 0 ? 0 : (int) Math.round(255 * Math.log1p(count) / scale);
+	}
+
+	/**
+	 * @return The RGB colour of a shade from 0 to 255: black, red, yellow,
+	 *         white.
+	 */
+	static int heat(int shade) {
+		int level = shade * 3;
+		int r = Math.min(255, level);
+		int g = Math.max(0, Math.min(255, level - 255));
+		int b = Math.max(0, Math.min(255, level - 510));
+		return r << 16 | g << 8 | b;
+	}
+}
@@ -0,0 +1,158 @@
+package Mars;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs a simulation headlessly with a journal (see StepJournal), rewinds it
+ * and checks that it is back where a run stopped at that step would be, then
+ * runs it on again and checks that it ends where it did before the rewind.
+ *
+ * Usage: java Mars.JournalRunner [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * steps = 1000      # the steps to run before rewinding
+ * rewind = 200      # the steps to rewind by
+ * </pre>
+ *
+ * The journal keeps the steps rewound unless journalSteps says otherwise.
+ * The checks are made with active scheduling off and then on, whatever
+ * activeScheduling says, since parked vehicles must be parked again when the
+ * run is rewound. Exits with status 1 if a check fails.
+ */
+public class JournalRunner {
+
+	public static void main(String[] args) {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "steps", "rewind");
+		int steps = Integer.parseInt(own.getOrDefault("steps", "1000"));
+		int rewind = Integer.parseInt(own.getOrDefault("rewind", "200"));
+		if (config.journalSteps <= 0) {
+			config.journalSteps = rewind;
+		}
+		// Stop conditions would end the runs at different steps
+		config.stopDeliveredFraction = 0;
+		config.stopCollectedFraction = 0;
+		config.stopExhaustedFraction = 0;
+		config.stopIdleSteps = 0;
+		config.stopWallMillis = 0;
+
+		boolean ok = true;
+		for (boolean active : new boolean[] { false, true }) {
+			config.activeScheduling = active;
+			ok &= check(config, steps, rewind);
+		}
+		System.out.println(ok ? "Rewinding and running on again matches the run without a journal." : "Mismatch");
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Run, rewind and run on again with one configuration, printing what
+	 * differs.
+	 *
+	 * @return Whether every check passed
+	 */
+	private static boolean check(SimulationConfig config, int steps, int rewind) {
+		SimulationConfig plainConfig = config.copy();
+		plainConfig.journalSteps = 0;
+		Simulator plain = new Simulator(plainConfig, false);
+		long start = System.nanoTime();
+		plain.simulate(steps - rewind);
+		Snapshot expectedBack = new Snapshot(plain);
+		plain.simulate(rewind);
+		long plainTime = System.nanoTime() - start;
+		Snapshot expectedEnd = new Snapshot(plain);
+
+		Simulator sim = new Simulator(config, false);
+		start = System.nanoTime();
+		sim.simulate(steps);
+		long journalled = System.nanoTime() - start;
+		Snapshot end = new Snapshot(sim);
+		start = System.nanoTime();
+		int undone = sim.rewind(rewind);
+		long rewound = System.nanoTime() - start;
+		Snapshot back = new Snapshot(sim);
+		sim.simulate(undone);
+		Snapshot again = new Snapshot(sim);
+
+		System.out.println(String.format(Locale.ROOT,
+				"Active scheduling %s, %d vehicles, %d steps: %.2f s without a journal, %.2f s with; rewound %d steps in %.3f ms",
+				config.activeScheduling ? "on" : "off", sim.getVehicles().size(), steps, plainTime / 1e9, journalled / 1e9, undone, rewound / 1e6));
+		boolean ok = true;
+		if (undone != Math.min(rewind, config.journalSteps)) {
+			System.out.println("Rewound " + undone + " steps instead of " + Math.min(rewind, config.journalSteps));
+			ok = false;
+		}
+		if (!end.equals(expectedEnd)) {
+			System.out.println("The journal changed the run: " + end + " instead of " + expectedEnd);
+			ok = false;
+		}
+		if (undone == rewind && !back.equals(expectedBack)) {
+			System.out.println("Rewound to " + back + " instead of " + expectedBack);
+			ok = false;
+		}
+		if (!again.equals(end)) {
+			System.out.println("Ran on to " + again + " instead of " + end);
+			ok = false;
+		}
+		return ok;
+	}
+
+	/**
+	 * What a run has reached, to compare runs by.
+	 */
+	private static final class Snapshot {
+		private final int step;
+		private final long field;
+		private final int pickedUp, delivered, deliveries, carrying, liveClusters;
+		private final long random;
+
+		Snapshot(Simulator s) {
+			Field f = s.getField();
+			long[] rows = new long[f.getDepth()];
+			for (int row = 0; row < rows.length; row++) {
+				rows[row] = ShardWorker.rowDigest(f, row);
+			}
+			step = s.getStep();
+			field = ShardedRunner.fieldDigest(rows);
+			pickedUp = s.getStats().getRocksPickedUp();
+			delivered = s.getStats().getRocksDelivered();
+			deliveries = s.getStats().getDeliveries();
+			liveClusters = s.getClusters().getLiveClusters();
+			int n = 0;
+			long r = 0;
+			for (Vehicle v : s.getVehicles()) {
+				n += v.getCargo();
+				r = r * 31 + v.getRandom().getPosition();
+			}
+			carrying = n;
+			random = r;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Snapshot)) {
+				return false;
+			}
+			Snapshot s = (Snapshot) o;
+			return step == s.step && field == s.field && pickedUp == s.pickedUp && delivered == s.delivered
+					&& deliveries == s.deliveries && carrying == s.carrying && liveClusters == s.liveClusters
+					&& random == s.random;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(field);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "step %d, field %016x, picked up %d, delivered %d in %d trips, %d samples carried, %d clusters left", step,
+					field, pickedUp, delivered, deliveries, carrying, liveClusters);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package Mars;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs each whole-grid loop both cell by cell and as the flat kernels of
+ * GridKernels, checks that they leave exactly the same values behind and
+ * reports how long each took. Run it after touching either version, and on
+ * new hardware to see what the vectoriser makes of the kernels.
+ *
+ * Usage: java Mars.KernelCheck [name=value ...]
+ *
+ * <pre>
+ * depth = 2000        # size of the field
+ * width = 2000
+ * rounds = 10         # timed runs of each loop, the best is reported
+ * seed = 1
+ * </pre>
+ *
+ * Exits with status 1 if any kernel gives a different result.
+ */
+public class KernelCheck {
+	private static boolean identical = true;
+
+	public static void main(String[] args) {
+		Map<String, String> own = SimulationConfig.parseArgs(args, null, "depth", "width", "rounds", "seed");
+		int depth = Integer.parseInt(own.getOrDefault("depth", "2000"));
+		int width = Integer.parseInt(own.getOrDefault("width", "2000"));
+		int rounds = Integer.parseInt(own.getOrDefault("rounds", "10"));
+		long seed = Long.parseLong(own.getOrDefault("seed", "1"));
+		boolean flat = ModelConstants.FLAT_KERNELS;
+
+		// A field with rocks on 5% of the locations and crumbs on 30%
+		RandomStream random = new RandomStream(seed);
+		Field base = new Field(depth, width, random.split(RandomStream.FIELD));
+		for (int row = 0; row < depth; row++) {
+			for (int col = 0; col < width; col++) {
+				double p = random.nextDouble();
+				if (p < 0.05) {
+					base.place(new Rock(base.locationAt(row, col)), row, col);
+				} else if (p < 0.35) {
+					base.setCrumbQuantity(row, col, 1 + random.nextInt(Field.MAX_CRUMBS - 1));
+				}
+			}
+		}
+		Mothership m = new Mothership(base.locationAt(random.nextInt(depth), random.nextInt(width)));
+
+		System.out.println(String.format(Locale.ROOT, "%dx%d field, best of %d runs", depth, width, rounds));
+		System.out.println(String.format(Locale.ROOT, "%-14s %10s %10s %8s", "loop", "cells ms", "flat ms", "speedup"));
+
+		// emitSignal
+		Field scalar = base.cloneField();
+		Field kernel = base.cloneField();
+		long[] times = new long[2];
+		for (int r = 0; r < rounds; r++) {
+			times[0] = best(times[0], r, () -> m.emitSignal(scalar), false);
+			times[1] = best(times[1], r, () -> m.emitSignal(kernel), true);
+		}
+		check("emitSignal", sameSignal(scalar, kernel), times);
+
+		// reduceCrumbs, on fresh copies each time since it empties the field
+		times = new long[2];
+		for (int r = 0; r < rounds; r++) {
+			Field a = base.cloneField();
+			Field b = base.cloneField();
+			times[0] = best(times[0], r, a::reduceCrumbs, false);
+			times[1] = best(times[1], r, b::reduceCrumbs, true);
+			if (r == 0 && (!sameCrumbs(a, b) || a.getChangeCount() != b.getChangeCount())) {
+				identical = false;
+				System.out.println("reduceCrumbs differs");
+			}
+		}
+		check("reduceCrumbs", true, times);
+
+		// cloneField
+		times = new long[2];
+		Field[] clones = new Field[2];
+		for (int r = 0; r < rounds; r++) {
+			times[0] = best(times[0], r, () -> clones[0] = base.cloneField(), false);
+			times[1] = best(times[1], r, () -> clones[1] = base.cloneField(), true);
+		}
+		check("cloneField", sameCrumbs(clones[0], clones[1]) && sameSignal(clones[0], clones[1])
+				&& sameEntities(clones[0], clones[1]) && sameEntities(clones[0], base), times);
+
+		// clear
+		times = new long[2];
+		for (int r = 0; r < rounds; r++) {
+			Field a = base.cloneField();
+			Field b = base.cloneField();
+			times[0] = best(times[0], r, a::clear, false);
+			times[1] = best(times[1], r, b::clear, true);
+			clones[0] = a;
+			clones[1] = b;
+		}
+		check("clear", sameEntities(clones[0], clones[1]), times);
+
+		// The crumb shading of the view
+		int[][] shades = new int[2][width];
+		boolean same = true;
+		times = new long[2];
+		for (int r = 0; r < rounds; r++) {
+			times[0] = best(times[0], r, () -> {
+				for (int row = 0; row < base.getDepth(); row++) {
+					for (int col = 0; col < base.getWidth(); col++) {
+						int numCrumbs = base.getCrumbQuantityAt(base.locationAt(row, col));
+						numCrumbs = 255 - 20 * numCrumbs;
+						numCrumbs = (numCrumbs <= 255) ? numCrumbs : 255;
+						numCrumbs = (numCrumbs >= 0) ? numCrumbs : 0;
+						shades[0][col] = numCrumbs;
+					}
+				}
+			}, false);
+			times[1] = best(times[1], r, () -> {
+				for (int row = 0; row < base.getDepth(); row++) {
+					base.crumbShades(row, shades[1]);
+				}
+			}, true);
+		}
+		for (int row = 0; row < depth && same; row++) {
+			for (int col = 0; col < width; col++) {
+				int q = 255 - 20 * base.getCrumbQuantityAt(base.locationAt(row, col));
+				shades[0][col] = q > 255 ? 255 : q < 0 ? 0 : q;
+			}
+			base.crumbShades(row, shades[1]);
+			for (int col = 0; col < width; col++) {
+				same &= shades[0][col] == shades[1][col];
+			}
+		}
+		check("crumb shades", same, times);
+
+		ModelConstants.FLAT_KERNELS = flat;
+		if (!identical) {
+			System.err.println("The flat kernels do not match the cell-by-cell loops.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Time a loop with the kernels on or off.
+	 *
+	 * @return The best time so far, in nanoseconds
+	 */
+	private static long best(long bestSoFar, int round, Runnable loop, boolean flat) {
+		ModelConstants.FLAT_KERNELS = flat;
+		long start = System.nanoTime();
+		loop.run();
+		long t = System.nanoTime() - start;
+		return round == 0 ? t : Math.min(bestSoFar, t);
+	}
+
+	private static void check(String loop, boolean same, long[] times) {
+		identical &= same;
+		System.out.println(String.format(Locale.ROOT, "%-14s %10.2f %10.2f %7.1fx%s", loop, times[0] / 1e6,
+				times[1] / 1e6, (double) times[0] / Math.max(1, times[1]), same ? "" : "  DIFFERENT"));
+	}
+
+	private static boolean sameSignal(Field a, Field b) {
+		for (int row = 0; row < a.getDepth(); row++) {
+			for (int col = 0; col < a.getWidth(); col++) {
+				if (a.getSignalStrength(row, col) != b.getSignalStrength(row, col)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameCrumbs(Field a, Field b) {
+		for (int row = 0; row < a.getDepth(); row++) {
+			for (int col = 0; col < a.getWidth(); col++) {
+				Location l = a.locationAt(row, col);
+				if (a.getCrumbQuantityAt(l) != b.getCrumbQuantityAt(l) || a.sensesCrumbs(l, 0) != b.sensesCrumbs(l, 0)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static boolean sameEntities(Field a, Field b) {
+		for (int row = 0; row < a.getDepth(); row++) {
+			for (int col = 0; col < a.getWidth(); col++) {
+				if (a.getObjectAt(row, col) != b.getObjectAt(row, col)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
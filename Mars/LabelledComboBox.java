@@ -0,0 +1,52 @@
+package Mars;
+
+import java.awt.*;
+import javax.swing.*;
+import javax.swing.border.*;
+
+
+
+/**
+ * Creates a JLabel and JComboBox coupled together
+ */
+
+
+public class LabelledComboBox extends JComponent {
+	
+	private static final long serialVersionUID = -1978073598544126548L;
+	private JLabel label;
+	private JComboBox<String> comboBox;
+
+	
+	/**
+	 * Creates a <code>LabelledComboBox</code>.
+	 *
+	 * @param text a {@link java.lang.String} that names the label and combo box
+	 * @param options the choices offered
+	 * @param value the initially selected choice
+	 */
+	public LabelledComboBox(String text, String[] options, String value) 
+	{
+		this.label = new JLabel(text);
+		this.comboBox = new JComboBox<String>(options);
+		this.comboBox.setSelectedItem(value);
+		
+		this.setLayout(new BorderLayout());
+		this.add(label, BorderLayout.WEST);
+		this.add(comboBox, BorderLayout.EAST);
+		this.comboBox.setBorder(new CompoundBorder(new EmptyBorder(0, 0, 0, 0),new EtchedBorder()));
+		
+	}
+	
+	
+	/**
+	 * Returns the selected choice
+	 *
+	 * @return the selected string.
+	 */
+	public String getValue() {
+		String value = (String) comboBox.getSelectedItem(); 
+		return value;
+	}
+	
+}
@@ -8,9 +8,10 @@ package Mars;
  */
 public class Location
 {
-    // Row and column positions.
-    private int row;
-    private int col;
+    // Row and column positions, final so that a location can be handed
+    // between threads without locking.
+    private final int row;
+    private final int col;
     /**
      * Represent a row and column.
      * @param row The row.
@@ -0,0 +1,123 @@
+package Mars;
+
+/**
+ * Counts what the vehicles of one simulation have achieved. Vehicles report
+ * into it as they pick up and deliver samples, so reading the totals never
+ * needs a pass over the field or the fleet. Reports are synchronized, since
+ * with AgentThreads vehicles report from threads of their own.
+ */
+class MissionStats {
+	// The number of rocks on the field when the run started.
+	private int initialRocks;
+	// How many rocks have been picked up from the field.
+	private int rocksPickedUp;
+	// How many rocks have been dropped at the mothership.
+	private int rocksDelivered;
+	// How many trips to the mothership have ended in a delivery.
+	private int deliveries;
+	// The step the simulation is currently running.
+	private int step;
+	// The step at which the (i+1)th rock reached the mothership.
+	private int[] deliveryStep;
+
+	public MissionStats(int initialRocks) {
+		this.initialRocks = initialRocks;
+		this.deliveryStep = new int[initialRocks];
+	}
+
+	/**
+	 * @param step
+	 *            The step the simulation is now running
+	 */
+	public synchronized void setStep(int step) {
+		this.step = step;
+	}
+
+	/**
+	 * Record that a vehicle picked up a rock.
+	 */
+	public synchronized void rockPickedUp() {
+		rocksPickedUp++;
+	}
+
+	/**
+	 * Record that a vehicle dropped its load at the mothership.
+	 *
+	 * @param rocks
+	 *            The number of rocks delivered
+	 */
+	public synchronized void delivered(int rocks) {
+		for (int i = 0; i < rocks && rocksDelivered < deliveryStep.length; i++) {
+			deliveryStep[rocksDelivered++] = step;
+		}
+		deliveries++;
+	}
+
+	/**
+	 * Put the counts back as they were, e.g. when a step is undone. The step
+	 * each rock was delivered at is kept for those still delivered.
+	 */
+	public synchronized void rollBack(int rocksPickedUp, int rocksDelivered, int deliveries) {
+		this.rocksPickedUp = rocksPickedUp;
+		this.rocksDelivered = rocksDelivered;
+		this.deliveries = deliveries;
+	}
+
+	/**
+	 * @return An independent copy of these counts, e.g. for a fork of the run.
+	 */
+	public synchronized MissionStats copy() {
+		MissionStats c = new MissionStats(initialRocks);
+		c.rocksPickedUp = rocksPickedUp;
+		c.rocksDelivered = rocksDelivered;
+		c.deliveries = deliveries;
+		c.step = step;
+		System.arraycopy(deliveryStep, 0, c.deliveryStep, 0, deliveryStep.length);
+		return c;
+	}
+
+	public int getInitialRocks() {
+		return initialRocks;
+	}
+
+	public int getRocksPickedUp() {
+		return rocksPickedUp;
+	}
+
+	public int getRocksDelivered() {
+		return rocksDelivered;
+	}
+
+	public int getDeliveries() {
+		return deliveries;
+	}
+
+	/**
+	 * @return The trips to the mothership saved by carrying several rocks at
+	 *         once: the rocks delivered beyond one per delivery.
+	 */
+	public int getRoundTripsSaved() {
+		return rocksDelivered - deliveries;
+	}
+
+	/**
+	 * @param fraction
+	 *            The fraction of the initial rocks, between 0 and 1
+	 * @return The step at which that fraction of the rocks had been delivered, or
+	 *         -1 if it has not been reached yet.
+	 */
+	public int getStepsToDeliver(double fraction) {
+		int needed = (int) Math.ceil(fraction * initialRocks);
+		if (needed <= 0) {
+			return 0;
+		}
+		return needed <= rocksDelivered ? deliveryStep[needed - 1] : -1;
+	}
+
+	/**
+	 * @return The fraction of the initial rocks delivered to the mothership.
+	 */
+	public double getFractionDelivered() {
+		return initialRocks == 0 ? 1.0 : (double) rocksDelivered / initialRocks;
+	}
+}
@@ -1,10 +1,12 @@
 package Mars;
 
 import java.awt.Color;
-import java.util.Random;
 
 class ModelConstants {
 	public static int RANDOM_SEED = 52;
+	// The seed of the world the vehicles explore, shared by every run with the
+	// same one; negative builds each run's world from its own seed.
+	public static long WORLD_SEED = -1;
 
 	// the duration of the simulation
 	public static int LENGTH = 10000;
@@ -26,6 +28,62 @@ class ModelConstants {
 	public static double OBSTACLE_CREATION_PROBABILITY = 0.01;
 	public static double VEHICLE_CREATION_PROBABILITY = 0.01;
 
+	// The behaviour policy the vehicles follow, "collaborative" or "simple".
+	public static String BEHAVIOUR_POLICY = "collaborative";
+	// The policy followed by the rest of a mixed fleet.
+	public static String SECONDARY_BEHAVIOUR_POLICY = "simple";
+	// The proportion of vehicles following the secondary policy (0 for none).
+	public static double SECONDARY_POLICY_PROPORTION = 0.0;
+
+	// How far vehicles sense rocks, crumbs and the mothership, in squares.
+	// 1 is the adjacent squares only, 0 the vehicle's own square.
+	public static int ROCK_SENSING_RADIUS = 1;
+	public static int CRUMB_SENSING_RADIUS = 0;
+	public static int MOTHERSHIP_SENSING_RADIUS = 1;
+
+	// The most samples a vehicle carries at once. Vehicles with room for more
+	// keep picking up the samples they sense before heading back.
+	public static int CARRYING_CAPACITY = 1;
+
+	// The crumbs a vehicle drops per step on its way back, the most a location
+	// can hold, and the number of steps between crumb decays (0 for never).
+	public static int CRUMBS_PER_DROP = Vehicle.CRUMBS_PER_DROP;
+	public static int MAX_CRUMBS = Field.MAX_CRUMBS;
+	public static int CRUMB_DECAY_INTERVAL = 1000;
+	// Whether vehicles ignore crumb trails once the cluster they lead to has
+	// been picked clean, instead of following them until they decay.
+	public static boolean CLUSTER_TRAILS = false;
+
+	// When to end a run before LENGTH steps: once this fraction of the rocks
+	// has been delivered or collected, once this fraction of the rock clusters
+	// has been picked clean, after this many steps without a change, or after
+	// this many milliseconds. Zero turns a condition off.
+	public static double STOP_DELIVERED_FRACTION = 1.0;
+	public static double STOP_COLLECTED_FRACTION = 0.0;
+	public static double STOP_EXHAUSTED_FRACTION = 0.0;
+	public static int STOP_IDLE_STEPS = 0;
+	public static long STOP_WALL_MILLIS = 0;
+
+	// Whether vehicles that are boxed in with nothing to sense are skipped
+	// until something changes next to them.
+	public static boolean ACTIVE_SCHEDULING = false;
+
+	// Whether vehicles plan together and then move together each step, which
+	// lets a run be split over several processes (see ShardedRunner).
+	public static boolean SYNCHRONOUS_STEPS = false;
+
+	// Whether headless runs keep heatmaps of where vehicles went, where crumbs
+	// lay and where samples were picked up. Runs with a view always do.
+	public static boolean HEATMAPS = false;
+
+	// How many of the last steps headless runs can be stepped back over, 0 for
+	// none. Runs with a view keep at least 1000.
+	public static int JOURNAL_STEPS = 0;
+
+	// Whether the whole-grid loops run as flat per-row kernels the JIT can
+	// vectorise, rather than cell by cell; see GridKernels.
+	public static boolean FLAT_KERNELS = true;
+
 	// Whether or not to show in colour how many crumbs a location contains
 	public static boolean SHOW_CRUMBS = true;
 
@@ -35,10 +93,4 @@ class ModelConstants {
 	public static final Color vehicleColor = Color.cyan;
 	public static final Color vehicleCarryingSampleColor = Color.blue;
 	public static final Color mothershipColor = Color.magenta;
-
-	public static Random random = null;
-
-	public static void setRandom() {
-		random = new Random(RANDOM_SEED);
-	}
 }
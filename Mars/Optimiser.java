@@ -0,0 +1,326 @@
+package Mars;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tunes the behaviour parameters of a run, such as the crumbs dropped per step,
+ * the most a location holds, how often they decay and how far vehicles sense,
+ * with a genetic algorithm. Each generation's candidates are run headlessly
+ * over the same seeds, all at once on every core, and scored by the mean of
+ * their outcome. The best few go through unchanged; the rest are bred from
+ * parents picked by tournament, crossed gene by gene and mutated.
+ *
+ * Every run's outcome is cached under its configuration and seed, so elites
+ * and candidates bred twice are not run again, and with a cache file neither
+ * is anything a previous search with the same fixed parameters has run. The
+ * search draws from its own seed and runs are reproducible, so a search gives
+ * the same answer however many threads it has.
+ *
+ * Usage: java Mars.Optimiser spec.txt [best.txt]
+ *
+ * See OptimiserSpec for the specification. The best configuration found is
+ * written as name = value lines, to the file if one is given, ready for
+ * ReplicationRunner or the setup GUI.
+ */
+public class Optimiser {
+	// The share of each generation carried over unchanged, at least one.
+	private static final int ELITE_DIVISOR = 8;
+	// The candidates drawn for each tournament.
+	private static final int TOURNAMENT = 3;
+
+	private OptimiserSpec spec;
+	private SimulationConfig base;
+	private RandomStream random;
+	// The outcome of every run started so far, by OptimiserSpec.keyFor().
+	private ConcurrentHashMap<String, CompletableFuture<Double>> cache = new ConcurrentHashMap<String, CompletableFuture<Double>>();
+	// The runs finished since the cache file was last written, in the order
+	// they were asked for.
+	private List<String> unsaved = new ArrayList<String>();
+
+	// The best candidate so far and its score.
+	private double[] best;
+	private double bestScore = Double.NEGATIVE_INFINITY;
+
+	/**
+	 * @param spec
+	 *            The search to make
+	 * @param base
+	 *            The configuration supplying everything that is neither fixed
+	 *            nor tuned
+	 */
+	public Optimiser(OptimiserSpec spec, SimulationConfig base) {
+		this.spec = spec;
+		this.base = base;
+		this.random = new RandomStream(spec.getSearchSeed());
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: java Mars.Optimiser spec.txt [best.txt]");
+			System.exit(2);
+		}
+		OptimiserSpec spec = OptimiserSpec.read(args[0]);
+		Optimiser optimiser = new Optimiser(spec, SimulationConfig.fromModelConstants());
+		optimiser.run();
+		if (args.length > 1) {
+			try (PrintWriter out = new PrintWriter(new FileWriter(args[1]))) {
+				optimiser.writeBest(out);
+			}
+		} else {
+			PrintWriter out = new PrintWriter(System.out);
+			optimiser.writeBest(out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Run the search for the number of generations in the specification.
+	 *
+	 * @throws IOException
+	 *             if the cache file cannot be read or written
+	 */
+	public void run() throws IOException {
+		loadCache();
+		int genes = spec.getNames().size();
+		int size = spec.getPopulation();
+		int elites = Math.max(1, size / ELITE_DIVISOR);
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, spec.getThreads()));
+		try {
+			double[][] population = new double[size][genes];
+			for (double[] candidate : population) {
+				for (int g = 0; g < genes; g++) {
+					double[] range = spec.getRange(g);
+					candidate[g] = range[0] + random.nextDouble() * (range[1] - range[0]);
+				}
+				spec.snap(candidate);
+			}
+
+			for (int generation = 1; generation <= spec.getGenerations(); generation++) {
+				int cached = cache.size();
+				double[] scores = evaluate(population, executor);
+				int runs = cache.size() - cached;
+				saveCache();
+
+				// Rank best first; ties keep their order, so the ranking is reproducible.
+				Integer[] order = new Integer[size];
+				for (int i = 0; i < size; i++) {
+					order[i] = i;
+				}
+				Arrays.sort(order, (a, b) -> Double.compare(scores[b], scores[a]));
+				// The mean of the candidates whose runs did not fail
+				double mean = 0;
+				int ran = 0;
+				for (double s : scores) {
+					if (s != Double.NEGATIVE_INFINITY) {
+						mean += s;
+						ran++;
+					}
+				}
+				mean = ran == 0 ? Double.NEGATIVE_INFINITY : mean / ran;
+				if (scores[order[0]] > bestScore) {
+					bestScore = scores[order[0]];
+					best = population[order[0]].clone();
+				}
+				System.out.println(String.format(Locale.ROOT, "generation %d: best %s %.3f, mean %.3f, %d new runs",
+						generation, describe(population[order[0]]), display(scores[order[0]]), display(mean), runs));
+
+				if (generation == spec.getGenerations()) {
+					break;
+				}
+				double[][] next = new double[size][];
+				for (int i = 0; i < elites; i++) {
+					next[i] = population[order[i]];
+				}
+				for (int i = elites; i < size; i++) {
+					double[] mother = population[tournament(scores)];
+					double[] father = population[tournament(scores)];
+					next[i] = breed(mother, father);
+				}
+				population = next;
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Score every candidate of a generation: the mean of its outcome over the
+	 * seeds, higher being better. Runs not in the cache are all started before
+	 * any is waited for.
+	 */
+	private double[] evaluate(double[][] population, ExecutorService executor) {
+		List<Long> seeds = spec.getSeeds();
+		List<List<CompletableFuture<Double>>> pending = new ArrayList<List<CompletableFuture<Double>>>();
+		List<String> started = new ArrayList<String>();
+		for (double[] candidate : population) {
+			List<CompletableFuture<Double>> runs = new ArrayList<CompletableFuture<Double>>();
+			for (long seed : seeds) {
+				String key = spec.keyFor(candidate, seed);
+				runs.add(cache.computeIfAbsent(key, k -> {
+					started.add(k);
+					SimulationConfig config = spec.configFor(base, candidate, seed);
+					return CompletableFuture.supplyAsync(() -> outcome(config), executor);
+				}));
+			}
+			pending.add(runs);
+		}
+
+		double[] scores = new double[population.length];
+		for (int i = 0; i < population.length; i++) {
+			double sum = 0;
+			boolean failed = false;
+			for (CompletableFuture<Double> run : pending.get(i)) {
+				try {
+					sum += run.join();
+				} catch (CompletionException e) {
+					System.err.println("Run of " + describe(population[i]) + " failed: " + e.getCause());
+					failed = true;
+				}
+			}
+			// A configuration that breaks the simulation is never the best,
+			// whichever way the objective points.
+			scores[i] = failed ? Double.NEGATIVE_INFINITY : score(sum / seeds.size());
+		}
+		for (String key : started) {
+			if (!cache.get(key).isCompletedExceptionally()) {
+				unsaved.add(key);
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * @return The outcome of one run, in the objective's own units.
+	 */
+	private double outcome(SimulationConfig config) {
+		RunResult result = RunResult.run(config, spec.getTarget());
+		switch (spec.getObjective()) {
+		case "fractionDelivered":
+			return (double) result.rocksDelivered / Math.max(1, result.rocks);
+		case "stepsToTarget":
+			// Runs that never reach the target count as twice their length.
+			return result.stepsToTarget >= 0 ? result.stepsToTarget : 2.0 * config.length;
+		default:
+			return result.getRocksDeliveredPer1000Steps();
+		}
+	}
+
+	/**
+	 * @return An outcome as a score, higher being better.
+	 */
+	private double score(double outcome) {
+		return spec.getObjective().equals("stepsToTarget") ? -outcome : outcome;
+	}
+
+	/**
+	 * @return A score in the objective's own units.
+	 */
+	private double display(double score) {
+		return spec.getObjective().equals("stepsToTarget") ? -score : score;
+	}
+
+	/**
+	 * @return The best of a few candidates drawn at random.
+	 */
+	private int tournament(double[] scores) {
+		int winner = random.nextInt(scores.length);
+		for (int i = 1; i < TOURNAMENT; i++) {
+			int rival = random.nextInt(scores.length);
+			if (scores[rival] > scores[winner]) {
+				winner = rival;
+			}
+		}
+		return winner;
+	}
+
+	/**
+	 * Cross two parents gene by gene, then move each gene by a normal step of a
+	 * sixth of its range with probability one in the number of genes.
+	 */
+	private double[] breed(double[] mother, double[] father) {
+		int genes = mother.length;
+		double[] child = new double[genes];
+		for (int g = 0; g < genes; g++) {
+			child[g] = random.nextBoolean() ? mother[g] : father[g];
+			if (random.nextInt(genes) == 0) {
+				double[] range = spec.getRange(g);
+				child[g] += random.nextGaussian() * (range[1] - range[0]) / 6;
+			}
+		}
+		spec.snap(child);
+		return child;
+	}
+
+	private String describe(double[] candidate) {
+		StringBuilder text = new StringBuilder();
+		for (int g = 0; g < candidate.length; g++) {
+			text.append(g == 0 ? "" : " ").append(spec.getNames().get(g)).append('=')
+					.append(spec.valueOf(candidate, g));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Write the best configuration found, fixed parameters first, as name = value
+	 * lines.
+	 */
+	public void writeBest(PrintWriter out) {
+		out.println(String.format(Locale.ROOT, "# best %s %.3f over %d seeds", spec.getObjective(),
+				display(bestScore), spec.getSeeds().size()));
+		for (String name : spec.getFixed().keySet()) {
+			out.println(name + " = " + spec.getFixed().get(name));
+		}
+		for (int g = 0; g < best.length; g++) {
+			out.println(spec.getNames().get(g) + " = " + spec.valueOf(best, g));
+		}
+	}
+
+	/**
+	 * Read the outcomes kept by earlier searches, one "outcome key" line each.
+	 */
+	private void loadCache() throws IOException {
+		String fileName = spec.getCacheFile();
+		if (fileName == null || !new File(fileName).exists()) {
+			return;
+		}
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space > 0) {
+					cache.put(line.substring(space + 1),
+							CompletableFuture.completedFuture(Double.parseDouble(line.substring(0, space))));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the outcomes of this generation's new runs to the cache file.
+	 */
+	private void saveCache() throws IOException {
+		String fileName = spec.getCacheFile();
+		if (fileName != null && !unsaved.isEmpty()) {
+			try (PrintWriter out = new PrintWriter(new FileWriter(fileName, true))) {
+				for (String key : unsaved) {
+					out.println(cache.get(key).join() + " " + key);
+				}
+			}
+		}
+		unsaved.clear();
+	}
+}
@@ -0,0 +1,319 @@
+package Mars;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * The search an Optimiser makes: the parameters it tunes and their ranges, the
+ * parameters it keeps fixed, the seeds each candidate is run with and what it
+ * tries to improve. Specifications are read from a text file with one
+ * parameter per line, named as in the setup GUI:
+ *
+ * <pre>
+ * # comments start with a hash
+ * crumbsPerDrop = 1 .. 5         # tuned, an integer range
+ * maxCrumbs = 3 .. 30
+ * crumbDecayInterval = 0 .. 5000
+ * crumbSensingRadius = 0 .. 3
+ * secondaryShare = 0.0 .. 0.5    # tuned, a real range
+ * marsWidth = 60                 # fixed
+ * simLength = 3000
+ * seeds = 1:4                    # as in a sweep
+ * objective = rockRate           # rocks delivered per 1000 steps, or
+ *                                # fractionDelivered, stepsToTarget
+ * target = 0.9                   # fraction of rocks for stepsToTarget
+ * population = 16
+ * generations = 10
+ * searchSeed = 1                 # the optimiser's own random choices
+ * threads = 32                   # defaults to the number of cores
+ * cache = results.cache          # keep results between searches
+ * </pre>
+ *
+ * A range is of integers if both ends are written as integers. Parameters that
+ * are not mentioned keep the values of the base configuration.
+ */
+class OptimiserSpec {
+	// Reals are searched to this many decimal places.
+	private static final int DECIMALS = 4;
+
+	// The tuned parameters, in file order, and their ranges.
+	private List<String> names;
+	private List<double[]> ranges;
+	private List<Boolean> integers;
+	// The fixed parameters, sorted by name so the cache key does not depend on
+	// the order of the file.
+	private TreeMap<String, String> fixed;
+	private List<Long> seeds;
+	private String objective;
+	private double target;
+	private int population;
+	private int generations;
+	private long searchSeed;
+	private int threads;
+	private String cacheFile;
+
+	public OptimiserSpec() {
+		names = new ArrayList<String>();
+		ranges = new ArrayList<double[]>();
+		integers = new ArrayList<Boolean>();
+		fixed = new TreeMap<String, String>();
+		seeds = new ArrayList<Long>();
+		objective = "rockRate";
+		target = 0.9;
+		population = 16;
+		generations = 10;
+		searchSeed = 1;
+		threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Read a specification from a file.
+	 *
+	 * @param fileName
+	 *            The file to read
+	 * @return The specification
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if a line cannot be understood
+	 */
+	public static OptimiserSpec read(String fileName) throws IOException {
+		OptimiserSpec spec = new OptimiserSpec();
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				int hash = line.indexOf('#');
+				if (hash >= 0) {
+					line = line.substring(0, hash);
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				int eq = line.indexOf('=');
+				if (eq < 0) {
+					throw new IllegalArgumentException("Line " + lineNumber + ": expected name = value");
+				}
+				spec.add(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+			}
+		}
+		if (spec.seeds.isEmpty()) {
+			spec.seeds.add((long) ModelConstants.RANDOM_SEED);
+		}
+		if (spec.names.isEmpty()) {
+			throw new IllegalArgumentException("Nothing to tune: give at least one parameter as min .. max");
+		}
+		return spec;
+	}
+
+	/**
+	 * Add one line of a specification.
+	 *
+	 * @param name
+	 *            The parameter name, or one of the optimiser's own settings
+	 * @param text
+	 *            The value, or min .. max for a tuned parameter
+	 */
+	public void add(String name, String text) {
+		switch (name) {
+		case "seeds":
+			SweepSpec sweep = new SweepSpec();
+			sweep.add(name, text);
+			seeds.addAll(sweep.getSeeds());
+			break;
+		case "objective":
+			// deliveryRate counted trips, which fall as vehicles carry more at
+			// once; it is read as the rocks delivered per 1000 steps instead.
+			if (text.equals("deliveryRate")) {
+				text = "rockRate";
+			}
+			if (!text.equals("rockRate") && !text.equals("fractionDelivered") && !text.equals("stepsToTarget")) {
+				throw new IllegalArgumentException("Unknown objective: " + text);
+			}
+			objective = text;
+			break;
+		case "target":
+			target = Double.parseDouble(text);
+			break;
+		case "population":
+			population = Math.max(2, Integer.parseInt(text));
+			break;
+		case "generations":
+			generations = Math.max(1, Integer.parseInt(text));
+			break;
+		case "searchSeed":
+			searchSeed = Long.parseLong(text);
+			break;
+		case "threads":
+			threads = Integer.parseInt(text);
+			break;
+		case "cache":
+			cacheFile = text;
+			break;
+		default:
+			int dots = text.indexOf("..");
+			if (dots < 0) {
+				new SimulationConfig().set(name, text);
+				fixed.put(name, text);
+				break;
+			}
+			String low = text.substring(0, dots).trim();
+			String high = text.substring(dots + 2).trim();
+			boolean integer = isInteger(low) && isInteger(high);
+			double min = Double.parseDouble(low);
+			double max = Double.parseDouble(high);
+			if (max < min) {
+				throw new IllegalArgumentException("Empty range for " + name + ": " + text);
+			}
+			// Fail early on unknown names or values that do not parse.
+			SimulationConfig check = new SimulationConfig();
+			check.set(name, format(min, integer));
+			check.set(name, format(max, integer));
+			names.add(name);
+			ranges.add(new double[] { min, max });
+			integers.add(integer);
+		}
+	}
+
+	private static boolean isInteger(String text) {
+		try {
+			Long.parseLong(text);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return A value as the text the configuration is given: whole for an
+	 *         integer parameter, to a fixed number of decimals otherwise.
+	 */
+	private static String format(double value, boolean integer) {
+		if (integer) {
+			return Long.toString(Math.round(value));
+		}
+		return new BigDecimal(value).setScale(DECIMALS, RoundingMode.HALF_EVEN).stripTrailingZeros().toPlainString();
+	}
+
+	/**
+	 * Bring a candidate's genes within their ranges and onto the values the
+	 * configuration can be given, so that equal configurations have equal
+	 * genes.
+	 */
+	public void snap(double[] genes) {
+		for (int g = 0; g < genes.length; g++) {
+			double[] range = ranges.get(g);
+			genes[g] = Double.parseDouble(format(Math.max(range[0], Math.min(range[1], genes[g])), integers.get(g)));
+		}
+	}
+
+	/**
+	 * @return The value of one tuned parameter of a candidate, as text.
+	 */
+	public String valueOf(double[] genes, int g) {
+		return format(genes[g], integers.get(g));
+	}
+
+	/**
+	 * Build the configuration of one run of a candidate.
+	 *
+	 * @param base
+	 *            The configuration supplying everything that is neither fixed
+	 *            nor tuned
+	 * @param genes
+	 *            The candidate
+	 * @param seed
+	 *            The seed of the run
+	 * @return The configuration of the run
+	 */
+	public SimulationConfig configFor(SimulationConfig base, double[] genes, long seed) {
+		SimulationConfig c = base.copy();
+		for (String name : fixed.keySet()) {
+			c.set(name, fixed.get(name));
+		}
+		for (int g = 0; g < genes.length; g++) {
+			c.set(names.get(g), valueOf(genes, g));
+		}
+		c.seed = seed;
+		return c;
+	}
+
+	/**
+	 * @return The key a run's result is cached under: everything that decides
+	 *         it, the fixed parameters, the candidate and the seed.
+	 */
+	public String keyFor(double[] genes, long seed) {
+		StringBuilder key = new StringBuilder(objective);
+		if (objective.equals("stepsToTarget")) {
+			key.append(' ').append(target);
+		}
+		for (String name : fixed.keySet()) {
+			key.append(' ').append(name).append('=').append(fixed.get(name));
+		}
+		for (int g = 0; g < genes.length; g++) {
+			key.append(' ').append(names.get(g)).append('=').append(valueOf(genes, g));
+		}
+		return key.append(" seed=").append(seed).toString();
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	/**
+	 * @return The lowest and highest value of a tuned parameter.
+	 */
+	public double[] getRange(int g) {
+		return ranges.get(g);
+	}
+
+	public List<Long> getSeeds() {
+		return seeds;
+	}
+
+	public String getObjective() {
+		return objective;
+	}
+
+	public double getTarget() {
+		return target;
+	}
+
+	public int getPopulation() {
+		return population;
+	}
+
+	public int getGenerations() {
+		return generations;
+	}
+
+	public long getSearchSeed() {
+		return searchSeed;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return The file results are kept in between searches, or null.
+	 */
+	public String getCacheFile() {
+		return cacheFile;
+	}
+
+	/**
+	 * @return The fixed parameters, by name.
+	 */
+	public TreeMap<String, String> getFixed() {
+		return fixed;
+	}
+}
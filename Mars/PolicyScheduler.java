@@ -0,0 +1,191 @@
+package Mars;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the vehicles of a simulation for one step. Vehicles are grouped by
+ * behaviour policy and by the state they are in at the start of the step, and
+ * each group is handed to its policy in a single call. With one policy per run
+ * this means three calls per step no matter how many vehicles there are.
+ *
+ * Within a step all carrying vehicles act first, then the ones on crumbs, then
+ * the ones searching. The batches are kept between steps so that grouping does
+ * not allocate once the lists have grown to size.
+ *
+ * With active scheduling on, vehicles their policy calls idle are parked in an
+ * ActiveSet and skipped until the field reports a change near them. A vehicle
+ * woken during a step acts at the end of that step, after the others.
+ */
+class PolicyScheduler {
+	private static final VehicleState[] STATES = VehicleState.values();
+
+	// The distinct policies seen so far, in the order they were first met.
+	private ArrayList<BehaviourPolicy> policies;
+	// One batch per policy and state, indexed by policy * STATES.length + state.
+	private ArrayList<ArrayList<Vehicle>> batches;
+	// Whether idle vehicles are parked, the vehicles still acting and the
+	// field that tells them of changes.
+	private boolean activeScheduling;
+	private ActiveSet activeSet;
+	private Field field;
+	// The journal the parked vehicles are written to, or null.
+	private StepJournal journal;
+
+	public PolicyScheduler() {
+		this(false);
+	}
+
+	/**
+	 * @param activeScheduling
+	 *            Whether to park vehicles that have nothing to do
+	 */
+	public PolicyScheduler(boolean activeScheduling) {
+		policies = new ArrayList<BehaviourPolicy>();
+		batches = new ArrayList<ArrayList<Vehicle>>();
+		this.activeScheduling = activeScheduling;
+	}
+
+	/**
+	 * Forget which vehicles are parked, for a new run. The next step starts
+	 * with every vehicle active.
+	 */
+	public void reset() {
+		if (activeSet != null) {
+			field.removeChangeListener(activeSet);
+			activeSet = null;
+			field = null;
+		}
+		journal = null;
+	}
+
+	/**
+	 * Write which vehicles are parked to a journal, so that undoing steps
+	 * parks them again; see ActiveSet.
+	 *
+	 * @param journal
+	 *            The journal, or null to write none
+	 */
+	void journalTo(StepJournal journal) {
+		this.journal = journal;
+		if (activeSet != null) {
+			activeSet.journalTo(journal);
+		}
+	}
+
+	/**
+	 * @return The vehicles parked and acting, or null if active scheduling is
+	 *         off or no step has been run.
+	 */
+	ActiveSet getActiveSet() {
+		return activeSet;
+	}
+
+	/**
+	 * @return The number of vehicles that will act in the next step, or -1 if
+	 *         active scheduling is off or no step has been run.
+	 */
+	public int getActiveCount() {
+		return activeSet == null ? -1 : activeSet.getActiveCount();
+	}
+
+	/**
+	 * Let every vehicle act once.
+	 *
+	 * @param vehicles
+	 *            The vehicles to run
+	 * @param f
+	 *            Instance of class Field
+	 * @param m
+	 *            Instance of class Mothership
+	 * @param rocksCollected
+	 *            ArrayList collecting the rocks picked up this step
+	 */
+	public void step(List<Vehicle> vehicles, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		clearBatches();
+
+		if (!activeScheduling) {
+			for (int i = 0; i < vehicles.size(); i++) {
+				Vehicle v = vehicles.get(i);
+				int slot = slotOf(v.getPolicy());
+				batches.get(slot * STATES.length + v.getState(f).ordinal()).add(v);
+			}
+			act(f, m, rocksCollected);
+			return;
+		}
+
+		if (activeSet == null) {
+			activeSet = new ActiveSet(vehicles, f);
+			activeSet.journalTo(journal);
+			field = f;
+			f.addChangeListener(activeSet);
+		}
+		activeSet.clearWoken();
+		for (int i = activeSet.nextActive(0); i >= 0; i = activeSet.nextActive(i + 1)) {
+			batch(vehicles.get(i), f);
+		}
+		act(f, m, rocksCollected);
+
+		// Vehicles woken by the moves above get their turn now rather than next
+		// step, so a queue of boxed-in vehicles can still all move up in one step.
+		// None of them has acted yet, and each round only wakes vehicles parked
+		// before it, so this ends.
+		while (activeSet.hasWoken()) {
+			clearBatches();
+			for (int i = activeSet.nextWoken(0); i >= 0; i = activeSet.nextWoken(i + 1)) {
+				batch(vehicles.get(i), f);
+			}
+			activeSet.clearWoken();
+			act(f, m, rocksCollected);
+		}
+	}
+
+	/**
+	 * Add a vehicle to the batch of its policy and state, or park it if it has
+	 * stood still for a while and its policy says it has nothing to do.
+	 */
+	private void batch(Vehicle v, Field f) {
+		VehicleState state = v.getState(f);
+		if (activeSet.stoodStill(v) && v.getPolicy().isIdle(v, state, f)) {
+			activeSet.park(v);
+		} else {
+			batches.get(slotOf(v.getPolicy()) * STATES.length + state.ordinal()).add(v);
+		}
+	}
+
+	/**
+	 * Hand every batch to its policy.
+	 */
+	private void act(Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		for (int p = 0; p < policies.size(); p++) {
+			BehaviourPolicy policy = policies.get(p);
+			int base = p * STATES.length;
+			policy.actCarrying(batches.get(base + VehicleState.CARRYING.ordinal()), f, m, rocksCollected);
+			policy.actOnCrumbs(batches.get(base + VehicleState.ON_CRUMBS.ordinal()), f, m, rocksCollected);
+			policy.actSearching(batches.get(base + VehicleState.SEARCHING.ordinal()), f, m, rocksCollected);
+		}
+	}
+
+	private void clearBatches() {
+		for (int i = 0; i < batches.size(); i++) {
+			batches.get(i).clear();
+		}
+	}
+
+	/**
+	 * Find the index of a policy, registering it if it has not been seen before.
+	 * Runs only ever use a handful of policies, so a linear search is enough.
+	 */
+	private int slotOf(BehaviourPolicy policy) {
+		for (int p = 0; p < policies.size(); p++) {
+			if (policies.get(p) == policy) {
+				return p;
+			}
+		}
+		policies.add(policy);
+		for (int s = 0; s < STATES.length; s++) {
+			batches.add(new ArrayList<Vehicle>());
+		}
+		return policies.size() - 1;
+	}
+}
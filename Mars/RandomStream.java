@@ -0,0 +1,157 @@
+package Mars;
+
+import java.util.Random;
+
+/**
+ * A counter-based random stream. The n-th value of a stream is a pure
+ * function of the stream's key and n (the SplitMix64 finaliser applied to
+ * key + n * gamma), so a stream carries no hidden state besides its position.
+ *
+ * Streams form a hierarchy: split(id) derives an independent child stream
+ * from the key alone, without drawing from the parent. A run derives one
+ * stream per subsystem from its seed, and one movement stream per vehicle
+ * from the vehicle stream, so what any part of the simulation draws never
+ * depends on the order in which other parts drew, or on which thread they
+ * ran.
+ *
+ * It extends Random so that it can be handed to code expecting one, e.g.
+ * Collections.shuffle.
+ */
+class RandomStream extends Random {
+	static final long serialVersionUID = 4093175634027745831L;
+
+	// The ids of the streams a run splits its seed into.
+	public static final long WORLD_GENERATION = 1;
+	public static final long POPULATION = 2;
+	public static final long MOTHERSHIP = 3;
+	public static final long VEHICLES = 4;
+	public static final long FIELD = 5;
+	public static final long LATENCY = 6;
+
+	// The SplitMix64 increment, 2^64 divided by the golden ratio.
+	private static final long GAMMA = 0x9e3779b97f4a7c15L;
+
+	// The key identifying this stream.
+	private long key;
+	// The number of values drawn so far.
+	private long position;
+
+	/**
+	 * Create the root stream of a run.
+	 *
+	 * @param seed
+	 *            The seed of the run
+	 */
+	public RandomStream(long seed) {
+		super(0);
+		this.key = mix64(seed);
+		this.position = 0;
+	}
+
+	/**
+	 * Derive an independent child stream. The same parent key and id always give
+	 * the same child, however much has been drawn from the parent.
+	 *
+	 * @param id
+	 *            The id of the child, e.g. VEHICLES or a vehicle number
+	 * @return The child stream, at position 0
+	 */
+	public RandomStream split(long id) {
+		RandomStream child = new RandomStream(0);
+		child.key = mix64(key ^ mix64(id + GAMMA));
+		return child;
+	}
+
+	/**
+	 * @return The key identifying this stream. A stream made with fromKey and
+	 *         moved to the same position draws the same values.
+	 */
+	public long getKey() {
+		return key;
+	}
+
+	/**
+	 * Recreate a stream from its key, e.g. one handed over by another process.
+	 *
+	 * @param key
+	 *            The key of the stream, from getKey()
+	 * @return The stream, at position 0
+	 */
+	public static RandomStream fromKey(long key) {
+		RandomStream s = new RandomStream(0);
+		s.key = key;
+		return s;
+	}
+
+	/**
+	 * @return A stream that draws what this one would from here on, but
+	 *         independently of it.
+	 */
+	public RandomStream copy() {
+		RandomStream c = fromKey(key);
+		c.position = position;
+		return c;
+	}
+
+	/**
+	 * @return The number of values drawn so far.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Move the stream to a position, e.g. to replay draws.
+	 *
+	 * @param position
+	 *            The number of values drawn so far
+	 */
+	public void setPosition(long position) {
+		this.position = position;
+	}
+
+	/**
+	 * Restart the stream with a new key. Called by the Random constructor too,
+	 * before the fields of this class are initialised.
+	 */
+	@Override
+	public synchronized void setSeed(long seed) {
+		this.key = mix64(seed);
+		this.position = 0;
+	}
+
+	@Override
+	public long nextLong() {
+		return mix64(key + (++position) * GAMMA);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	/**
+	 * A Gaussian by the polar method. Unlike Random this does not keep the
+	 * second value for the next call, so the position alone is the whole state
+	 * of the stream.
+	 */
+	@Override
+	public double nextGaussian() {
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		return v1 * Math.sqrt(-2 * Math.log(s) / s);
+	}
+
+	/**
+	 * The SplitMix64 finaliser (Stafford's variant 13).
+	 */
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,250 @@
+package Mars;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replicates one configuration over consecutive seeds until the confidence
+ * intervals of the outcome metrics are narrow enough. Seeds run in parallel,
+ * but results are folded into the statistics strictly in seed order, so the
+ * number of replications and the reported numbers depend only on the
+ * configuration and never on the number of threads.
+ *
+ * Usage: java Mars.ReplicationRunner [settings.properties]
+ *
+ * The settings file may set any parameter named as in the setup GUI (e.g.
+ * marsWidth = 100) as well as:
+ *
+ * <pre>
+ * tolerance = 0.05        # wanted half width of the interval
+ * relative = true         # tolerance is a fraction of the mean
+ * confidence = 0.95
+ * minReplications = 5
+ * maxReplications = 1000
+ * firstSeed = 1
+ * target = 0.9            # fraction of rocks for "steps to collect"
+ * threads = 32            # defaults to the number of cores
+ * </pre>
+ */
+public class ReplicationRunner {
+	private SimulationConfig base;
+	private double tolerance = 0.05;
+	private boolean relative = true;
+	private double confidence = 0.95;
+	private int minReplications = 5;
+	private int maxReplications = 1000;
+	private long firstSeed = 1;
+	private double target = 0.9;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	// The statistics of the stopping metrics.
+	private RunningStatistics rockRate;
+	private RunningStatistics fractionDelivered;
+	// Only replications that reached the target contribute to this one.
+	private RunningStatistics stepsToTarget;
+	// Reported, but not stopping metrics: the trips made fall as vehicles carry
+	// more at once.
+	private RunningStatistics deliveryRate;
+	private RunningStatistics roundTripsSaved;
+
+	/**
+	 * @param base
+	 *            The configuration to replicate; its seed is replaced
+	 */
+	public ReplicationRunner(SimulationConfig base) {
+		this.base = base;
+	}
+
+	/**
+	 * Read the settings of a replication run from a properties file. Anything
+	 * that is not a replication setting is passed on to the configuration.
+	 *
+	 * @param base
+	 *            The configuration supplying everything that is not set
+	 * @param fileName
+	 *            The file to read
+	 * @return The runner
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	public static ReplicationRunner read(SimulationConfig base, String fileName) throws IOException {
+		Properties p = new Properties();
+		try (Reader in = new FileReader(fileName)) {
+			p.load(in);
+		}
+		SimulationConfig config = base.copy();
+		ReplicationRunner r = new ReplicationRunner(config);
+		for (String name : p.stringPropertyNames()) {
+			String value = p.getProperty(name).trim();
+			switch (name) {
+			case "tolerance":
+				r.tolerance = Double.parseDouble(value);
+				break;
+			case "relative":
+				r.relative = Boolean.parseBoolean(value);
+				break;
+			case "confidence":
+				r.confidence = Double.parseDouble(value);
+				break;
+			case "minReplications":
+				r.minReplications = Integer.parseInt(value);
+				break;
+			case "maxReplications":
+				r.maxReplications = Integer.parseInt(value);
+				break;
+			case "firstSeed":
+				r.firstSeed = Long.parseLong(value);
+				break;
+			case "target":
+				r.target = Double.parseDouble(value);
+				break;
+			case "threads":
+				r.threads = Integer.parseInt(value);
+				break;
+			default:
+				config.set(name, value);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Run replications until the stopping rule is met, writing one line per
+	 * replication with the running means and half widths.
+	 *
+	 * @param out
+	 *            Where the results are written
+	 * @return The number of replications used
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for a run
+	 * @throws ExecutionException
+	 *             if a run fails
+	 */
+	public int run(PrintWriter out) throws InterruptedException, ExecutionException {
+		rockRate = new RunningStatistics();
+		deliveryRate = new RunningStatistics();
+		fractionDelivered = new RunningStatistics();
+		stepsToTarget = new RunningStatistics();
+		roundTripsSaved = new RunningStatistics();
+
+		out.println("replication,seed,deliveriesPer1000Steps,fractionDelivered,stepsTo" + Math.round(target * 100)
+				+ "Pct,meanDeliveriesPer1000Steps,halfWidth,meanFractionDelivered,halfWidth"
+				// Columns added later go at the end, so earlier ones keep their place
+				+ ",rocksDeliveredPer1000Steps,meanRocksDeliveredPer1000Steps,halfWidth");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		ArrayDeque<Future<RunResult>> pending = new ArrayDeque<Future<RunResult>>();
+		int submitted = 0;
+		int done = 0;
+		try {
+			while (done < maxReplications) {
+				// Keep every thread busy with the next seeds in line.
+				while (pending.size() < Math.max(1, threads) && submitted < maxReplications) {
+					pending.add(executor.submit(replication(firstSeed + submitted)));
+					submitted++;
+				}
+				RunResult result = pending.poll().get();
+				done++;
+				record(result);
+				writeLine(out, done, result);
+				if (converged()) {
+					break;
+				}
+			}
+		} finally {
+			// Speculative runs past the stopping point are thrown away.
+			for (Future<RunResult> f : pending) {
+				f.cancel(true);
+			}
+			executor.shutdownNow();
+		}
+		out.flush();
+		return done;
+	}
+
+	private Callable<RunResult> replication(long seed) {
+		final SimulationConfig config = base.copy();
+		config.seed = seed;
+		return new Callable<RunResult>() {
+			@Override
+			public RunResult call() {
+				return RunResult.run(config, target);
+			}
+		};
+	}
+
+	private void record(RunResult result) {
+		rockRate.add(result.getRocksDeliveredPer1000Steps());
+		deliveryRate.add(result.getDeliveriesPer1000Steps());
+		fractionDelivered.add(result.rocks == 0 ? 1.0 : (double) result.rocksDelivered / result.rocks);
+		if (result.stepsToTarget >= 0) {
+			stepsToTarget.add(result.stepsToTarget);
+		}
+		roundTripsSaved.add(result.roundTripsSaved);
+	}
+
+	/**
+	 * @return true if enough replications have run and every stopping metric
+	 *         has an interval within the tolerance.
+	 */
+	private boolean converged() {
+		return rockRate.getCount() >= minReplications && narrowEnough(rockRate)
+				&& narrowEnough(fractionDelivered);
+	}
+
+	private boolean narrowEnough(RunningStatistics s) {
+		double allowed = relative ? tolerance * Math.abs(s.getMean()) : tolerance;
+		return s.getHalfWidth(confidence) <= allowed;
+	}
+
+	private void writeLine(PrintWriter out, int replication, RunResult result) {
+		out.println(String.format(Locale.ROOT, "%d,%d,%.3f,%.4f,%s,%.3f,%.3f,%.4f,%.4f,%.3f,%.3f,%.3f", replication,
+				result.seed,
+				result.getDeliveriesPer1000Steps(), (double) result.rocksDelivered / Math.max(1, result.rocks),
+				result.stepsToTarget < 0 ? "" : Integer.toString(result.stepsToTarget), deliveryRate.getMean(),
+				deliveryRate.getHalfWidth(confidence), fractionDelivered.getMean(),
+				fractionDelivered.getHalfWidth(confidence), result.getRocksDeliveredPer1000Steps(), rockRate.getMean(),
+				rockRate.getHalfWidth(confidence)));
+		out.flush();
+	}
+
+	public RunningStatistics getRockRate() {
+		return rockRate;
+	}
+
+	public RunningStatistics getDeliveryRate() {
+		return deliveryRate;
+	}
+
+	public RunningStatistics getFractionDelivered() {
+		return fractionDelivered;
+	}
+
+	public RunningStatistics getStepsToTarget() {
+		return stepsToTarget;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+		SimulationConfig base = SimulationConfig.fromModelConstants();
+		ReplicationRunner r = args.length > 0 ? read(base, args[0]) : new ReplicationRunner(base);
+		PrintWriter out = new PrintWriter(System.out);
+		int n = r.run(out);
+		System.err.println(String.format(Locale.ROOT,
+				"%d replications: rocks delivered per 1000 steps %.3f +/- %.3f, fraction delivered %.4f +/- %.4f,"
+						+ " steps to target %.1f (reached in %d runs), deliveries per 1000 steps %.3f,"
+						+ " round trips saved %.1f",
+				n, r.rockRate.getMean(), r.rockRate.getHalfWidth(r.confidence),
+				r.fractionDelivered.getMean(), r.fractionDelivered.getHalfWidth(r.confidence),
+				r.stepsToTarget.getMean(), r.stepsToTarget.getCount(), r.deliveryRate.getMean(),
+				r.roundTripsSaved.getMean()));
+	}
+}
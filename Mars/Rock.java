@@ -1,5 +1,19 @@
 package Mars;
 
 class Rock extends Entity{
+	// The cluster the rock started out in (see ClusterIndex), or -1 if none.
+	private int cluster = -1;
+
 	public Rock(Location location){super(location);}
+
+	public int getCluster(){
+		return cluster;
+	}
+
+	/**
+	 * Only set while the world is built; rocks are shared between runs.
+	 */
+	void setCluster(int cluster){
+		this.cluster = cluster;
+	}
 }
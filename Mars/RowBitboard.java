@@ -0,0 +1,326 @@
+package Mars;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * One bit per cell of a toroidal grid, packed row by row into longs. A window
+ * of up to 63 columns around a cell comes out of a row in a couple of shifts,
+ * so asking whether anything is set within a radius w of a cell costs O(w)
+ * word operations instead of visiting (2w+1)^2 cells.
+ *
+ * Rows are copied on write, so a fork of a board costs nothing until one of
+ * the two boards changes a row, and then only that row is copied; see Epoch.
+ */
+class RowBitboard {
+	// The largest radius a window can have, so that it fits in a long.
+	static final int MAX_RADIUS = 31;
+
+	/**
+	 * Leaves some set cells out of a search, e.g. crumbs that no longer lead
+	 * anywhere.
+	 */
+	interface Mask {
+		/**
+		 * @param row
+		 *            The row of the window
+		 * @param col
+		 *            The column of the window's centre
+		 * @param w
+		 *            The window's radius: bit i is column col - w + i, round
+		 *            the torus
+		 * @param bits
+		 *            The set cells of the window, not 0
+		 * @return The set cells that count.
+		 */
+		long keep(int row, int col, int w, long bits);
+	}
+
+	private final int depth, width;
+	// The number of longs per row.
+	private final int stride;
+	// The longs of each row, the epoch each row was last copied in, and
+	// whether the arrays of rows and stamps are shared with a fork.
+	private long[][] rows;
+	private int[] stamps;
+	private boolean shared;
+	// The rows stamped with this epoch belong to this board alone, and all of
+	// them do until the board is forked or if it is not a fork.
+	private int epoch;
+	private boolean forked;
+
+	public RowBitboard(int depth, int width) {
+		this.depth = depth;
+		this.width = width;
+		this.stride = (width + 63) >>> 6;
+		this.rows = new long[depth][stride];
+		this.epoch = Epoch.next();
+		this.stamps = new int[depth];
+		Arrays.fill(stamps, epoch);
+	}
+
+	/**
+	 * @return An independent copy of this board.
+	 */
+	public RowBitboard copy() {
+		RowBitboard c = new RowBitboard(depth, width);
+		for (int row = 0; row < depth; row++) {
+			System.arraycopy(rows[row], 0, c.rows[row], 0, stride);
+		}
+		return c;
+	}
+
+	/**
+	 * @return A copy of this board that shares its rows until either writes
+	 *         them.
+	 */
+	RowBitboard fork() {
+		RowBitboard f = new RowBitboard(depth, width, rows, stamps);
+		shared = true;
+		epoch = Epoch.next();
+		forked = true;
+		return f;
+	}
+
+	private RowBitboard(int depth, int width, long[][] rows, int[] stamps) {
+		this.depth = depth;
+		this.width = width;
+		this.stride = (width + 63) >>> 6;
+		this.rows = rows;
+		this.stamps = stamps;
+		this.shared = true;
+		this.epoch = Epoch.next();
+		this.forked = true;
+	}
+
+	/**
+	 * @return A row this board alone holds, copied first if it is shared.
+	 */
+	private long[] writableRow(int row) {
+		if (forked && stamps[row] != epoch) {
+			if (shared) {
+				rows = rows.clone();
+				stamps = stamps.clone();
+				shared = false;
+			}
+			rows[row] = rows[row].clone();
+			stamps[row] = epoch;
+		}
+		return rows[row];
+	}
+
+	public boolean get(int row, int col) {
+		return (rows[row][col >>> 6] & (1L << col)) != 0;
+	}
+
+	public void set(int row, int col) {
+		writableRow(row)[col >>> 6] |= 1L << col;
+	}
+
+	public void clear(int row, int col) {
+		writableRow(row)[col >>> 6] &= ~(1L << col);
+	}
+
+	/**
+	 * @return The number of longs each row is packed into.
+	 */
+	public int wordsPerRow() {
+		return stride;
+	}
+
+	/**
+	 * @return The i-th long of a row, bit b standing for column 64 * i + b.
+	 */
+	public long word(int row, int i) {
+		return rows[row][i];
+	}
+
+	/**
+	 * Clear every cell. Rows this board holds alone are zeroed in place; only
+	 * those shared with a fork are replaced.
+	 */
+	public void clearAll() {
+		if (forked && shared) {
+			rows = rows.clone();
+			stamps = stamps.clone();
+			shared = false;
+		}
+		for (int row = 0; row < depth; row++) {
+			if (!forked || stamps[row] == epoch) {
+				Arrays.fill(rows[row], 0);
+			} else {
+				rows[row] = new long[stride];
+				stamps[row] = epoch;
+			}
+		}
+	}
+
+	/**
+	 * Read the columns col - w to col + w of a row, wrapping round the torus.
+	 *
+	 * @return The bits, bit i standing for column col - w + i.
+	 */
+	public long window(int row, int col, int w) {
+		int len = 2 * w + 1;
+		int start = col - w;
+		if (start < 0) {
+			start += width;
+		}
+		int first = Math.min(len, width - start);
+		long bits = readBits(row, start, first);
+		if (first < len) {
+			bits |= readBits(row, 0, len - first) << first;
+		}
+		return bits;
+	}
+
+	/**
+	 * @return The window of a row, less the cells the mask leaves out.
+	 */
+	private long masked(int row, int col, int w, Mask mask) {
+		long bits = window(row, col, w);
+		return mask == null || bits == 0 ? bits : mask.keep(row, col, w, bits);
+	}
+
+	/**
+	 * Read n (at most 63) bits of a row from a column on, without wrapping.
+	 */
+	private long readBits(int row, int start, int n) {
+		long[] words = rows[row];
+		int base = start >>> 6;
+		int offset = start & 63;
+		long bits = words[base] >>> offset;
+		if (offset + n > 64) {
+			bits |= words[base + 1] << (64 - offset);
+		}
+		return bits & ((1L << n) - 1);
+	}
+
+	/**
+	 * @return true if any cell within a radius of a location, in king moves, is
+	 *         set. The radius is at most MAX_RADIUS.
+	 */
+	public boolean any(int row, int col, int radius) {
+		return any(row, col, radius, null);
+	}
+
+	/**
+	 * As any(row, col, radius), counting only the cells a mask keeps.
+	 *
+	 * @param mask
+	 *            The mask, or null to count every cell
+	 */
+	boolean any(int row, int col, int radius, Mask mask) {
+		int wr = Math.min(radius, (depth - 1) / 2);
+		int wc = Math.min(radius, (width - 1) / 2);
+		for (int dr = -wr; dr <= wr; dr++) {
+			if (masked(wrap(row + dr, depth), col, wc, mask) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the set cell nearest to a location, by the number of king moves
+	 * between them, searching no further than a radius. When several cells are
+	 * equally near one is chosen at random.
+	 *
+	 * @param row
+	 *            The row to search around
+	 * @param col
+	 *            The column to search around
+	 * @param radius
+	 *            The largest distance to search, at most MAX_RADIUS
+	 * @param rand
+	 *            The stream used to choose between equally near cells
+	 * @return The cell index row * width + col, or -1 if no cell is set.
+	 */
+	public long nearest(int row, int col, int radius, Random rand) {
+		return nearest(row, col, radius, rand, null);
+	}
+
+	/**
+	 * As nearest(row, col, radius, rand), finding only the cells a mask keeps.
+	 *
+	 * @param mask
+	 *            The mask, or null to find any cell
+	 */
+	long nearest(int row, int col, int radius, Random rand, Mask mask) {
+		// Wider windows would see the same cells twice round the torus.
+		int wr = Math.min(radius, (depth - 1) / 2);
+		int wc = Math.min(radius, (width - 1) / 2);
+
+		// First pass: the smallest distance in each row, O(1) per row.
+		int best = Integer.MAX_VALUE;
+		for (int dr = -wr; dr <= wr; dr++) {
+			long bits = masked(wrap(row + dr, depth), col, wc, mask);
+			if (bits == 0) {
+				continue;
+			}
+			// Bits 0..wc are the columns left of and at col, wc.. those at and right.
+			long left = bits & ((1L << (wc + 1)) - 1);
+			long right = bits >>> wc;
+			int dc = Integer.MAX_VALUE;
+			if (left != 0) {
+				dc = wc - (63 - Long.numberOfLeadingZeros(left));
+			}
+			if (right != 0) {
+				dc = Math.min(dc, Long.numberOfTrailingZeros(right));
+			}
+			best = Math.min(best, Math.max(Math.abs(dr), dc));
+		}
+		if (best == Integer.MAX_VALUE) {
+			return -1;
+		}
+
+		// Second pass: pick uniformly among the cells on the ring at that distance.
+		int seen = 0;
+		long chosen = -1;
+		for (int dr = -Math.min(best, wr); dr <= Math.min(best, wr); dr++) {
+			int r = wrap(row + dr, depth);
+			long bits = masked(r, col, wc, mask);
+			long ring;
+			if (Math.abs(dr) == best) {
+				ring = bits & rangeMask(wc - best, wc + best);
+			} else {
+				ring = bits & (bit(wc - best) | bit(wc + best));
+			}
+			int count = Long.bitCount(ring);
+			if (count == 0) {
+				continue;
+			}
+			seen += count;
+			// Replace the choice with probability count / seen.
+			if (rand.nextInt(seen) < count) {
+				int c = wrap(col - wc + selectBit(ring, rand.nextInt(count)), width);
+				chosen = (long) r * width + c;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * @return The position of the k-th lowest set bit, counting from 0.
+	 */
+	static int selectBit(long bits, int k) {
+		for (; k > 0; k--) {
+			bits &= bits - 1;
+		}
+		return Long.numberOfTrailingZeros(bits);
+	}
+
+	private static long bit(int i) {
+		return i >= 0 && i < 64 ? 1L << i : 0;
+	}
+
+	private static long rangeMask(int from, int to) {
+		from = Math.max(from, 0);
+		return ((to >= 63 ? -1L : (1L << (to + 1)) - 1)) & (-1L << from);
+	}
+
+	private static int wrap(int i, int n) {
+		i %= n;
+		return i < 0 ? i + n : i;
+	}
+}
@@ -0,0 +1,78 @@
+package Mars;
+
+/**
+ * The outcome of one headless simulation run.
+ */
+class RunResult {
+	// The seed the run used.
+	public final long seed;
+	// The number of steps simulated.
+	public final int steps;
+	// The number of rocks on the field at the start.
+	public final int rocks;
+	// The number of rocks that reached the mothership.
+	public final int rocksDelivered;
+	// The number of trips that ended in a delivery, and the trips saved by
+	// delivering several rocks at once.
+	public final int deliveries;
+	public final int roundTripsSaved;
+	// The number of rock clusters at the start, and how many were picked clean.
+	public final int clusters;
+	public final int clustersExhausted;
+	// The step at which the target fraction of rocks had been delivered, or -1.
+	public final int stepsToTarget;
+	// The wall-clock time of the run in milliseconds.
+	public final long wallMillis;
+	// Why the run ended before its full length, or "length" if it did not.
+	public final String stopReason;
+
+	RunResult(long seed, int steps, MissionStats stats, ClusterIndex clusters, double target, long wallMillis,
+			String stopReason) {
+		this.seed = seed;
+		this.steps = steps;
+		this.rocks = stats.getInitialRocks();
+		this.rocksDelivered = stats.getRocksDelivered();
+		this.deliveries = stats.getDeliveries();
+		this.roundTripsSaved = stats.getRoundTripsSaved();
+		this.clusters = clusters.getClusters();
+		this.clustersExhausted = clusters.getExhaustedClusters();
+		this.stepsToTarget = stats.getStepsToDeliver(target);
+		this.wallMillis = wallMillis;
+		this.stopReason = stopReason == null ? "length" : stopReason;
+	}
+
+	/**
+	 * Run a simulation without a view for the length given in its configuration,
+	 * or until one of its stop conditions is met.
+	 *
+	 * @param config
+	 *            The parameters of the run
+	 * @param target
+	 *            The fraction of rocks whose collection time is reported
+	 * @return The outcome of the run
+	 */
+	public static RunResult run(SimulationConfig config, double target) {
+		long start = System.nanoTime();
+		Simulator s = new Simulator(config, false);
+		s.simulate(config.length);
+		long wall = (System.nanoTime() - start) / 1000000;
+		return new RunResult(config.seed, s.getStep(), s.getStats(), s.getClusters(), target, wall,
+				s.getStopReason());
+	}
+
+	/**
+	 * @return The number of rocks delivered per 1000 steps, however many each
+	 *         trip brought.
+	 */
+	public double getRocksDeliveredPer1000Steps() {
+		return steps == 0 ? 0.0 : rocksDelivered * 1000.0 / steps;
+	}
+
+	/**
+	 * @return The number of trips that ended in a delivery per 1000 steps.
+	 *         Vehicles carrying several rocks make fewer.
+	 */
+	public double getDeliveriesPer1000Steps() {
+		return steps == 0 ? 0.0 : deliveries * 1000.0 / steps;
+	}
+}
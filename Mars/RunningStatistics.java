@@ -0,0 +1,130 @@
+package Mars;
+
+/**
+ * Streaming mean and variance of a series of observations, updated one value
+ * at a time with Welford's algorithm so that nothing has to be stored and the
+ * variance does not suffer from cancellation.
+ */
+class RunningStatistics {
+	// The number of observations so far.
+	private long count;
+	// The mean of the observations so far.
+	private double mean;
+	// The sum of squared differences from the current mean.
+	private double m2;
+
+	/**
+	 * Add an observation.
+	 *
+	 * @param x
+	 *            The observed value
+	 */
+	public void add(double x) {
+		count++;
+		double delta = x - mean;
+		mean += delta / count;
+		m2 += delta * (x - mean);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return The sample variance, or 0 with fewer than two observations.
+	 */
+	public double getVariance() {
+		return count < 2 ? 0.0 : m2 / (count - 1);
+	}
+
+	public double getStandardDeviation() {
+		return Math.sqrt(getVariance());
+	}
+
+	/**
+	 * Half the width of the two-sided confidence interval of the mean, using
+	 * Student's t distribution with count - 1 degrees of freedom.
+	 *
+	 * @param confidence
+	 *            The confidence level, e.g. 0.95
+	 * @return The half width, or infinity with fewer than two observations.
+	 */
+	public double getHalfWidth(double confidence) {
+		if (count < 2) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double t = studentQuantile(1 - (1 - confidence) / 2, count - 1);
+		return t * getStandardDeviation() / Math.sqrt(count);
+	}
+
+	/**
+	 * Quantile of Student's t distribution. Up to 4 degrees of freedom it is
+	 * exact, where the expansion below is far too low (9.7 for 12.71 at 95%
+	 * with one); from 5 on it is the Cornish-Fisher expansion of the normal
+	 * quantile, accurate to about 1%, which is plenty for deciding when to stop
+	 * replicating.
+	 */
+	static double studentQuantile(double p, long dof) {
+		if (dof == 1) {
+			return Math.tan(Math.PI * (p - 0.5));
+		}
+		if (dof == 2) {
+			return (2 * p - 1) / Math.sqrt(2 * p * (1 - p));
+		}
+		if (dof == 3) {
+			// No closed form: solve F(t) = p by Newton's method from the expansion
+			double t = cornishFisher(p, dof);
+			for (int i = 0; i < 20; i++) {
+				double u = t / Math.sqrt(3);
+				double cdf = 0.5 + (u / (1 + u * u) + Math.atan(u)) / Math.PI;
+				double density = 6 * Math.sqrt(3) / (Math.PI * (3 + t * t) * (3 + t * t));
+				double step = (cdf - p) / density;
+				t -= step;
+				if (Math.abs(step) < 1e-12 * Math.max(1, Math.abs(t))) {
+					break;
+				}
+			}
+			return t;
+		}
+		if (dof == 4) {
+			double a = 4 * p * (1 - p);
+			double q = Math.cos(Math.acos(Math.sqrt(a)) / 3) / Math.sqrt(a);
+			return Math.signum(p - 0.5) * 2 * Math.sqrt(q - 1);
+		}
+		return cornishFisher(p, dof);
+	}
+
+	/**
+	 * Approximate quantile of Student's t distribution, from the normal quantile
+	 * by the Cornish-Fisher expansion.
+	 */
+	private static double cornishFisher(double p, long dof) {
+		double z = normalQuantile(p);
+		double z3 = z * z * z;
+		double z5 = z3 * z * z;
+		double z7 = z5 * z * z;
+		double n = dof;
+		return z + (z3 + z) / (4 * n) + (5 * z5 + 16 * z3 + 3 * z) / (96 * n * n)
+				+ (3 * z7 + 19 * z5 + 17 * z3 - 15 * z) / (384 * n * n * n);
+	}
+
+	/**
+	 * Quantile of the standard normal distribution, by the rational
+	 * approximation of Abramowitz and Stegun 26.2.23 (error below 4.5e-4).
+	 */
+	static double normalQuantile(double p) {
+		if (p <= 0 || p >= 1) {
+			throw new IllegalArgumentException("Probability out of range: " + p);
+		}
+		if (p < 0.5) {
+			return -normalQuantile(1 - p);
+		}
+		double t = Math.sqrt(-2 * Math.log(1 - p));
+		return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+				/ (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+	}
+}
@@ -0,0 +1,438 @@
+package Mars;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * One process of a sharded run. The field is cut into strips of whole rows,
+ * one per shard, and the shards form a ring over loopback TCP: each one talks
+ * to the shard owning the rows above its strip and the one owning the rows
+ * below, wrapping round the torus.
+ *
+ * Every shard builds the same world from the seed, then keeps only its own
+ * vehicles and rocks and the rows it can see: its strip and a halo of
+ * neighbouring rows as deep as the furthest sensing radius. The mothership's
+ * signal covers the whole field in every shard. Steps are synchronous (see
+ * SynchronousStep) and take three exchanges with each neighbour:
+ *
+ * <ol>
+ * <li>the claims on the two rows either side of the shared edge, which are all
+ * the claims either side needs to resolve those rows as one process would;
+ * <li>the vehicles that moved across the edge;
+ * <li>the edge rows themselves, code and crumbs per location (see
+ * FrameEncoder.codeOf), which replace the neighbour's halo.
+ * </ol>
+ *
+ * Halo locations hold stand-in entities of the right kind, so sensing and
+ * moving treat them exactly as the real ones.
+ *
+ * Usage: java Mars.ShardWorker shard=i shards=n [port=9500] [name=value ...]
+ *
+ * Shard i listens on port + i. Other arguments set parameters named as in the
+ * setup GUI. At the end the worker prints its totals and a digest of each of
+ * its rows for ShardedRunner to put together.
+ */
+public class ShardWorker implements SynchronousStep.Boundary {
+	// How long to keep trying to reach a neighbour that has not started yet.
+	private static final long CONNECT_MILLIS = 30000;
+
+	private final SimulationConfig config;
+	private final int depth;
+	private final int width;
+	// This shard's rows, first to end - 1, and the depth of its halo.
+	private final int first;
+	private final int end;
+	private final int halo;
+	// The links to the shards owning the rows above and below.
+	private Link up;
+	private Link down;
+	// Stand-ins for what the neighbours hold in the halo.
+	private final Rock ghostRock = new Rock(null);
+	private final Obstacle ghostObstacle = new Obstacle(null);
+	private final Vehicle ghostVehicle = new Vehicle(null);
+	private final Vehicle ghostCarrying = new Vehicle(null);
+	private final Mothership ghostMothership = new Mothership(null);
+
+	/**
+	 * A connection to a neighbouring shard. Messages are written on their own
+	 * thread, so that two shards sending to each other at once cannot both
+	 * block on full socket buffers.
+	 */
+	private static class Link {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "shard link");
+			t.setDaemon(true);
+			return t;
+		});
+
+		Link(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		Future<?> send(byte[] message) {
+			return writer.submit(() -> {
+				try {
+					out.writeInt(message.length);
+					out.write(message);
+					out.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+
+		DataInputStream receive() throws IOException {
+			byte[] message = new byte[in.readInt()];
+			in.readFully(message);
+			return new DataInputStream(new ByteArrayInputStream(message));
+		}
+
+		void close() throws IOException {
+			writer.shutdown();
+			socket.close();
+		}
+	}
+
+	/**
+	 * @param config
+	 *            The parameters of the run, the same in every shard
+	 * @param shard
+	 *            This shard's number, from 0
+	 * @param shards
+	 *            The number of shards
+	 */
+	public ShardWorker(SimulationConfig config, int shard, int shards) {
+		this.config = config;
+		this.depth = config.depth;
+		this.width = config.width;
+		this.first = (int) ((long) shard * depth / shards);
+		this.end = (int) ((long) (shard + 1) * depth / shards);
+		this.halo = Math.max(1, Math.max(config.rockSensingRadius,
+				Math.max(config.crumbSensingRadius, config.mothershipSensingRadius)));
+		if (depth / shards < Math.max(2, halo)) {
+			throw new IllegalArgumentException("Each shard needs at least " + Math.max(2, halo) + " rows, but "
+					+ shards + " shards of a field " + depth + " deep get " + depth / shards);
+		}
+		ghostCarrying.restoreCargo(1, -1);
+	}
+
+	/**
+	 * Make a configuration fit for sharding: synchronous steps and no stop
+	 * conditions, since those would need the totals of every shard, and no
+	 * cluster trails, since the halo carries crumbs but not their trails.
+	 */
+	static void prepare(SimulationConfig config) {
+		config.synchronousSteps = true;
+		config.stopDeliveredFraction = 0;
+		config.stopCollectedFraction = 0;
+		config.stopExhaustedFraction = 0;
+		config.stopIdleSteps = 0;
+		config.stopWallMillis = 0;
+		config.clusterTrails = false;
+	}
+
+	/**
+	 * Join the ring: listen for the shard above and connect to the one below.
+	 */
+	void connect(int shard, int shards, int port) throws IOException, InterruptedException {
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (ServerSocket server = new ServerSocket(port + shard, 1, loopback)) {
+			long deadline = System.currentTimeMillis() + CONNECT_MILLIS;
+			Socket socket = null;
+			while (socket == null) {
+				try {
+					socket = new Socket(loopback, port + (shard + 1) % shards);
+				} catch (ConnectException e) {
+					if (System.currentTimeMillis() > deadline) {
+						throw e;
+					}
+					Thread.sleep(50);
+				}
+			}
+			down = new Link(socket);
+			down.out.writeInt(shard);
+			down.out.flush();
+			up = new Link(server.accept());
+			int above = up.in.readInt();
+			if (above != (shard + shards - 1) % shards) {
+				throw new IOException("Expected shard " + (shard + shards - 1) % shards + " above, got " + above);
+			}
+		}
+	}
+
+	void close() throws IOException {
+		up.close();
+		down.close();
+	}
+
+	@Override
+	public boolean owns(int row) {
+		return row >= first && row < end;
+	}
+
+	@Override
+	public boolean sees(int row) {
+		if (owns(row)) {
+			return true;
+		}
+		int above = Math.floorMod(first - row, depth);
+		int below = Math.floorMod(row - (end - 1), depth);
+		return above <= halo || below <= halo;
+	}
+
+	@Override
+	public void exchangeClaims(SynchronousStep.Claims moves, SynchronousStep.Claims pickups) {
+		try {
+			Future<?> toUp = up.send(claims(moves, pickups, first - 1, first));
+			Future<?> toDown = down.send(claims(moves, pickups, end - 1, end));
+			readClaims(up.receive(), moves, pickups);
+			readClaims(down.receive(), moves, pickups);
+			await(toUp, toDown);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @return The claims on two neighbouring rows, as a message.
+	 */
+	private byte[] claims(SynchronousStep.Claims moves, SynchronousStep.Claims pickups, int row1, int row2)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (SynchronousStep.Claims claims : new SynchronousStep.Claims[] { moves, pickups }) {
+			int n = 0;
+			for (int i = 0; i < claims.size(); i++) {
+				n += onRows(claims.get(i), row1, row2) ? 1 : 0;
+			}
+			out.writeInt(n);
+			for (int i = 0; i < claims.size(); i++) {
+				if (onRows(claims.get(i), row1, row2)) {
+					out.writeLong(claims.get(i));
+				}
+			}
+		}
+		return bytes.toByteArray();
+	}
+
+	private boolean onRows(long claim, int row1, int row2) {
+		int row = (int) (SynchronousStep.Claims.cellOf(claim) / width);
+		return row == Math.floorMod(row1, depth) || row == Math.floorMod(row2, depth);
+	}
+
+	private static void readClaims(DataInputStream in, SynchronousStep.Claims moves, SynchronousStep.Claims pickups)
+			throws IOException {
+		for (int n = in.readInt(); n > 0; n--) {
+			moves.add(in.readLong());
+		}
+		for (int n = in.readInt(); n > 0; n--) {
+			pickups.add(in.readLong());
+		}
+	}
+
+	@Override
+	public void finishStep(Field f, ArrayList<Vehicle> vehicles, MissionStats stats) {
+		try {
+			// Hand over the vehicles that left, keeping the rest in order
+			ByteArrayOutputStream upBytes = new ByteArrayOutputStream();
+			ByteArrayOutputStream downBytes = new ByteArrayOutputStream();
+			DataOutputStream toUp = new DataOutputStream(upBytes);
+			DataOutputStream toDown = new DataOutputStream(downBytes);
+			ArrayList<Vehicle> leaving = new ArrayList<Vehicle>();
+			int kept = 0;
+			for (int i = 0; i < vehicles.size(); i++) {
+				Vehicle v = vehicles.get(i);
+				if (owns(v.getLocation().getRow())) {
+					vehicles.set(kept++, v);
+				} else {
+					leaving.add(v);
+				}
+			}
+			vehicles.subList(kept, vehicles.size()).clear();
+			int toUpCount = 0;
+			for (Vehicle v : leaving) {
+				toUpCount += v.getLocation().getRow() == Math.floorMod(first - 1, depth) ? 1 : 0;
+			}
+			toUp.writeInt(toUpCount);
+			toDown.writeInt(leaving.size() - toUpCount);
+			for (Vehicle v : leaving) {
+				writeVehicle(v.getLocation().getRow() == Math.floorMod(first - 1, depth) ? toUp : toDown, v);
+			}
+			Future<?> sentUp = up.send(upBytes.toByteArray());
+			Future<?> sentDown = down.send(downBytes.toByteArray());
+			readVehicles(up.receive(), f, vehicles, stats);
+			readVehicles(down.receive(), f, vehicles, stats);
+			await(sentUp, sentDown);
+
+			// Then trade edge rows for halo rows
+			sentUp = up.send(rows(f, first));
+			sentDown = down.send(rows(f, end - halo));
+			readRows(up.receive(), f, first - halo);
+			readRows(down.receive(), f, end);
+			await(sentUp, sentDown);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeVehicle(DataOutputStream out, Vehicle v) throws IOException {
+		out.writeInt(v.getIndex());
+		out.writeInt(v.getLocation().getRow());
+		out.writeInt(v.getLocation().getCol());
+		out.writeInt(v.getCargo());
+		out.writeInt(v.getCargoCluster());
+		out.writeUTF(v.getPolicy().getName());
+		out.writeLong(v.getRandom().getKey());
+		out.writeLong(v.getRandom().getPosition());
+	}
+
+	private void readVehicles(DataInputStream in, Field f, ArrayList<Vehicle> vehicles, MissionStats stats)
+			throws IOException {
+		for (int n = in.readInt(); n > 0; n--) {
+			int index = in.readInt();
+			Location l = f.locationAt(in.readInt(), in.readInt());
+			int cargo = in.readInt();
+			int cluster = in.readInt();
+			BehaviourPolicy policy = BehaviourPolicy.forName(in.readUTF());
+			RandomStream random = RandomStream.fromKey(in.readLong());
+			random.setPosition(in.readLong());
+			Vehicle v = new Vehicle(l, policy, stats, random);
+			v.setSensingRadii(config.rockSensingRadius, config.crumbSensingRadius, config.mothershipSensingRadius);
+			v.setCrumbsPerDrop(config.crumbsPerDrop);
+			v.setCarryingCapacity(config.carryingCapacity);
+			v.setIndex(index);
+			v.restoreCargo(cargo, cluster);
+			f.place(v, l);
+			vehicles.add(v);
+		}
+	}
+
+	/**
+	 * @return halo rows from a given one, two bytes per location: code, crumbs.
+	 */
+	private byte[] rows(Field f, int from) {
+		byte[] message = new byte[2 * halo * width];
+		int i = 0;
+		for (int r = 0; r < halo; r++) {
+			int row = Math.floorMod(from + r, depth);
+			for (int col = 0; col < width; col++) {
+				message[i++] = (byte) FrameEncoder.codeOf(f.getObjectAt(row, col));
+				message[i++] = (byte) f.getCrumbQuantityAt(f.locationAt(row, col));
+			}
+		}
+		return message;
+	}
+
+	private void readRows(DataInputStream in, Field f, int from) throws IOException {
+		for (int r = 0; r < halo; r++) {
+			int row = Math.floorMod(from + r, depth);
+			for (int col = 0; col < width; col++) {
+				int code = in.readByte();
+				if (FrameEncoder.codeOf(f.getObjectAt(row, col)) != code) {
+					if (code == FrameEncoder.EMPTY) {
+						f.clearLocation(f.locationAt(row, col));
+					} else {
+						f.place(ghost(code), row, col);
+					}
+				}
+				f.setCrumbQuantity(row, col, in.readByte());
+			}
+		}
+	}
+
+	private Entity ghost(int code) {
+		switch (code) {
+		case FrameEncoder.ROCK:
+			return ghostRock;
+		case FrameEncoder.OBSTACLE:
+			return ghostObstacle;
+		case FrameEncoder.VEHICLE:
+			return ghostVehicle;
+		case FrameEncoder.VEHICLE_CARRYING:
+			return ghostCarrying;
+		default:
+			return ghostMothership;
+		}
+	}
+
+	private static void await(Future<?> a, Future<?> b) throws IOException {
+		try {
+			a.get();
+			b.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * @return A digest of a row's entities and crumbs. Equal rows give equal
+	 *         digests whichever process holds them.
+	 */
+	static long rowDigest(Field f, int row) {
+		long h = row;
+		for (int col = 0; col < f.getWidth(); col++) {
+			long cell = FrameEncoder.codeOf(f.getObjectAt(row, col)) | (long) f.getCrumbQuantityAt(f.locationAt(row, col)) << 8;
+			h = RandomStream.mix64(h ^ cell);
+		}
+		return h;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "shard", "shards", "port");
+		int shard = Integer.parseInt(own.getOrDefault("shard", "-1"));
+		int shards = Integer.parseInt(own.getOrDefault("shards", "-1"));
+		int port = Integer.parseInt(own.getOrDefault("port", "9500"));
+		if (shards < 1 || shard < 0 || shard >= shards) {
+			throw new IllegalArgumentException("Expected shard=i shards=n with 0 <= i < n");
+		}
+		prepare(config);
+
+		Simulator sim = new Simulator(config, false);
+		ShardWorker worker = new ShardWorker(config, shard, shards);
+		if (shards > 1) {
+			sim.shard(worker);
+			worker.connect(shard, shards, port);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < config.length; i++) {
+			sim.simulateOneStep();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		if (shards > 1) {
+			worker.close();
+		}
+
+		MissionStats stats = sim.getStats();
+		System.out.println("shard " + shard + " millis " + millis + " vehicles " + sim.getVehicles().size()
+				+ " pickedUp " + stats.getRocksPickedUp() + " delivered " + stats.getRocksDelivered());
+		for (int row = worker.first; row < worker.end; row++) {
+			System.out.println("row " + row + " " + rowDigest(sim.getField(), row));
+		}
+	}
+}
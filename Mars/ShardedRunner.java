@@ -0,0 +1,139 @@
+package Mars;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs one simulation split over several local processes, one ShardWorker per
+ * strip of the field, and puts their results together. With verify=true it
+ * then runs the same simulation in this process and checks that the field and
+ * the totals come out the same, which they must: the shards only ever act on
+ * what a single process would have seen.
+ *
+ * Sharded runs use synchronous steps (see SynchronousStep) and always run for
+ * their full length.
+ *
+ * Usage: java Mars.ShardedRunner [name=value ...]
+ *
+ * The parameters of the simulation (see SimulationConfig.parseArgs()) are
+ * passed on to every worker. Besides them:
+ *
+ * <pre>
+ * shards = 2        # the number of worker processes
+ * port = 9500       # worker i listens on port + i
+ * verify = true     # compare with a single-process run
+ * </pre>
+ *
+ * Exits with status 1 if the sharded and single-process runs differ.
+ */
+public class ShardedRunner {
+
+	/**
+	 * @return The digest of a whole field from the digests of its rows in order.
+	 */
+	static long fieldDigest(long[] rows) {
+		long h = rows.length;
+		for (long row : rows) {
+			h = RandomStream.mix64(h ^ row);
+		}
+		return h;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "shards", "port", "verify");
+		int shards = Integer.parseInt(own.getOrDefault("shards", "2"));
+		int port = Integer.parseInt(own.getOrDefault("port", "9500"));
+		boolean verify = Boolean.parseBoolean(own.getOrDefault("verify", "true"));
+		// The parameters of the simulation are passed on to every worker
+		List<String> passed = new ArrayList<String>();
+		for (String arg : args) {
+			if (!own.containsKey(arg.substring(0, arg.indexOf('=')).trim())) {
+				passed.add(arg);
+			}
+		}
+		ShardWorker.prepare(config);
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<Process> workers = new ArrayList<Process>();
+		long start = System.nanoTime();
+		for (int shard = 0; shard < shards; shard++) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ShardWorker.class.getName());
+			command.add("shard=" + shard);
+			command.add("shards=" + shards);
+			command.add("port=" + port);
+			command.addAll(passed);
+			workers.add(new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+		}
+
+		long[] rows = new long[config.depth];
+		int pickedUp = 0;
+		int delivered = 0;
+		boolean failed = false;
+		for (int shard = 0; shard < shards; shard++) {
+			Process p = workers.get(shard);
+			try (BufferedReader in = new BufferedReader(
+					new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+				for (String line = in.readLine(); line != null; line = in.readLine()) {
+					String[] words = line.split(" ");
+					if (words[0].equals("row")) {
+						rows[Integer.parseInt(words[1])] = Long.parseLong(words[2]);
+					} else if (words[0].equals("shard")) {
+						pickedUp += Integer.parseInt(words[7]);
+						delivered += Integer.parseInt(words[9]);
+						System.out.println(line);
+					}
+				}
+			}
+			if (p.waitFor() != 0) {
+				System.err.println("Shard " + shard + " failed with status " + p.exitValue());
+				failed = true;
+			}
+		}
+		if (failed) {
+			System.exit(2);
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		long digest = fieldDigest(rows);
+		System.out.println(shards + " shards: " + config.length + " steps in " + millis + " ms, picked up " + pickedUp
+				+ ", delivered " + delivered + ", field digest " + Long.toHexString(digest));
+
+		if (!verify) {
+			return;
+		}
+		start = System.nanoTime();
+		Simulator s = new Simulator(config, false);
+		s.simulate(config.length);
+		millis = (System.nanoTime() - start) / 1000000;
+		long[] single = new long[config.depth];
+		for (int row = 0; row < single.length; row++) {
+			single[row] = ShardWorker.rowDigest(s.getField(), row);
+		}
+		long singleDigest = fieldDigest(single);
+		MissionStats stats = s.getStats();
+		System.out.println("1 process: " + config.length + " steps in " + millis + " ms, picked up "
+				+ stats.getRocksPickedUp() + ", delivered " + stats.getRocksDelivered() + ", field digest "
+				+ Long.toHexString(singleDigest));
+		if (singleDigest != digest || stats.getRocksPickedUp() != pickedUp || stats.getRocksDelivered() != delivered) {
+			for (int row = 0; row < rows.length; row++) {
+				if (rows[row] != single[row]) {
+					System.err.println("First differing row: " + row);
+					break;
+				}
+			}
+			System.err.println("The sharded run differs from the single-process run.");
+			System.exit(1);
+		}
+		System.out.println("The sharded run matches the single-process run.");
+	}
+}
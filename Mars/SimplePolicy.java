@@ -0,0 +1,89 @@
+package Mars;
+
+import java.util.ArrayList;
+
+/**
+ * The simple implementation: vehicles wander until they find a sample and then
+ * follow the signal back to the mothership. Crumbs are ignored.
+ */
+final class SimplePolicy implements BehaviourPolicy {
+	static final String NAME = "simple";
+	static final SimplePolicy INSTANCE = new SimplePolicy();
+
+	private SimplePolicy() {
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public boolean isIdle(Vehicle v, VehicleState state, Field f) {
+		// Boxed in, a vehicle can only act on what it senses
+		if (!v.isBoxedIn(f)) {
+			return false;
+		}
+		if (state == VehicleState.CARRYING) {
+			return !v.sensesMothership(f) && (v.isFull() || !v.sensesSample(f));
+		}
+		return !v.sensesSample(f);
+	}
+
+	@Override
+	public void actCarrying(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		for (int i = 0; i < batch.size(); i++) {
+			Vehicle v = batch.get(i);
+			if (v.findAdjacentMothership(f) != null) {
+				// if carrying samples and at the base then drop them all (1)
+				v.dropSample();
+			} else {
+				Location sample = v.isFull() ? null : v.detectSample(f);
+				if (sample != null) {
+					// if there is room for another sample and one is in sensing range then
+					// harvest it before heading back
+					if (v.isAdjacent(f, sample)) {
+						v.pickUpSample(f, sample, rocksCollected);
+					} else {
+						v.moveTowards(f, sample);
+					}
+				} else {
+					// if full or out of samples in reach and not at the base then travel up
+					// gradient (2), or straight for the base once it is in sensing range
+					Location base = v.senseMothership(f);
+					if (base != null) {
+						v.moveTowards(f, base);
+					} else {
+						v.moveUpGradient(f);
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public void actOnCrumbs(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		// crumbs mean nothing to this policy
+		actSearching(batch, f, m, rocksCollected);
+	}
+
+	@Override
+	public void actSearching(ArrayList<Vehicle> batch, Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+		for (int i = 0; i < batch.size(); i++) {
+			Vehicle v = batch.get(i);
+			Location sample = v.detectSample(f);
+			if (sample != null) {
+				if (v.isAdjacent(f, sample)) {
+					// if detect a sample then pick sample (3)
+					v.pickUpSample(f, sample, rocksCollected);
+				} else {
+					// if a sample is in sensing range then head for it
+					v.moveTowards(f, sample);
+				}
+			} else {
+				// if true then move randomly (4)
+				v.moveRandomly(f);
+			}
+		}
+	}
+}
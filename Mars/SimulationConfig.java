@@ -0,0 +1,302 @@
+package Mars;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The parameters of a single simulation run. ModelConstants holds the values
+ * the GUI edits; a run takes its own copy of them so that several runs with
+ * different parameters can share one JVM.
+ */
+class SimulationConfig {
+	// The duration of the simulation.
+	public int length;
+	// The seed of the run.
+	public long seed;
+	// The seed of the world: where rocks, obstacles, vehicles and the
+	// mothership start. Runs with the same world seed share one copy of the
+	// world; negative takes the world from the run's seed.
+	public long worldSeed;
+	// The width and depth of the grid.
+	public int width;
+	public int depth;
+	// The number of rock clusters, their std dev and the number of rocks.
+	public int rockClusters;
+	public double rockClusterStd;
+	public int rockLocations;
+	// The probabilities that an obstacle or a vehicle is created in a position.
+	public double obstacleCreationProbability;
+	public double vehicleCreationProbability;
+	// The behaviour policies of the fleet and the share using the secondary one.
+	public String behaviourPolicy;
+	public String secondaryBehaviourPolicy;
+	public double secondaryPolicyProportion;
+	// How far vehicles sense rocks, crumbs and the mothership.
+	public int rockSensingRadius;
+	public int crumbSensingRadius;
+	public int mothershipSensingRadius;
+	// The most samples a vehicle carries back in one trip.
+	public int carryingCapacity;
+	// The crumbs a vehicle drops per step on its way home, the most a location
+	// holds, and how many steps pass between decays (0 for never).
+	public int crumbsPerDrop;
+	public int maxCrumbs;
+	public int crumbDecayInterval;
+	// Whether crumbs lead to the cluster their trail came from and are ignored
+	// once it is picked clean; see Field.followTrails().
+	public boolean clusterTrails;
+	// When to end a run early: the fractions of rocks delivered or collected,
+	// the fraction of rock clusters picked clean, the number of steps without
+	// a change and the wall-clock budget in milliseconds. Zero leaves a
+	// condition out.
+	public double stopDeliveredFraction;
+	public double stopCollectedFraction;
+	public double stopExhaustedFraction;
+	public int stopIdleSteps;
+	public long stopWallMillis;
+	// Whether vehicles with nothing to do are skipped until something changes.
+	public boolean activeScheduling;
+	// Whether vehicles all plan on the field as it was at the start of a step
+	// and then move together, instead of one after another; see SynchronousStep.
+	public boolean synchronousSteps;
+	// Whether the run keeps heatmaps of visits, crumbs and pickups; see
+	// Heatmaps. Runs with a view always do.
+	public boolean heatmaps;
+	// The last steps the run can be stepped back over, 0 for none; see
+	// StepJournal. Runs with a view keep at least StepJournal.VIEW_STEPS.
+	public int journalSteps;
+
+	/**
+	 * @return A configuration holding the current values of ModelConstants.
+	 */
+	public static SimulationConfig fromModelConstants() {
+		SimulationConfig c = new SimulationConfig();
+		c.length = ModelConstants.LENGTH;
+		c.seed = ModelConstants.RANDOM_SEED;
+		c.worldSeed = ModelConstants.WORLD_SEED;
+		c.width = ModelConstants.DEFAULT_WIDTH;
+		c.depth = ModelConstants.DEFAULT_DEPTH;
+		c.rockClusters = ModelConstants.ROCK_CLUSTERS;
+		c.rockClusterStd = ModelConstants.ROCK_CLUSTER_STD;
+		c.rockLocations = ModelConstants.ROCK_LOCATIONS;
+		c.obstacleCreationProbability = ModelConstants.OBSTACLE_CREATION_PROBABILITY;
+		c.vehicleCreationProbability = ModelConstants.VEHICLE_CREATION_PROBABILITY;
+		c.behaviourPolicy = ModelConstants.BEHAVIOUR_POLICY;
+		c.secondaryBehaviourPolicy = ModelConstants.SECONDARY_BEHAVIOUR_POLICY;
+		c.secondaryPolicyProportion = ModelConstants.SECONDARY_POLICY_PROPORTION;
+		c.rockSensingRadius = ModelConstants.ROCK_SENSING_RADIUS;
+		c.crumbSensingRadius = ModelConstants.CRUMB_SENSING_RADIUS;
+		c.mothershipSensingRadius = ModelConstants.MOTHERSHIP_SENSING_RADIUS;
+		c.carryingCapacity = ModelConstants.CARRYING_CAPACITY;
+		c.crumbsPerDrop = ModelConstants.CRUMBS_PER_DROP;
+		c.maxCrumbs = ModelConstants.MAX_CRUMBS;
+		c.crumbDecayInterval = ModelConstants.CRUMB_DECAY_INTERVAL;
+		c.clusterTrails = ModelConstants.CLUSTER_TRAILS;
+		c.stopDeliveredFraction = ModelConstants.STOP_DELIVERED_FRACTION;
+		c.stopCollectedFraction = ModelConstants.STOP_COLLECTED_FRACTION;
+		c.stopExhaustedFraction = ModelConstants.STOP_EXHAUSTED_FRACTION;
+		c.stopIdleSteps = ModelConstants.STOP_IDLE_STEPS;
+		c.stopWallMillis = ModelConstants.STOP_WALL_MILLIS;
+		c.activeScheduling = ModelConstants.ACTIVE_SCHEDULING;
+		c.synchronousSteps = ModelConstants.SYNCHRONOUS_STEPS;
+		c.heatmaps = ModelConstants.HEATMAPS;
+		c.journalSteps = ModelConstants.JOURNAL_STEPS;
+		return c;
+	}
+
+	/**
+	 * @return An independent copy of this configuration.
+	 */
+	public SimulationConfig copy() {
+		SimulationConfig c = new SimulationConfig();
+		c.length = length;
+		c.seed = seed;
+		c.worldSeed = worldSeed;
+		c.width = width;
+		c.depth = depth;
+		c.rockClusters = rockClusters;
+		c.rockClusterStd = rockClusterStd;
+		c.rockLocations = rockLocations;
+		c.obstacleCreationProbability = obstacleCreationProbability;
+		c.vehicleCreationProbability = vehicleCreationProbability;
+		c.behaviourPolicy = behaviourPolicy;
+		c.secondaryBehaviourPolicy = secondaryBehaviourPolicy;
+		c.secondaryPolicyProportion = secondaryPolicyProportion;
+		c.rockSensingRadius = rockSensingRadius;
+		c.crumbSensingRadius = crumbSensingRadius;
+		c.mothershipSensingRadius = mothershipSensingRadius;
+		c.carryingCapacity = carryingCapacity;
+		c.crumbsPerDrop = crumbsPerDrop;
+		c.maxCrumbs = maxCrumbs;
+		c.crumbDecayInterval = crumbDecayInterval;
+		c.clusterTrails = clusterTrails;
+		c.stopDeliveredFraction = stopDeliveredFraction;
+		c.stopCollectedFraction = stopCollectedFraction;
+		c.stopExhaustedFraction = stopExhaustedFraction;
+		c.stopIdleSteps = stopIdleSteps;
+		c.stopWallMillis = stopWallMillis;
+		c.activeScheduling = activeScheduling;
+		c.synchronousSteps = synchronousSteps;
+		c.heatmaps = heatmaps;
+		c.journalSteps = journalSteps;
+		return c;
+	}
+
+	/**
+	 * Set a parameter by the name of its field in the setup GUI, e.g.
+	 * "marsWidth" or "obstacleCreationProb". Parameters without a GUI field use
+	 * the name of their field here, e.g. "rockSensingRadius".
+	 *
+	 * @param name
+	 *            The name of the parameter
+	 * @param value
+	 *            Its value as text
+	 * @throws IllegalArgumentException
+	 *             if there is no parameter with that name or the value does not
+	 *             parse
+	 */
+	public void set(String name, String value) {
+		value = value.trim();
+		switch (name) {
+		case "simLength":
+			length = (int) Math.round(Double.parseDouble(value));
+			break;
+		case "simSeed":
+			seed = Math.round(Double.parseDouble(value));
+			break;
+		case "worldSeed":
+			worldSeed = Long.parseLong(value);
+			break;
+		case "marsWidth":
+			width = (int) Math.round(Double.parseDouble(value));
+			break;
+		case "marsDepth":
+			depth = (int) Math.round(Double.parseDouble(value));
+			break;
+		case "rockClusterNum":
+			rockClusters = (int) Math.round(Double.parseDouble(value));
+			break;
+		case "rockClusterStd":
+			rockClusterStd = Double.parseDouble(value);
+			break;
+		case "rockLocations":
+			rockLocations = (int) Math.round(Double.parseDouble(value));
+			break;
+		case "obstacleCreationProb":
+			obstacleCreationProbability = Double.parseDouble(value);
+			break;
+		case "vehicleCreationProb":
+			vehicleCreationProbability = Double.parseDouble(value);
+			break;
+		case "behaviourPolicy":
+			behaviourPolicy = BehaviourPolicy.forName(value).getName();
+			break;
+		case "secondaryPolicy":
+			secondaryBehaviourPolicy = BehaviourPolicy.forName(value).getName();
+			break;
+		case "secondaryShare":
+			secondaryPolicyProportion = Double.parseDouble(value);
+			break;
+		case "rockSensingRadius":
+			rockSensingRadius = Integer.parseInt(value);
+			break;
+		case "crumbSensingRadius":
+			crumbSensingRadius = Integer.parseInt(value);
+			break;
+		case "mothershipSensingRadius":
+			mothershipSensingRadius = Integer.parseInt(value);
+			break;
+		case "carryingCapacity":
+			carryingCapacity = Integer.parseInt(value);
+			break;
+		case "crumbsPerDrop":
+			crumbsPerDrop = Integer.parseInt(value);
+			break;
+		case "maxCrumbs":
+			maxCrumbs = Integer.parseInt(value);
+			break;
+		case "crumbDecayInterval":
+			crumbDecayInterval = Integer.parseInt(value);
+			break;
+		case "stopDeliveredFraction":
+			stopDeliveredFraction = Double.parseDouble(value);
+			break;
+		case "stopCollectedFraction":
+			stopCollectedFraction = Double.parseDouble(value);
+			break;
+		case "stopExhaustedFraction":
+			stopExhaustedFraction = Double.parseDouble(value);
+			break;
+		case "stopIdleSteps":
+			stopIdleSteps = Integer.parseInt(value);
+			break;
+		case "stopWallMillis":
+			stopWallMillis = Long.parseLong(value);
+			break;
+		case "activeScheduling":
+			activeScheduling = Boolean.parseBoolean(value);
+			break;
+		case "synchronousSteps":
+			synchronousSteps = Boolean.parseBoolean(value);
+			break;
+		case "heatmaps":
+			heatmaps = Boolean.parseBoolean(value);
+			break;
+		case "clusterTrails":
+			clusterTrails = Boolean.parseBoolean(value);
+			break;
+		case "journalSteps":
+			journalSteps = Integer.parseInt(value);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown parameter: " + name);
+		}
+	}
+
+	/**
+	 * Read the name=value arguments of a command-line tool. Names the tool
+	 * handles itself are handed back; every other name sets a parameter of the
+	 * configuration, as with set().
+	 *
+	 * @param args
+	 *            The arguments
+	 * @param config
+	 *            The configuration to set, or null if the tool takes no
+	 *            parameters of the simulation
+	 * @param extras
+	 *            The names the tool handles itself; one ending in a dot, e.g.
+	 *            "branch.", stands for every name starting with it
+	 * @return The values given for the tool's own names, by name, in the order
+	 *         given; a name given twice keeps its last value
+	 * @throws IllegalArgumentException
+	 *             if an argument is not name=value or its name is unknown
+	 */
+	static Map<String, String> parseArgs(String[] args, SimulationConfig config, String... extras) {
+		Map<String, String> own = new LinkedHashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			String name = arg.substring(0, eq).trim();
+			String value = arg.substring(eq + 1).trim();
+			if (isExtra(name, extras)) {
+				own.put(name, value);
+			} else if (config != null) {
+				config.set(name, value);
+			} else {
+				throw new IllegalArgumentException("Unknown parameter: " + name);
+			}
+		}
+		return own;
+	}
+
+	private static boolean isExtra(String name, String[] extras) {
+		for (String extra : extras) {
+			if (extra.endsWith(".") ? name.startsWith(extra) && name.length() > extra.length() : name.equals(extra)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
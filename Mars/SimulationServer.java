@@ -0,0 +1,266 @@
+package Mars;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs a simulation without a window and streams it over HTTP, so that any
+ * number of people can watch a run on a headless machine from a browser.
+ *
+ * GET / serves a small viewer page. GET /stream is a server-sent event stream:
+ * a "keyframe" event with the whole field when a viewer joins and every
+ * keyframeInterval steps, a "delta" event with the changed locations after
+ * every step in between, and an "end" event with the stop reason when the run
+ * is over. The frame formats are described in FrameEncoder.
+ *
+ * The simulation never waits for a viewer. Each viewer has a short queue of
+ * frames; if it is full the viewer has fallen behind, so its queue is emptied
+ * and it is sent a keyframe to catch up from instead.
+ *
+ * Usage: java Mars.SimulationServer [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * port = 8080
+ * stepsPerSecond = 20       # 0 runs as fast as possible
+ * keyframeInterval = 100    # steps between keyframes
+ * </pre>
+ */
+public class SimulationServer {
+	// The number of frames a viewer may fall behind before frames are dropped.
+	private static final int QUEUE_FRAMES = 64;
+	// How often an idle stream is sent a comment, to keep the connection open.
+	private static final long KEEPALIVE_SECONDS = 15;
+
+	private final Simulator sim;
+	private final FrameEncoder encoder;
+	private final int length;
+	private final double stepsPerSecond;
+	private final int keyframeInterval;
+	private final CopyOnWriteArrayList<Viewer> viewers = new CopyOnWriteArrayList<Viewer>();
+	// The last keyframe, and the end event once the run is over, for late viewers.
+	private volatile String lastKeyframe;
+	private volatile String endEvent;
+	private HttpServer http;
+
+	/**
+	 * One connected viewer and the frames waiting to be written to it.
+	 */
+	private static class Viewer {
+		final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_FRAMES);
+		// Set when the viewer joins or falls behind; it then needs the whole field.
+		volatile boolean needsKeyframe = true;
+		// The number of times frames were dropped for this viewer.
+		int drops;
+	}
+
+	public SimulationServer(SimulationConfig config, double stepsPerSecond, int keyframeInterval) {
+		this.sim = new Simulator(config, false);
+		this.encoder = new FrameEncoder(sim);
+		this.length = config.length;
+		this.stepsPerSecond = stepsPerSecond;
+		this.keyframeInterval = Math.max(1, keyframeInterval);
+		this.lastKeyframe = event("keyframe", encoder.keyframe());
+	}
+
+	/**
+	 * Start answering requests on a port.
+	 */
+	public void start(int port) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(port), 0);
+		http.createContext("/stream", this::stream);
+		http.createContext("/", this::page);
+		// Each open stream holds a thread while it waits for frames.
+		ExecutorService executor = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "viewer");
+			t.setDaemon(true);
+			return t;
+		});
+		http.setExecutor(executor);
+		http.start();
+	}
+
+	/**
+	 * Run the simulation to its end, publishing a frame after every step.
+	 */
+	public void run() throws InterruptedException {
+		long interval = stepsPerSecond > 0 ? (long) (1e9 / stepsPerSecond) : 0;
+		long next = System.nanoTime();
+		while (sim.getStep() < length && sim.getStopReason() == null) {
+			sim.simulateOneStep();
+			publish();
+			if (interval > 0) {
+				next += interval;
+				long wait = next - System.nanoTime();
+				if (wait > 0) {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} else {
+					next = System.nanoTime();
+				}
+			}
+		}
+		String reason = sim.getStopReason() == null ? "length" : sim.getStopReason();
+		lastKeyframe = event("keyframe", encoder.keyframe());
+		endEvent = event("end", "{\"step\":" + sim.getStep() + ",\"reason\":\"" + reason + "\"}");
+		for (Viewer v : viewers) {
+			v.queue.clear();
+			v.queue.offer(lastKeyframe);
+			v.queue.offer(endEvent);
+		}
+	}
+
+	/**
+	 * Hand the frame of the step just run to every viewer.
+	 */
+	private void publish() {
+		String delta = event("delta", encoder.delta());
+		String keyframe = null;
+		boolean periodic = sim.getStep() % keyframeInterval == 0;
+		if (periodic) {
+			keyframe = event("keyframe", encoder.keyframe());
+			lastKeyframe = keyframe;
+		}
+		for (Viewer v : viewers) {
+			if (v.needsKeyframe || periodic) {
+				if (keyframe == null) {
+					keyframe = event("keyframe", encoder.keyframe());
+					lastKeyframe = keyframe;
+				}
+				// A keyframe replaces whatever the viewer has not been sent yet
+				v.queue.clear();
+				v.needsKeyframe = false;
+				v.queue.offer(keyframe);
+			} else if (!v.queue.offer(delta)) {
+				v.drops++;
+				v.queue.clear();
+				v.needsKeyframe = true;
+			}
+		}
+	}
+
+	private static String event(String name, String data) {
+		return "event: " + name + "\ndata: " + data + "\n\n";
+	}
+
+	private void stream(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		Viewer viewer = new Viewer();
+		try (OutputStream out = exchange.getResponseBody()) {
+			// Join before looking for the end, so that a run ending in between
+			// still hands this viewer its last frames
+			viewers.add(viewer);
+			if (endEvent != null) {
+				write(out, lastKeyframe);
+				write(out, endEvent);
+				return;
+			}
+			while (true) {
+				String frame = viewer.queue.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+				if (frame == null) {
+					write(out, ": keepalive\n\n");
+				} else {
+					write(out, frame);
+					if (frame == endEvent) {
+						return;
+					}
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			// the viewer went away
+		} finally {
+			viewers.remove(viewer);
+			exchange.close();
+		}
+	}
+
+	private static void write(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	private void page(HttpExchange exchange) throws IOException {
+		byte[] body = viewerPage().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+		exchange.close();
+	}
+
+	/**
+	 * @return A page that draws the stream on a canvas, in the colours of the
+	 *         Swing view.
+	 */
+	private static String viewerPage() {
+		return "<!DOCTYPE html><html><head><title>Mars simulation</title></head><body>\n"
+				+ "<div id=status>connecting</div><canvas id=c></canvas>\n<script>\n"
+				+ "const colours = ['#ffffff','" + hex(ModelConstants.rockColor) + "','"
+				+ hex(ModelConstants.obstacleColor) + "','" + hex(ModelConstants.vehicleColor) + "','"
+				+ hex(ModelConstants.vehicleCarryingSampleColor) + "','" + hex(ModelConstants.mothershipColor)
+				+ "'];\n"
+				+ "const canvas = document.getElementById('c'), ctx = canvas.getContext('2d');\n"
+				+ "const status = document.getElementById('status');\n"
+				+ "let width = 0, code = null, crumbs = null, chain = Promise.resolve();\n"
+				+ "const S = 6;\n"
+				+ "function draw(i) {\n"
+				+ "  let c = code[i];\n"
+				+ "  ctx.fillStyle = c == 0 && crumbs[i] > 0 ? 'rgb(' + (255 - 20 * crumbs[i]) + ',255,'"
+				+ " + (255 - 20 * crumbs[i]) + ')' : colours[c];\n"
+				+ "  ctx.fillRect((i % width) * S, Math.floor(i / width) * S, S, S);\n"
+				+ "}\n"
+				+ "async function keyframe(f) {\n"
+				+ "  const bytes = Uint8Array.from(atob(f.cells), ch => ch.charCodeAt(0));\n"
+				+ "  const raw = new Uint8Array(await new Response(new Blob([bytes]).stream()"
+				+ ".pipeThrough(new DecompressionStream('deflate'))).arrayBuffer());\n"
+				+ "  width = f.width; canvas.width = f.width * S; canvas.height = f.depth * S;\n"
+				+ "  code = new Uint8Array(raw.length / 2); crumbs = new Uint8Array(raw.length / 2);\n"
+				+ "  for (let i = 0; i < code.length; i++) { code[i] = raw[2 * i]; crumbs[i] = raw[2 * i + 1]; draw(i); }\n"
+				+ "}\n"
+				+ "function delta(f) {\n"
+				+ "  if (!code) return;\n"
+				+ "  for (let k = 0; k < f.cells.length; k += 3) {\n"
+				+ "    const i = f.cells[k]; code[i] = f.cells[k + 1]; crumbs[i] = f.cells[k + 2]; draw(i);\n"
+				+ "  }\n"
+				+ "}\n"
+				+ "const source = new EventSource('stream');\n"
+				+ "function on(name, handle) {\n"
+				+ "  source.addEventListener(name, e => { const f = JSON.parse(e.data);\n"
+				+ "    chain = chain.then(() => handle(f)).then(() => { status.textContent = 'step ' + f.step"
+				+ " + (f.reason ? ', stopped: ' + f.reason : ', delivered ' + f.delivered); }); });\n"
+				+ "}\n"
+				+ "on('keyframe', keyframe); on('delta', delta); on('end', f => source.close());\n"
+				+ "</script></body></html>\n";
+	}
+
+	private static String hex(java.awt.Color c) {
+		return String.format("#%02x%02x%02x", c.getRed(), c.getGreen(), c.getBlue());
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "port", "stepsPerSecond", "keyframeInterval");
+		int port = Integer.parseInt(own.getOrDefault("port", "8080"));
+		double stepsPerSecond = Double.parseDouble(own.getOrDefault("stepsPerSecond", "20"));
+		int keyframeInterval = Integer.parseInt(own.getOrDefault("keyframeInterval", "100"));
+		SimulationServer server = new SimulationServer(config, stepsPerSecond, keyframeInterval);
+		server.start(port);
+		System.err.println("Serving the simulation on http://localhost:" + port + "/");
+		server.run();
+		System.err.println("Simulation finished at step " + server.sim.getStep() + "; still serving its last state.");
+	}
+}
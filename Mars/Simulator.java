@@ -1,7 +1,8 @@
 package Mars;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A simulator simulator for Steels'(1990) Mars exploration paradigm, based on a
@@ -17,12 +18,37 @@ public class Simulator {
 	// private ArrayList<Obstacle> obstacles;
 	private ArrayList<Vehicle> vehicles;
 	private Mothership mothership;
+	// What never changes during a run, possibly shared with other runs.
+	private WorldTemplate world;
 	// The current state of the field.
 	private Field field;
 	// The current step of the simulation.
 	private int step;
-	// A graphical view of the simulation.
+	// A graphical view of the simulation, null when running headless.
 	private SimulatorView view;
+	// Runs the vehicles in batches grouped by policy and state.
+	private PolicyScheduler scheduler;
+	// The parameters of this run.
+	private SimulationConfig config;
+	// The root random stream of this run, split into one stream per subsystem.
+	private RandomStream random;
+	// What the vehicles have achieved so far.
+	private MissionStats stats;
+	// The rock clusters and the rocks each has left.
+	private ClusterIndex clusters;
+	// The conditions that end the run early, and why it ended, if it has.
+	private ArrayList<StopCondition> stopConditions;
+	private String stopReason;
+	// The rocks picked up in the current step, kept to save allocating a list.
+	private ArrayList<Rock> rocksToRemove;
+	// Runs the steps in synchronous mode, null in the usual sequential mode.
+	private SynchronousStep synchronousStep;
+	// Where the vehicles' paths are recorded, or null.
+	private TrajectoryStore trajectories;
+	// The heatmaps of the run, or null if it keeps none.
+	private Heatmaps heatmaps;
+	// What the last steps changed, so they can be undone, or null.
+	private StepJournal journal;
 
 	/**
 	 * Construct a simulation field with default size.
@@ -40,29 +66,123 @@ public class Simulator {
 	 *            Width of the field. Must be greater than zero.
 	 */
 	public Simulator(int depth, int width) {
-		if (width <= 0 || depth <= 0) {
+		this(withSize(SimulationConfig.fromModelConstants(), depth, width), true);
+	}
+
+	/**
+	 * Create a simulation for the given parameters.
+	 * 
+	 * @param config
+	 *            The parameters of the run. The simulator keeps its own copy.
+	 * @param showView
+	 *            Whether to open a graphical view. Headless runs leave it out.
+	 */
+	public Simulator(SimulationConfig config, boolean showView) {
+		this.config = config.copy();
+		if (this.config.width <= 0 || this.config.depth <= 0) {
 			System.out.println("The dimensions must be greater than zero.");
 			System.out.println("Using default values.");
-			depth = ModelConstants.DEFAULT_DEPTH;
-			width = ModelConstants.DEFAULT_WIDTH;
+			this.config.depth = ModelConstants.DEFAULT_DEPTH;
+			this.config.width = ModelConstants.DEFAULT_WIDTH;
 		}
 
 		rocks = new ArrayList<Rock>();
 		// obstacles = new ArrayList<Obstacle>();
 		vehicles = new ArrayList<Vehicle>();
-		field = new Field(depth, width);
+		rocksToRemove = new ArrayList<Rock>();
+		scheduler = new PolicyScheduler(this.config.activeScheduling);
+		stopConditions = StopCondition.fromConfig(this.config);
+		if (this.config.synchronousSteps) {
+			synchronousStep = new SynchronousStep();
+		}
 
-		// Create a view of the state of each location in the field.
-		view = new SimulatorView(depth, width, this);
-		view.setColor(Rock.class, ModelConstants.rockColor);
-		view.setColor(Obstacle.class, ModelConstants.obstacleColor);
-		view.setColor(Vehicle.class, ModelConstants.vehicleColor);
-		view.setColor(Mothership.class, ModelConstants.mothershipColor);
+		if (showView) {
+			// Create a view of the state of each location in the field.
+			view = new SimulatorView(this.config.depth, this.config.width, this);
+			view.setColor(Rock.class, ModelConstants.rockColor);
+			view.setColor(Obstacle.class, ModelConstants.obstacleColor);
+			view.setColor(Vehicle.class, ModelConstants.vehicleColor);
+			view.setColor(Mothership.class, ModelConstants.mothershipColor);
+		}
 
 		// Setup a valid starting point.
 		reset();
 	}
 
+	/**
+	 * Make a fork of a simulation: see fork().
+	 */
+	private Simulator(Simulator parent, SimulationConfig config) {
+		if (config.depth != parent.config.depth || config.width != parent.config.width) {
+			throw new IllegalArgumentException("A fork must keep the size of the field: " + parent.config.depth + "x"
+					+ parent.config.width);
+		}
+		this.config = config.copy();
+		scheduler = new PolicyScheduler(this.config.activeScheduling);
+		stopConditions = StopCondition.fromConfig(this.config);
+		if (this.config.synchronousSteps) {
+			synchronousStep = new SynchronousStep();
+		}
+		step = parent.step;
+		random = parent.random.copy();
+		world = parent.world;
+		field = parent.field.fork();
+		field.setMaxCrumbs(this.config.maxCrumbs);
+		rocks = new ArrayList<Rock>(parent.rocks);
+		rocksToRemove = new ArrayList<Rock>();
+		mothership = parent.mothership;
+		stats = parent.stats.copy();
+		clusters = parent.clusters.copy();
+		field.followTrails(this.config.clusterTrails ? clusters : null);
+
+		BehaviourPolicy primary = BehaviourPolicy.forName(this.config.behaviourPolicy);
+		BehaviourPolicy secondary = BehaviourPolicy.forName(this.config.secondaryBehaviourPolicy);
+		vehicles = new ArrayList<Vehicle>(parent.vehicles.size());
+		for (int n = 0; n < parent.vehicles.size(); n++) {
+			Vehicle p = parent.vehicles.get(n);
+			BehaviourPolicy policy = isSecondary(p.getIndex(), this.config.secondaryPolicyProportion) ? secondary
+					: primary;
+			Vehicle v = new Vehicle(p.getLocation(), policy, stats, p.getRandom().copy());
+			v.setSensingRadii(this.config.rockSensingRadius, this.config.crumbSensingRadius,
+					this.config.mothershipSensingRadius);
+			v.setCrumbsPerDrop(this.config.crumbsPerDrop);
+			v.setCarryingCapacity(this.config.carryingCapacity);
+			v.setIndex(p.getIndex());
+			v.restoreCargo(p.getCargo(), p.getCargoCluster());
+			field.replace(v.getLocation().getRow(), v.getLocation().getCol(), v);
+			vehicles.add(v);
+		}
+		if (this.config.heatmaps) {
+			startHeatmaps();
+		}
+		if (this.config.journalSteps > 0) {
+			startJournal(this.config.journalSteps);
+		}
+	}
+
+	/**
+	 * Fork this simulation at the step it has reached, to try something else
+	 * from exactly this state. The fork runs headlessly and independently of
+	 * this one: the field is forked (see Field.fork()), so only the rows either
+	 * of them changes are ever copied, and the fork has copies of the vehicles,
+	 * the counts and the random streams. Run with the same parameters, a fork
+	 * does just what this simulation does from here on.
+	 *
+	 * The fork may be given other behaviour parameters: the policies, the
+	 * sensing radii, the crumbs, their decay and their trails, the stop conditions and the
+	 * way steps are run. Its stop conditions, its scheduler and its heatmaps
+	 * and journal, if it keeps any, start afresh; it records no trajectories.
+	 *
+	 * @param config
+	 *            The parameters of the fork, for the same size of field
+	 * @return The fork
+	 * @throws IllegalArgumentException
+	 *             if the size of the field differs
+	 */
+	public Simulator fork(SimulationConfig config) {
+		return new Simulator(this, config);
+	}
+
 	/**
 	 * Run the simulation from its current state for a reasonably long period, e.g.
 	 * 500 steps.
@@ -73,13 +193,18 @@ public class Simulator {
 
 	/**
 	 * Run the simulation from its current state for the given number of steps. Stop
-	 * before the given number of steps if it ceases to be viable.
+	 * before the given number of steps if it ceases to be viable or one of its
+	 * stop conditions is met; getStopReason() then says why.
 	 * 
 	 * @param numSteps
 	 *            The number of steps to run for.
 	 */
 	public void simulate(int numSteps) {
-		for (int tick = 1; tick <= numSteps && view.isViable(field); tick++) {
+		for (int tick = 1; tick <= numSteps && stopReason == null; tick++) {
+			if (view != null && !view.isViable(field)) {
+				stopReason = "field no longer viable";
+				break;
+			}
 			simulateOneStep();
 		}
 	}
@@ -89,32 +214,100 @@ public class Simulator {
 	 * whole field updating the state of each vehicle.
 	 */
 	public void simulateOneStep() {
+		beginStep();
+
+		// Vehicles act in turn on the live field.
+		if (synchronousStep != null) {
+			synchronousStep.step(vehicles, field, mothership, stats, rocksToRemove);
+		} else {
+			scheduler.step(vehicles, field, mothership, rocksToRemove);
+		}
+
+		endStep();
+	}
+
+	/**
+	 * Run the simulation for the given number of steps with every vehicle on a
+	 * thread of its own (see AgentThreads). Stops early if a stop condition is
+	 * met. Runs this way are not reproducible.
+	 * 
+	 * @param numSteps
+	 *            The number of steps to run for.
+	 * @param barrier
+	 *            Whether vehicles wait for each other at the end of every step
+	 * @param latencyNanos
+	 *            The mean pause a vehicle takes after each move, 0 for none
+	 */
+	public void simulateAsync(int numSteps, boolean barrier, long latencyNanos) throws InterruptedException {
+		if (trajectories != null || heatmaps != null || journal != null) {
+			throw new IllegalStateException(
+					"Vehicles on threads of their own cannot record their paths, heatmaps or a journal");
+		}
+		int reach = Math.max(config.rockSensingRadius,
+				Math.max(config.crumbSensingRadius, config.mothershipSensingRadius));
+		AgentThreads agents = new AgentThreads(this, reach, barrier, latencyNanos,
+				random.split(RandomStream.LATENCY).split(step));
+		agents.run(vehicles, numSteps, rocksToRemove);
+	}
 
+	/**
+	 * Start a step: decay the crumbs every so many steps, 1000 unless the run
+	 * says otherwise, and move the count on.
+	 */
+	void beginStep() {
+		// Crumbs decaying now decay in the step about to be taken
+		if (heatmaps != null) {
+			heatmaps.startStep(step + 1);
+		}
+		if (journal != null) {
+			journal.startStep(step, stats);
+		}
 		// Reduce number of crumbs in each location with crumbs in by 1
-		// Every 1000 steps
+		// Every crumbDecayInterval steps
 		// This helps to reduce crumbs that lead to non-existent clusters
-		if (step % 1000 == 0) {
+		if (config.crumbDecayInterval > 0 && step % config.crumbDecayInterval == 0) {
 			field.reduceCrumbs();
 		}
 
 		step++;
-		Field tempField = field.cloneField();
-
-		ArrayList<Rock> rocksToRemove = new ArrayList<Rock>();
-
-		for (Iterator<Vehicle> it = vehicles.iterator(); it.hasNext();) {
-			Vehicle v = it.next();
-			v.act(tempField, mothership, rocksToRemove);
+		stats.setStep(step);
+		if (trajectories != null) {
+			trajectories.startStep(step);
 		}
+		rocksToRemove.clear();
+	}
 
-		for (Iterator<Rock> it = rocksToRemove.iterator(); it.hasNext();) {
-			Rock r = it.next();
-			// tempField.clearLocation(r.getLocation());
-			rocks.remove(r);
+	/**
+	 * End a step once the vehicles have acted: forget the rocks picked up, check
+	 * the stop conditions and show the result.
+	 */
+	void endStep() {
+		for (int i = 0; i < rocksToRemove.size(); i++) {
+			Rock r = rocksToRemove.get(i);
+			int at = rocks.indexOf(r);
+			if (at >= 0) {
+				rocks.remove(at);
+				clusters.removed(r, step);
+				if (journal != null) {
+					journal.unlisted(r, at);
+				}
+			}
 		}
+		if (journal != null) {
+			journal.endStep(vehicles);
+		}
+
+		checkStopConditions();
+		showStatus();
+	}
 
-		field = tempField;
-		view.showStatus(step, field);
+	/**
+	 * Ask each stop condition whether the run is over, keeping the first reason.
+	 */
+	private void checkStopConditions() {
+		for (int i = 0; i < stopConditions.size() && stopReason == null; i++) {
+			stopReason = stopConditions.get(i).check(this);
+		}
 	}
 
 	/**
@@ -122,82 +315,325 @@ public class Simulator {
 	 */
 	public void reset() {
 		step = 0;
+		trajectories = null;
+		stopReason = null;
+		scheduler.reset();
+		for (StopCondition c : stopConditions) {
+			c.reset();
+		}
+		random = new RandomStream(config.seed);
+		world = WorldTemplate.forConfig(config);
+		field = new Field(world, random.split(RandomStream.FIELD));
+		field.setMaxCrumbs(config.maxCrumbs);
+		rocks.clear();
+		vehicles.clear();
 		populate();
 		randomLandMothership();
+		heatmaps = null;
+		if (config.heatmaps || view != null) {
+			startHeatmaps();
+		}
+		journal = null;
+		int keep = view != null ? Math.max(config.journalSteps, StepJournal.VIEW_STEPS) : config.journalSteps;
+		if (keep > 0) {
+			startJournal(keep);
+		}
 		// Show the starting state in the view.
-		view.showStatus(step, field);
+		showStatus();
 	}
 
 	/**
-	 * Randomly populate the field with obstacles and rocks.
+	 * Start heatmaps of the run from the step it has reached.
 	 */
-	private void populate() {
-		field.clear();
+	private void startHeatmaps() {
+		heatmaps = new Heatmaps(config.depth, config.width);
+		heatmaps.attach(field, step);
+		for (int i = 0; i < vehicles.size(); i++) {
+			vehicles.get(i).accumulateInto(heatmaps);
+		}
+	}
+
+	/**
+	 * Start a journal of the steps from the one the run has reached.
+	 *
+	 * @param steps
+	 *            The number of steps it keeps
+	 */
+	private void startJournal(int steps) {
+		journal = new StepJournal(steps);
+		journal.attach(field, vehicles);
+		scheduler.journalTo(journal);
+		for (int i = 0; i < vehicles.size(); i++) {
+			vehicles.get(i).journalTo(journal);
+		}
+	}
+
+	/**
+	 * Undo the last step, putting the vehicles, the rocks, the crumbs, the
+	 * counts and the random streams back as they were before it. Run on from
+	 * there with the same parameters, the simulation takes the step again just
+	 * as it did; see rewind().
+	 *
+	 * @return Whether there was a step to undo
+	 */
+	public boolean stepBack() {
+		return rewind(1) == 1;
+	}
+
+	/**
+	 * Undo the last steps, as many as the journal holds if fewer. Each costs as
+	 * much as it changed. Only runs with a view or the journalSteps parameter
+	 * keep a journal; the others cannot be rewound.
+	 *
+	 * The stop conditions start afresh; with active scheduling the vehicles
+	 * parked at the step rewound to are parked again. The heatmaps, if the run
+	 * keeps any, start again from the step rewound to.
+	 *
+	 * @param numSteps
+	 *            The number of steps to undo
+	 * @return The number of steps undone
+	 * @throws IllegalStateException
+	 *             if the run is recording trajectories, which cannot be undone
+	 */
+	public int rewind(int numSteps) {
+		if (trajectories != null) {
+			throw new IllegalStateException("A run recording its trajectories cannot be rewound");
+		}
+		int steps = journal == null ? 0 : Math.min(numSteps, journal.getSteps());
+		if (steps <= 0) {
+			return 0;
+		}
+		if (heatmaps != null) {
+			heatmaps.detach();
+		}
+		for (int i = 0; i < steps; i++) {
+			step = journal.undoStep(field, rocks, clusters, stats, scheduler.getActiveSet());
+		}
+		rocksToRemove.clear();
+		stopReason = null;
+		for (StopCondition c : stopConditions) {
+			c.reset();
+		}
+		if (heatmaps != null) {
+			startHeatmaps();
+		}
+		showStatus();
+		return steps;
+	}
 
-		Location rockLocations[];
+	/**
+	 * @return The number of steps the run can be rewound by.
+	 */
+	public int getRewindableSteps() {
+		return journal == null ? 0 : journal.getSteps();
+	}
 
-		rockLocations = ClusterGenerator.generateClusters(ModelConstants.ROCK_CLUSTERS, ModelConstants.ROCK_LOCATIONS,
-				field.getWidth(), field.getDepth(), ModelConstants.ROCK_CLUSTER_STD);
+	/**
+	 * Show the current state in the view, if there is one.
+	 */
+	private void showStatus() {
+		if (view != null) {
+			view.showStatus(step, field);
+		}
+	}
 
-		for (int i = 0; i < rockLocations.length; i++) {
-			Location location = rockLocations[i];
-			Rock r = new Rock(location);
-			field.place(r, location);
+	/**
+	 * Populate the field with the rocks, obstacles and vehicles of the world.
+	 */
+	private void populate() {
+		Rock[] startRocks = world.getRocks();
+		for (int i = 0; i < startRocks.length; i++) {
+			Rock r = startRocks[i];
+			field.place(r, r.getLocation());
 			rocks.add(r);
 		}
+		stats = new MissionStats(rocks.size());
+		clusters = new ClusterIndex(world.getClusterSizes());
+		if (config.clusterTrails) {
+			field.followTrails(clusters);
+		}
 
-		double obsProb = ModelConstants.OBSTACLE_CREATION_PROBABILITY;
-		double vehProb = ModelConstants.OBSTACLE_CREATION_PROBABILITY + ModelConstants.VEHICLE_CREATION_PROBABILITY;
+		Obstacle[] obstacles = world.getObstacles();
+		for (int i = 0; i < obstacles.length; i++) {
+			field.place(obstacles[i], obstacles[i].getLocation());
+		}
 
-		for (int row = 0; row < field.getDepth(); row++) {
-			for (int col = 0; col < field.getWidth(); col++) {
-				Location location = new Location(row, col);
-				if (field.getObjectAt(location) == null) {
-					double ran = ModelConstants.random.nextDouble();
-					if (ran <= obsProb) {
-						Obstacle o = new Obstacle(location);
-						field.place(o, location);
-						// obstacles.add(o);
-					} else if (ran > obsProb && ran <= vehProb) {
-						// location = new Location(20, 20);
-						Vehicle v = new Vehicle(location);
-						// v.carryingSample = true;
-						field.place(v, location);
-						vehicles.add(v);
-					}
-					// else leave the location empty.
-				}
-			}
+		BehaviourPolicy primary = BehaviourPolicy.forName(config.behaviourPolicy);
+		BehaviourPolicy secondary = BehaviourPolicy.forName(config.secondaryBehaviourPolicy);
+		RandomStream vehicleStreams = random.split(RandomStream.VEHICLES);
+
+		Location[] starts = world.getVehicleStarts();
+		for (int n = 0; n < starts.length; n++) {
+			boolean mixed = isSecondary(n, config.secondaryPolicyProportion);
+			Vehicle v = new Vehicle(starts[n], mixed ? secondary : primary, stats, vehicleStreams.split(n));
+			v.setSensingRadii(config.rockSensingRadius, config.crumbSensingRadius, config.mothershipSensingRadius);
+			v.setCrumbsPerDrop(config.crumbsPerDrop);
+			v.setCarryingCapacity(config.carryingCapacity);
+			v.setIndex(n);
+			field.place(v, starts[n]);
+			vehicles.add(v);
 		}
+	}
 
+	/**
+	 * @return Whether the n-th vehicle follows the secondary policy, which is
+	 *         spread evenly over the fleet.
+	 */
+	private static boolean isSecondary(int n, double secondaryShare) {
+		return Math.floor((n + 1) * secondaryShare) > Math.floor(n * secondaryShare);
 	}
 
 	/**
-	 * Land the mothership at a random location
+	 * Land the mothership where the world says. The signal it emits is part of
+	 * the world, worked out when the world was built.
 	 */
 	public void randomLandMothership() {
-		int x = ModelConstants.random.nextInt(field.getDepth() - 1);
-		int y = ModelConstants.random.nextInt(field.getWidth() - 1);
-		Location l = new Location(x, y);
-		Entity e = field.getObjectAt(l);
-		while (e != null) {
-			x = ModelConstants.random.nextInt(field.getDepth() - 1);
-			y = ModelConstants.random.nextInt(field.getWidth() - 1);
-			l = new Location(x, y);
-			e = field.getObjectAt(l);
-		}
+		Location l = world.getMothership();
 		Mothership m = new Mothership(l);
 		field.place(m, l);
 		mothership = m;
-		mothership.emitSignal(field);
-		view.showStatus(step, field);
+		showStatus();
+	}
+
+	/**
+	 * Turn this simulation into one shard of a sharded run, which must be in
+	 * synchronous mode: keep the vehicles and rocks in the shard's own rows,
+	 * forget everything beyond its halo and let the shard trade with its
+	 * neighbours at the end of every step. The signal is left as it is, since
+	 * every shard computes the whole of it. The clusters count only the
+	 * shard's own rocks.
+	 *
+	 * @param boundary
+	 *            The shard
+	 */
+	void shard(SynchronousStep.Boundary boundary) {
+		if (synchronousStep == null) {
+			throw new IllegalStateException("Only synchronous runs can be sharded");
+		}
+		vehicles.removeIf(v -> !boundary.owns(v.getLocation().getRow()));
+		rocks.removeIf(r -> !boundary.owns(r.getLocation().getRow()));
+		clusters = new ClusterIndex(world.getClusterSizes(), rocks);
+		if (config.clusterTrails) {
+			field.followTrails(clusters);
+		}
+		for (int row = 0; row < field.getDepth(); row++) {
+			if (boundary.sees(row)) {
+				continue;
+			}
+			for (int col = 0; col < field.getWidth(); col++) {
+				if (field.getObjectAt(row, col) != null) {
+					field.clearLocation(field.locationAt(row, col));
+				}
+			}
+		}
+		synchronousStep.setBoundary(boundary);
+	}
+
+	/**
+	 * Record where every vehicle goes from now on, until the simulation is
+	 * reset. The caller closes the store once the run is over. Vehicles on
+	 * threads of their own cannot be recorded.
+	 *
+	 * @param store
+	 *            Where to record the paths, or null to stop recording
+	 */
+	void recordTrajectories(TrajectoryStore store) {
+		trajectories = store;
+		for (int i = 0; i < vehicles.size(); i++) {
+			vehicles.get(i).recordTo(store);
+		}
+		if (store != null) {
+			store.attach(field, vehicles, step);
+		}
 	}
 
 	public void closeView() {
-		this.view.setVisible(false);
+		if (view != null) {
+			this.view.setVisible(false);
+		}
+	}
+
+	/**
+	 * @return The current step of the simulation.
+	 */
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * @return The heatmaps of the run, or null if it keeps none: only runs with
+	 *         the heatmaps parameter or a view do.
+	 */
+	Heatmaps getHeatmaps() {
+		return heatmaps;
+	}
+
+	/**
+	 * @return The mothership of the run.
+	 */
+	Mothership getMothership() {
+		return mothership;
+	}
+
+	/**
+	 * @return The current state of the field.
+	 */
+	public Field getField() {
+		return field;
+	}
+
+	/**
+	 * @return The vehicles of the run, in the order they act.
+	 */
+	public List<Vehicle> getVehicles() {
+		return Collections.unmodifiableList(vehicles);
+	}
+
+	/**
+	 * @return Why the run stopped early, or null if it has not.
+	 */
+	public String getStopReason() {
+		return stopReason;
+	}
+
+	/**
+	 * @return The rock clusters and the rocks each has left.
+	 */
+	ClusterIndex getClusters() {
+		return clusters;
+	}
+
+	/**
+	 * @return What the vehicles have achieved so far.
+	 */
+	public MissionStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return The parameters of this run.
+	 */
+	public SimulationConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Set the field size of a configuration.
+	 */
+	private static SimulationConfig withSize(SimulationConfig config, int depth, int width) {
+		config.depth = depth;
+		config.width = width;
+		return config;
 	}
 
+	/**
+	 * Run the simulation with the default parameters. An optional argument names
+	 * the behaviour policy the vehicles follow.
+	 */
 	public static void main(String[] args) {
+		if (args.length > 0) {
+			ModelConstants.BEHAVIOUR_POLICY = args[0];
+		}
 		Simulator s = new Simulator();
 		// s.randomLandMothership();
 		s.simulate(11000);
@@ -27,15 +27,41 @@ public class SimulatorView extends JFrame
     // Colors used for empty locations.
     private static final Color EMPTY_COLOR = Color.white;
 
+    // The colour of an empty location for each shade of crumbs, 0 to 255.
+    private static final Color[] CRUMB_COLORS = new Color[256];
+    static {
+        for(int shade = 0; shade < CRUMB_COLORS.length; shade++)
+            CRUMB_COLORS[shade] = new Color(255, shade, shade);
+    }
+
+    // The colour of an empty location under the heatmap overlay for each
+    // shade of the heatmap, 0 to 255.
+    private static final Color[] HEAT_COLORS = new Color[256];
+    static {
+        for(int shade = 0; shade < HEAT_COLORS.length; shade++)
+            HEAT_COLORS[shade] = new Color(Heatmaps.heat(shade));
+    }
+    private static final String NO_OVERLAY = "none";
+
     // Color used for objects that have no defined color.
     private static final Color UNKNOWN_COLOR = Color.gray;
 
     private final String STEP_PREFIX = "Step: ";
     private final String POPULATION_PREFIX = "Pop.: ";
     private JLabel stepLabel, population;
+    // Which heatmap is drawn over the empty locations, if any.
+    private JComboBox<String> overlay;
+    // Scrubs through the steps the run can be rewound over and those it has
+    // been rewound from, and the furthest step reached.
+    private JSlider scrub;
+    private int furthest;
+    // Whether the slider is being moved to the step shown, not by the user.
+    private boolean showingStep;
     //private JPanel parameters;
     private FieldView fieldView;
     private Simulator s;
+    // The crumb shades of the row being drawn.
+    private int[] shades;
     
     // A map for storing colors for participants in the simulation
     private HashMap<Class, Color> colors;
@@ -48,20 +74,35 @@ public class SimulatorView extends JFrame
     public SimulatorView(int height, int width, Simulator s)
     {
         this.s = s;
+        shades = new int[width];
         stats = new FieldStats();
         colors = new HashMap<Class, Color>();
 
         setTitle("Mars Explorer Simulation");
         stepLabel = new JLabel(STEP_PREFIX, JLabel.CENTER);
         population = new JLabel(POPULATION_PREFIX, JLabel.LEFT);
+        overlay = new JComboBox<String>();
+        overlay.addItem(NO_OVERLAY);
+        for(Heatmaps.Layer layer : Heatmaps.Layer.values())
+            overlay.addItem(layer.getName());
+        overlay.setToolTipText("Show a heatmap of the run so far on the empty locations.");
+        overlay.addActionListener(e -> showStatus(this.s.getStep(), this.s.getField()));
+        scrub = new JSlider(0, 0, 0);
+        scrub.setToolTipText("Drag back to rewind the run, forward to run it on again.");
+        scrub.addChangeListener(e -> scrubTo(scrub.getValue()));
         //parameters = makeParametersPanel();
         
         setLocation(100, 50);
         
         fieldView = new FieldView(height, width);
 
+        JPanel top = new JPanel(new BorderLayout());
+        top.add(stepLabel, BorderLayout.CENTER);
+        top.add(overlay, BorderLayout.EAST);
+        top.add(scrub, BorderLayout.SOUTH);
+
         Container contents = getContentPane();
-        contents.add(stepLabel, BorderLayout.NORTH);
+        contents.add(top, BorderLayout.NORTH);
         contents.add(fieldView, BorderLayout.CENTER);
         contents.add(population, BorderLayout.SOUTH);
         //contents.add(parameters, BorderLayout.EAST);
@@ -137,11 +178,26 @@ public class SimulatorView extends JFrame
             setVisible(true);
 
         stepLabel.setText(STEP_PREFIX + step);
+        showStep(step);
 
         stats.reset();
         fieldView.preparePaint();
             
+        if(shades.length < field.getWidth())
+            shades = new int[field.getWidth()];
+        // The heatmap to draw instead of the crumbs, if one is chosen
+        Heatmaps heatmaps = s.getHeatmaps();
+        Heatmaps.Layer layer = null;
+        double scale = 0;
+        if(heatmaps != null && !NO_OVERLAY.equals(overlay.getSelectedItem())) {
+            for(Heatmaps.Layer l : Heatmaps.Layer.values())
+                if(l.getName().equals(overlay.getSelectedItem()))
+                    layer = l;
+            scale = Math.log1p(heatmaps.max(layer));
+        }
         for(int row = 0; row < field.getDepth(); row++) {
+            if(ModelConstants.SHOW_CRUMBS && GridKernels.enabled())
+                field.crumbShades(row, shades);
             for(int col = 0; col < field.getWidth(); col++) {
             	Object actor = field.getObjectAt(row, col);
                 if(actor != null) {
@@ -151,9 +207,16 @@ public class SimulatorView extends JFrame
                     	if(((Vehicle)actor).carryingSample)
                             fieldView.drawMark(col, row, ModelConstants.vehicleCarryingSampleColor);
                 }
+                else if(layer != null) {
+                    fieldView.drawMark(col, row,
+                        HEAT_COLORS[Heatmaps.shade(heatmaps.get(layer, row, col), scale)]);
+                }
                 else {
                     fieldView.drawMark(col, row, EMPTY_COLOR);
-                	if(ModelConstants.SHOW_CRUMBS){
+                	if(ModelConstants.SHOW_CRUMBS && GridKernels.enabled()){
+                    	fieldView.drawMark(col, row, CRUMB_COLORS[shades[col]]);
+                    }
+                	else if(ModelConstants.SHOW_CRUMBS){
                     	//fieldView.drawNum((field.getCrumbQuantityAt(new Location(row,col))), col, row);
                     	int numCrumbs = field.getCrumbQuantityAt(new Location(row,col));
                     	numCrumbs = 255-20*numCrumbs;
@@ -171,6 +234,36 @@ public class SimulatorView extends JFrame
         fieldView.repaint();
     }
 
+    /**
+     * Move the slider to the step shown, over the steps it can reach: back as
+     * far as the run can be rewound, on to the furthest step reached, which
+     * a reset run reaches again just as it did.
+     */
+    private void showStep(int step)
+    {
+        furthest = Math.max(furthest, step);
+        showingStep = true;
+        scrub.setMinimum(step - s.getRewindableSteps());
+        scrub.setMaximum(furthest);
+        scrub.setValue(step);
+        showingStep = false;
+    }
+
+    /**
+     * Rewind the run to a step the user chose, or run it on to one it was
+     * rewound from, which it reaches again just as it did before.
+     */
+    private void scrubTo(int target)
+    {
+        if(showingStep)
+            return;
+        int step = s.getStep();
+        if(target < step)
+            s.rewind(step - target);
+        else if(target > step)
+            s.simulate(target - step);
+    }
+
     /**
      * Determine whether the simulation should continue to run.
      * @return true If there is more than one species present.
@@ -0,0 +1,367 @@
+package Mars;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An undo journal of the last few steps of a run, so that the run can be
+ * stepped back and rewound without starting again from the seed.
+ *
+ * Each step is written as a run of records, one per change, opened by a record
+ * of the step number and the mission counts it started from. Vehicles write
+ * their moves, pickups and changes of load as they make them (see
+ * Vehicle.journalTo()), the simulation writes the rocks it takes off its list,
+ * the crumbs and their trails are written as a listener of the field, the
+ * scheduler writes which vehicles it parks (see ActiveSet) and, once the
+ * vehicles have acted, the random streams that were drawn from are written with the
+ * position they started the step at. Undoing a step plays its records
+ * backwards, so it costs as much as the step changed and no more.
+ *
+ * The records are held in a ring of parallel arrays, which keeps only the last
+ * getMaxSteps() steps: starting another drops the oldest. The ring grows when
+ * the steps it keeps do not fit.
+ */
+final class StepJournal implements Field.ChangeListener {
+	// The steps a run with a view keeps at least.
+	static final int VIEW_STEPS = 1000;
+
+	// The kinds of record.
+	private static final byte STEP = 0;
+	private static final byte MOVE = 1;
+	private static final byte CARRY = 2;
+	private static final byte PICKUP = 3;
+	private static final byte UNLISTED = 4;
+	private static final byte CRUMBS = 5;
+	private static final byte RANDOM = 6;
+	private static final byte TRAIL = 7;
+	private static final byte SCHEDULE = 8;
+
+	private final int maxSteps;
+	// The records, by sequence number modulo the capacity: what kind each is,
+	// a number and a value whose meaning depends on the kind, and the entity or
+	// stream it concerns, if any.
+	private byte[] kinds;
+	private long[] keys;
+	private long[] values;
+	private Object[] refs;
+	private int mask;
+	// The sequence numbers of the oldest record kept and of the next one.
+	private long first, end;
+	// The steps with records kept.
+	private int steps;
+	// The field whose crumbs are written, and whether a step is being undone,
+	// when the field's changes are not written.
+	private Field field;
+	private boolean undoing;
+	// Where each vehicle's stream and the field's stood when last written.
+	private long[] positions;
+	private long fieldPosition;
+
+	/**
+	 * @param maxSteps
+	 *            The number of steps to keep, at least 1
+	 */
+	StepJournal(int maxSteps) {
+		if (maxSteps < 1) {
+			throw new IllegalArgumentException("A journal must keep at least one step: " + maxSteps);
+		}
+		this.maxSteps = maxSteps;
+		allocate(1024);
+	}
+
+	private void allocate(int capacity) {
+		kinds = new byte[capacity];
+		keys = new long[capacity];
+		values = new long[capacity];
+		refs = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Start writing the crumbs of a field and the streams of its vehicles. The
+	 * vehicles write their own changes once told to (see Vehicle.journalTo()).
+	 */
+	void attach(Field f, List<Vehicle> vehicles) {
+		field = f;
+		positions = new long[vehicles.size()];
+		for (int i = 0; i < vehicles.size(); i++) {
+			positions[i] = vehicles.get(i).getRandom().getPosition();
+		}
+		if (f.getRandom() instanceof RandomStream) {
+			fieldPosition = ((RandomStream) f.getRandom()).getPosition();
+		}
+		f.addChangeListener(this);
+	}
+
+	/**
+	 * Stop writing the crumbs of the field.
+	 */
+	void detach() {
+		if (field != null) {
+			field.removeChangeListener(this);
+			field = null;
+		}
+	}
+
+	/**
+	 * @return The number of steps that can be undone.
+	 */
+	int getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return The number of steps kept at most.
+	 */
+	int getMaxSteps() {
+		return maxSteps;
+	}
+
+	/**
+	 * @return The number of records kept, over every step.
+	 */
+	int getRecords() {
+		return (int) (end - first);
+	}
+
+	/**
+	 * Open a step, dropping the oldest if as many as can be kept are already.
+	 * Crumbs decaying at its start belong to it.
+	 *
+	 * @param step
+	 *            The last step taken
+	 * @param stats
+	 *            The counts as they are before the step
+	 */
+	void startStep(int step, MissionStats stats) {
+		if (steps == maxSteps) {
+			dropOldestStep();
+		}
+		steps++;
+		add(STEP, (long) stats.getDeliveries() << 32 | step & 0xFFFFFFFFL,
+				(long) stats.getRocksPickedUp() << 32 | stats.getRocksDelivered() & 0xFFFFFFFFL, null);
+	}
+
+	/**
+	 * Close a step once the vehicles have acted, writing the streams that were
+	 * drawn from during it.
+	 */
+	void endStep(List<Vehicle> vehicles) {
+		for (int i = 0; i < vehicles.size(); i++) {
+			RandomStream random = vehicles.get(i).getRandom();
+			if (random.getPosition() != positions[i]) {
+				add(RANDOM, i, positions[i], random);
+				positions[i] = random.getPosition();
+			}
+		}
+		Random random = field.getRandom();
+		if (random instanceof RandomStream && ((RandomStream) random).getPosition() != fieldPosition) {
+			add(RANDOM, -1, fieldPosition, random);
+			fieldPosition = ((RandomStream) random).getPosition();
+		}
+	}
+
+	/**
+	 * A vehicle is about to move.
+	 */
+	void moved(Vehicle v, Location from) {
+		add(MOVE, 0, pack(from.getRow(), from.getCol()), v);
+	}
+
+	/**
+	 * A vehicle is about to pick up a sample or drop its load.
+	 */
+	void cargo(Vehicle v) {
+		add(CARRY, v.getCargoCluster(), v.getCargo(), v);
+	}
+
+	/**
+	 * A rock is about to be picked up from a location.
+	 */
+	void pickedUp(Rock r, Location l) {
+		add(PICKUP, 0, pack(l.getRow(), l.getCol()), r);
+	}
+
+	/**
+	 * A rock picked up was taken out of the simulation's list.
+	 *
+	 * @param index
+	 *            Where it was in the list
+	 */
+	void unlisted(Rock r, int index) {
+		add(UNLISTED, index, 0, r);
+	}
+
+	/**
+	 * A vehicle's place in the active set is about to change.
+	 *
+	 * @param index
+	 *            The vehicle's index in the set
+	 * @param active
+	 *            Whether it is active
+	 * @param lastSeen
+	 *            Where it was when last batched
+	 * @param stillSteps
+	 *            The steps it has stood still for
+	 */
+	void scheduled(int index, boolean active, Location lastSeen, int stillSteps) {
+		add(SCHEDULE, index, (long) stillSteps << 1 | (active ? 1 : 0), lastSeen);
+	}
+
+	/**
+	 * @return Whether a step is being undone, when the field's changes are not
+	 *         to be acted on.
+	 */
+	boolean isUndoing() {
+		return undoing;
+	}
+
+	@Override
+	public void crumbsChanged(Field f, int row, int col, int delta) {
+		if (!undoing) {
+			add(CRUMBS, delta, pack(row, col), null);
+		}
+	}
+
+	@Override
+	public void trailChanged(Field f, int row, int col, int before) {
+		if (!undoing) {
+			add(TRAIL, before, pack(row, col), null);
+		}
+	}
+
+	/**
+	 * Undo the last step kept.
+	 *
+	 * @param f
+	 *            The field the step changed
+	 * @param rocks
+	 *            The simulation's list of the rocks on the field
+	 * @param clusters
+	 *            The rocks left in each cluster
+	 * @param stats
+	 *            The counts of the simulation
+	 * @param schedule
+	 *            The vehicles the scheduler parks, or null if it parks none
+	 * @return The step the run is back at
+	 * @throws IllegalStateException
+	 *             if no step is kept
+	 */
+	int undoStep(Field f, ArrayList<Rock> rocks, ClusterIndex clusters, MissionStats stats, ActiveSet schedule) {
+		if (steps == 0) {
+			throw new IllegalStateException("No step to undo");
+		}
+		undoing = true;
+		try {
+			while (true) {
+				int i = (int) (--end & mask);
+				byte kind = kinds[i];
+				long key = keys[i];
+				long value = values[i];
+				Object ref = refs[i];
+				refs[i] = null;
+				switch (kind) {
+				case STEP:
+					steps--;
+					stats.rollBack((int) (value >>> 32), (int) value, (int) (key >>> 32));
+					stats.setStep((int) key);
+					return (int) key;
+				case MOVE:
+					Vehicle v = (Vehicle) ref;
+					if (f.getObjectAt(v.getLocation()) == v) {
+						f.clearLocation(v.getLocation());
+					}
+					Location from = f.locationAt(row(value), col(value));
+					f.place(v, from);
+					v.setLocation(from);
+					break;
+				case CARRY:
+					((Vehicle) ref).restoreCargo((int) value, (int) key);
+					break;
+				case PICKUP:
+					f.place((Rock) ref, row(value), col(value));
+					break;
+				case UNLISTED:
+					rocks.add((int) key, (Rock) ref);
+					clusters.restored((Rock) ref);
+					break;
+				case CRUMBS:
+					int row = row(value), col = col(value);
+					f.setCrumbQuantity(row, col, f.getCrumbQuantityAt(f.locationAt(row, col)) - (int) key);
+					break;
+				case TRAIL:
+					f.setCrumbTrail(row(value), col(value), (int) key);
+					break;
+				case SCHEDULE:
+					schedule.restore((int) key, (value & 1) != 0, (Location) ref, (int) (value >>> 1));
+					break;
+				case RANDOM:
+					((RandomStream) ref).setPosition(value);
+					if (key < 0) {
+						fieldPosition = value;
+					} else {
+						positions[(int) key] = value;
+					}
+					break;
+				default:
+					throw new IllegalStateException("Unknown record " + kind);
+				}
+			}
+		} finally {
+			undoing = false;
+		}
+	}
+
+	/**
+	 * Forget the oldest step, which can then no longer be undone.
+	 */
+	private void dropOldestStep() {
+		do {
+			refs[(int) (first & mask)] = null;
+			first++;
+		} while (first < end && kinds[(int) (first & mask)] != STEP);
+		steps--;
+	}
+
+	private void add(byte kind, long key, long value, Object ref) {
+		if (end - first == kinds.length) {
+			grow();
+		}
+		int i = (int) (end++ & mask);
+		kinds[i] = kind;
+		keys[i] = key;
+		values[i] = value;
+		refs[i] = ref;
+	}
+
+	/**
+	 * Double the ring, keeping every record at its sequence number.
+	 */
+	private void grow() {
+		byte[] oldKinds = kinds;
+		long[] oldKeys = keys, oldValues = values;
+		Object[] oldRefs = refs;
+		int oldMask = mask;
+		allocate(kinds.length * 2);
+		for (long seq = first; seq < end; seq++) {
+			int from = (int) (seq & oldMask), to = (int) (seq & mask);
+			kinds[to] = oldKinds[from];
+			keys[to] = oldKeys[from];
+			values[to] = oldValues[from];
+			refs[to] = oldRefs[from];
+		}
+	}
+
+	private static long pack(int row, int col) {
+		return (long) row << 32 | col & 0xFFFFFFFFL;
+	}
+
+	private static int row(long packed) {
+		return (int) (packed >>> 32);
+	}
+
+	private static int col(long packed) {
+		return (int) packed;
+	}
+}
@@ -0,0 +1,157 @@
+package Mars;
+
+import java.util.ArrayList;
+
+/**
+ * A reason to end a run before its full length. The simulator asks every
+ * condition once per step, so a check must cost O(1): it reads counters that
+ * the stats and the field already keep, never the field itself.
+ */
+interface StopCondition {
+
+	/**
+	 * @param s
+	 *            The simulation, just after a step
+	 * @return Why the run should stop, or null to carry on.
+	 */
+	String check(Simulator s);
+
+	/**
+	 * Forget anything remembered from an earlier run, when the simulation is
+	 * reset.
+	 */
+	default void reset() {
+	}
+
+	/**
+	 * Stop once a fraction of the rocks has reached the mothership.
+	 *
+	 * @param fraction
+	 *            Between 0 and 1; 1 waits for every rock
+	 */
+	static StopCondition delivered(double fraction) {
+		return s -> {
+			MissionStats stats = s.getStats();
+			int needed = (int) Math.ceil(fraction * stats.getInitialRocks());
+			if (stats.getRocksDelivered() < needed) {
+				return null;
+			}
+			return fraction >= 1 ? "all rocks delivered" : Math.round(fraction * 100) + "% of rocks delivered";
+		};
+	}
+
+	/**
+	 * Stop once a fraction of the rocks has been picked up, delivered or not.
+	 *
+	 * @param fraction
+	 *            Between 0 and 1
+	 */
+	static StopCondition collected(double fraction) {
+		return s -> {
+			MissionStats stats = s.getStats();
+			int needed = (int) Math.ceil(fraction * stats.getInitialRocks());
+			return stats.getRocksPickedUp() < needed ? null : Math.round(fraction * 100) + "% of rocks collected";
+		};
+	}
+
+	/**
+	 * Stop once a fraction of the rock clusters has been picked clean.
+	 *
+	 * @param fraction
+	 *            Between 0 and 1; 1 waits for every cluster
+	 */
+	static StopCondition exhausted(double fraction) {
+		return s -> {
+			ClusterIndex clusters = s.getClusters();
+			int needed = (int) Math.ceil(fraction * clusters.getClusters());
+			if (clusters.getExhaustedClusters() < needed) {
+				return null;
+			}
+			return fraction >= 1 ? "all rock clusters exhausted"
+					: Math.round(fraction * 100) + "% of rock clusters exhausted";
+		};
+	}
+
+	/**
+	 * Stop once nothing on the field has changed for a number of steps: no
+	 * vehicle has moved, no rock has been picked up and no crumb has been
+	 * dropped or picked up.
+	 *
+	 * @param steps
+	 *            The number of steps without a change
+	 */
+	static StopCondition idleFor(int steps) {
+		return new StopCondition() {
+			private long lastChanges = -1;
+			private int lastChangeStep;
+
+			@Override
+			public String check(Simulator s) {
+				long changes = s.getField().getChangeCount();
+				if (changes != lastChanges) {
+					lastChanges = changes;
+					lastChangeStep = s.getStep();
+					return null;
+				}
+				return s.getStep() - lastChangeStep < steps ? null : "no change for " + steps + " steps";
+			}
+
+			@Override
+			public void reset() {
+				lastChanges = -1;
+			}
+		};
+	}
+
+	/**
+	 * Stop once the run has taken a number of milliseconds, counted from the
+	 * end of its first step.
+	 *
+	 * @param millis
+	 *            The budget in milliseconds
+	 */
+	static StopCondition wallClock(long millis) {
+		return new StopCondition() {
+			private long start = -1;
+
+			@Override
+			public String check(Simulator s) {
+				long now = System.nanoTime();
+				if (start < 0) {
+					start = now;
+					return null;
+				}
+				return now - start < millis * 1000000 ? null : "wall-clock budget of " + millis + " ms used";
+			}
+
+			@Override
+			public void reset() {
+				start = -1;
+			}
+		};
+	}
+
+	/**
+	 * @return The conditions a configuration asks for. A value of zero or less
+	 *         leaves a condition out.
+	 */
+	static ArrayList<StopCondition> fromConfig(SimulationConfig config) {
+		ArrayList<StopCondition> conditions = new ArrayList<StopCondition>();
+		if (config.stopDeliveredFraction > 0) {
+			conditions.add(delivered(config.stopDeliveredFraction));
+		}
+		if (config.stopCollectedFraction > 0) {
+			conditions.add(collected(config.stopCollectedFraction));
+		}
+		if (config.stopExhaustedFraction > 0) {
+			conditions.add(exhausted(config.stopExhaustedFraction));
+		}
+		if (config.stopIdleSteps > 0) {
+			conditions.add(idleFor(config.stopIdleSteps));
+		}
+		if (config.stopWallMillis > 0) {
+			conditions.add(wallClock(config.stopWallMillis));
+		}
+		return conditions;
+	}
+}
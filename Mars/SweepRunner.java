@@ -0,0 +1,131 @@
+package Mars;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs every combination of a parameter sweep headlessly, spread over all
+ * cores, and writes one line of comma separated results per run as soon as
+ * the run finishes.
+ *
+ * Usage: java Mars.SweepRunner spec.txt [results.csv]
+ *
+ * Without an output file the results go to standard output. Lines appear in
+ * completion order; the first column is the run number for sorting.
+ */
+public class SweepRunner {
+	private SweepSpec spec;
+	private SimulationConfig base;
+	private PrintWriter out;
+
+	/**
+	 * @param spec
+	 *            The sweep to run
+	 * @param base
+	 *            The configuration supplying everything that is not swept
+	 * @param out
+	 *            Where the results are written
+	 */
+	public SweepRunner(SweepSpec spec, SimulationConfig base, PrintWriter out) {
+		this.spec = spec;
+		this.base = base;
+		this.out = out;
+	}
+
+	/**
+	 * Run the whole sweep and wait for it to finish. At most a couple of runs
+	 * per thread are queued at any time; when the queue is full the submitting
+	 * thread runs the next combination itself, so the sweep never builds up a
+	 * backlog of pending configurations.
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting for the runs
+	 */
+	public void run() throws InterruptedException {
+		int threads = Math.max(1, spec.getThreads());
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(2 * threads), new ThreadPoolExecutor.CallerRunsPolicy());
+
+		writeHeader();
+		long runs = spec.size();
+		for (long run = 0; run < runs; run++) {
+			final long r = run;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						RunResult result = RunResult.run(spec.configFor(base, r), spec.getTarget());
+						writeResult(r, result);
+					} catch (RuntimeException e) {
+						// One broken combination should not end the sweep.
+						System.err.println("Run " + r + " failed: " + e);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		out.flush();
+	}
+
+	private void writeHeader() {
+		StringBuilder line = new StringBuilder("run");
+		for (String name : spec.getNames()) {
+			line.append(',').append(name);
+		}
+		line.append(",seed,steps,rocks,rocksDelivered,deliveries,stepsTo")
+				.append(Math.round(spec.getTarget() * 100)).append("Pct,deliveriesPer1000Steps,wallMillis,stopReason")
+				// Columns added later go at the end, so earlier ones keep their place
+				.append(",clusters,clustersExhausted,roundTripsSaved,rocksDeliveredPer1000Steps");
+		synchronized (out) {
+			out.println(line);
+			out.flush();
+		}
+	}
+
+	private void writeResult(long run, RunResult result) {
+		StringBuilder line = new StringBuilder();
+		line.append(run);
+		List<String> values = spec.valuesFor(run);
+		for (String v : values) {
+			line.append(',').append(v);
+		}
+		line.append(',').append(result.seed);
+		line.append(',').append(result.steps);
+		line.append(',').append(result.rocks);
+		line.append(',').append(result.rocksDelivered);
+		line.append(',').append(result.deliveries);
+		line.append(',').append(result.stepsToTarget < 0 ? "" : Integer.toString(result.stepsToTarget));
+		line.append(',').append(String.format(Locale.ROOT, "%.3f", result.getDeliveriesPer1000Steps()));
+		line.append(',').append(result.wallMillis);
+		line.append(',').append(result.stopReason);
+		line.append(',').append(result.clusters);
+		line.append(',').append(result.clustersExhausted);
+		line.append(',').append(result.roundTripsSaved);
+		line.append(',').append(String.format(Locale.ROOT, "%.3f", result.getRocksDeliveredPer1000Steps()));
+		synchronized (out) {
+			out.println(line);
+			out.flush();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Usage: java Mars.SweepRunner spec.txt [results.csv]");
+			System.exit(1);
+		}
+		SweepSpec spec = SweepSpec.read(args[0]);
+		PrintWriter out = args.length > 1 ? new PrintWriter(new FileWriter(args[1])) : new PrintWriter(System.out);
+		System.err.println("Running " + spec.size() + " simulations on " + spec.getThreads() + " threads");
+		new SweepRunner(spec, SimulationConfig.fromModelConstants(), out).run();
+		if (args.length > 1) {
+			out.close();
+		}
+	}
+}
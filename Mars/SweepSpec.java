@@ -0,0 +1,212 @@
+package Mars;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A parameter sweep: a list of values for each swept parameter, crossed with a
+ * list of seeds. Specifications are read from a text file with one parameter
+ * per line, named as in the setup GUI:
+ *
+ * <pre>
+ * # comments start with a hash
+ * marsWidth = 50, 100, 150      # explicit values
+ * rockClusterNum = 2:20:2       # start:end:step, end included
+ * obstacleCreationProb = 0.002:0.02:0.002
+ * seeds = 1:30
+ * target = 0.9                  # fraction of rocks for "steps to collect"
+ * threads = 32                  # defaults to the number of cores
+ * </pre>
+ *
+ * Parameters that are not mentioned keep the values of the base configuration.
+ */
+class SweepSpec {
+	// The names of the swept parameters, in file order.
+	private List<String> names;
+	// The values of each swept parameter.
+	private List<List<String>> values;
+	// The seeds every combination is run with.
+	private List<Long> seeds;
+	// The fraction of rocks to time the collection of.
+	private double target;
+	// The number of runs executed at once.
+	private int threads;
+
+	public SweepSpec() {
+		names = new ArrayList<String>();
+		values = new ArrayList<List<String>>();
+		seeds = new ArrayList<Long>();
+		target = 0.9;
+		threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Read a specification from a file.
+	 *
+	 * @param fileName
+	 *            The file to read
+	 * @return The specification
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if a line cannot be understood
+	 */
+	public static SweepSpec read(String fileName) throws IOException {
+		SweepSpec spec = new SweepSpec();
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			int lineNumber = 0;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				int hash = line.indexOf('#');
+				if (hash >= 0) {
+					line = line.substring(0, hash);
+				}
+				line = line.trim();
+				if (line.isEmpty()) {
+					continue;
+				}
+				int eq = line.indexOf('=');
+				if (eq < 0) {
+					throw new IllegalArgumentException("Line " + lineNumber + ": expected name = values");
+				}
+				spec.add(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+			}
+		}
+		if (spec.seeds.isEmpty()) {
+			spec.seeds.add((long) ModelConstants.RANDOM_SEED);
+		}
+		return spec;
+	}
+
+	/**
+	 * Add one line of a specification.
+	 *
+	 * @param name
+	 *            The parameter name, or one of "seeds", "target" and "threads"
+	 * @param text
+	 *            The values, either a comma separated list or start:end:step
+	 */
+	public void add(String name, String text) {
+		List<String> list = expand(text);
+		switch (name) {
+		case "seeds":
+			for (String v : list) {
+				seeds.add(Long.parseLong(v));
+			}
+			break;
+		case "target":
+			target = Double.parseDouble(text);
+			break;
+		case "threads":
+			threads = Integer.parseInt(text);
+			break;
+		default:
+			// Fail early on unknown names or values that do not parse.
+			SimulationConfig check = new SimulationConfig();
+			for (String v : list) {
+				check.set(name, v);
+			}
+			names.add(name);
+			values.add(list);
+		}
+	}
+
+	/**
+	 * Expand "a, b, c" or "start:end[:step]" into a list of values. Ranges are
+	 * computed in decimal so that 0.1 steps do not drift.
+	 */
+	private static List<String> expand(String text) {
+		List<String> list = new ArrayList<String>();
+		if (text.indexOf(':') >= 0) {
+			String[] parts = text.split(":");
+			BigDecimal start = new BigDecimal(parts[0].trim());
+			BigDecimal end = new BigDecimal(parts[1].trim());
+			BigDecimal step = parts.length > 2 ? new BigDecimal(parts[2].trim()) : BigDecimal.ONE;
+			if (step.signum() <= 0) {
+				throw new IllegalArgumentException("Range step must be positive: " + text);
+			}
+			for (BigDecimal v = start; v.compareTo(end) <= 0; v = v.add(step)) {
+				list.add(v.stripTrailingZeros().toPlainString());
+			}
+		} else {
+			for (String v : text.split(",")) {
+				if (!v.trim().isEmpty()) {
+					list.add(v.trim());
+				}
+			}
+		}
+		if (list.isEmpty()) {
+			throw new IllegalArgumentException("No values in: " + text);
+		}
+		return list;
+	}
+
+	/**
+	 * @return The number of runs in the sweep.
+	 */
+	public long size() {
+		long n = seeds.size();
+		for (List<String> v : values) {
+			n *= v.size();
+		}
+		return n;
+	}
+
+	/**
+	 * Build the configuration of one run. Runs are numbered so that the seed
+	 * varies fastest, then the last parameter in the file, and so on.
+	 *
+	 * @param base
+	 *            The configuration supplying everything that is not swept
+	 * @param run
+	 *            The run number, from 0 to size() - 1
+	 * @return The configuration of the run
+	 */
+	public SimulationConfig configFor(SimulationConfig base, long run) {
+		SimulationConfig c = base.copy();
+		c.seed = seeds.get((int) (run % seeds.size()));
+		long rest = run / seeds.size();
+		for (int p = names.size() - 1; p >= 0; p--) {
+			List<String> v = values.get(p);
+			c.set(names.get(p), v.get((int) (rest % v.size())));
+			rest /= v.size();
+		}
+		return c;
+	}
+
+	/**
+	 * @return The values of the swept parameters for one run, in file order.
+	 */
+	public List<String> valuesFor(long run) {
+		String[] row = new String[names.size()];
+		long rest = run / seeds.size();
+		for (int p = names.size() - 1; p >= 0; p--) {
+			List<String> v = values.get(p);
+			row[p] = v.get((int) (rest % v.size()));
+			rest /= v.size();
+		}
+		return Arrays.asList(row);
+	}
+
+	public List<String> getNames() {
+		return names;
+	}
+
+	public List<Long> getSeeds() {
+		return seeds;
+	}
+
+	public double getTarget() {
+		return target;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+}
@@ -0,0 +1,234 @@
+package Mars;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runs a step in two phases, so that its outcome does not depend on the order
+ * the vehicles act in. First every vehicle plans against the field as it was
+ * at the start of the step: moves, sample pickups and crumb changes are noted
+ * rather than made (see Vehicle.startPlanning). Then the plans are carried
+ * out. Crumbs only ever change under the vehicle that changes them, so those
+ * never clash. Two vehicles may want the same free location or the same rock;
+ * the one with the lowest index gets it and the other stays where it is. A
+ * location freed during the step cannot be entered until the next one.
+ *
+ * This is not the same dynamics as the sequential step, where each vehicle
+ * sees the moves of those before it, so runs in this mode are not comparable
+ * with sequential ones. What it buys is that a step can be split over shards
+ * of the field: a shard only needs its neighbours' plans for the locations
+ * near its edges to resolve exactly as a single process would (see
+ * ShardWorker).
+ */
+class SynchronousStep {
+
+	/**
+	 * What a shard of a sharded run has to do besides its own rows.
+	 */
+	interface Boundary {
+		/**
+		 * @return true if a row belongs to this shard
+		 */
+		boolean owns(int row);
+
+		/**
+		 * @return true if a row belongs to this shard or to its halo, the rows of
+		 *         its neighbours that its vehicles can sense
+		 */
+		boolean sees(int row);
+
+		/**
+		 * Send the neighbours the claims that they might contend for, and add
+		 * theirs to ours.
+		 */
+		void exchangeClaims(Claims moves, Claims pickups);
+
+		/**
+		 * Once the plans are carried out, hand over the vehicles that moved into
+		 * a neighbour's rows, take in those that moved into ours and refresh the
+		 * halo.
+		 */
+		void finishStep(Field f, ArrayList<Vehicle> vehicles, MissionStats stats);
+	}
+
+	/**
+	 * Claims on locations, each a vehicle index and a location packed into one
+	 * long so that sorting puts the claims on a location together, lowest
+	 * vehicle index first.
+	 */
+	static final class Claims {
+		// The bits of a claim holding the vehicle index.
+		static final int INDEX_BITS = 24;
+		private long[] keys = new long[64];
+		private int size;
+
+		void clear() {
+			size = 0;
+		}
+
+		void add(long cell, int vehicle) {
+			if (vehicle >= 1 << INDEX_BITS) {
+				throw new IllegalStateException("Too many vehicles for a synchronous step: " + vehicle);
+			}
+			add(cell << INDEX_BITS | vehicle);
+		}
+
+		void add(long key) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * size);
+			}
+			keys[size++] = key;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long get(int i) {
+			return keys[i];
+		}
+
+		void sort() {
+			Arrays.sort(keys, 0, size);
+		}
+
+		static long cellOf(long key) {
+			return key >>> INDEX_BITS;
+		}
+
+		static int vehicleOf(long key) {
+			return (int) (key & ((1 << INDEX_BITS) - 1));
+		}
+	}
+
+	// Decides for the vehicles; it never parks any.
+	private PolicyScheduler scheduler;
+	// The shard this step runs for, or null when running the whole field.
+	private Boundary boundary;
+	// The claims of the current step.
+	private Claims moves;
+	private Claims pickups;
+	// The vehicles of this process by index, null for everyone else's.
+	private Vehicle[] byIndex;
+
+	public SynchronousStep() {
+		scheduler = new PolicyScheduler(false);
+		moves = new Claims();
+		pickups = new Claims();
+		byIndex = new Vehicle[0];
+	}
+
+	/**
+	 * @param boundary
+	 *            The shard to run for, or null to run the whole field
+	 */
+	void setBoundary(Boundary boundary) {
+		this.boundary = boundary;
+	}
+
+	/**
+	 * Let every vehicle act once.
+	 *
+	 * @param vehicles
+	 *            The vehicles to run; in a sharded run the list changes as
+	 *            vehicles come and go
+	 * @param f
+	 *            Instance of class Field
+	 * @param m
+	 *            Instance of class Mothership
+	 * @param stats
+	 *            Where the vehicles report
+	 * @param rocksCollected
+	 *            ArrayList collecting the rocks picked up this step
+	 */
+	public void step(ArrayList<Vehicle> vehicles, Field f, Mothership m, MissionStats stats,
+			ArrayList<Rock> rocksCollected) {
+		for (int i = 0; i < vehicles.size(); i++) {
+			vehicles.get(i).startPlanning();
+		}
+		scheduler.step(vehicles, f, m, rocksCollected);
+
+		moves.clear();
+		pickups.clear();
+		Arrays.fill(byIndex, null);
+		int width = f.getWidth();
+		for (int i = 0; i < vehicles.size(); i++) {
+			Vehicle v = vehicles.get(i);
+			v.stopPlanning();
+			index(v);
+			if (v.getPlannedCrumbs() > 0) {
+				v.dropCrumbs(f);
+			} else if (v.getPlannedCrumbs() < 0) {
+				v.pickUpCrumb(f);
+			}
+			Location l = v.getPlannedMove();
+			if (l != null) {
+				moves.add((long) l.getRow() * width + l.getCol(), v.getIndex());
+			}
+			l = v.getPlannedPickup();
+			if (l != null) {
+				pickups.add((long) l.getRow() * width + l.getCol(), v.getIndex());
+			}
+		}
+		if (boundary != null) {
+			boundary.exchangeClaims(moves, pickups);
+		}
+
+		pickups.sort();
+		for (int i = 0; i < pickups.size(); i++) {
+			long key = pickups.get(i);
+			long cell = Claims.cellOf(key);
+			if (i > 0 && Claims.cellOf(pickups.get(i - 1)) == cell) {
+				continue;
+			}
+			Location l = f.locationAt((int) (cell / width), (int) (cell % width));
+			Vehicle v = owned(Claims.vehicleOf(key));
+			if (v != null) {
+				v.pickUpSample(f, l, rocksCollected);
+			} else if (f.getObjectAt(l) instanceof Rock) {
+				// Taken by a neighbour's vehicle
+				rocksCollected.add((Rock) f.getObjectAt(l));
+				f.clearLocation(l);
+			}
+		}
+
+		moves.sort();
+		for (int i = 0; i < moves.size(); i++) {
+			long key = moves.get(i);
+			long cell = Claims.cellOf(key);
+			if (i > 0 && Claims.cellOf(moves.get(i - 1)) == cell) {
+				continue;
+			}
+			Vehicle v = owned(Claims.vehicleOf(key));
+			if (v == null) {
+				// A neighbour's vehicle; it arrives in finishStep if it comes here
+				continue;
+			}
+			int row = (int) (cell / width);
+			Location l = f.locationAt(row, (int) (cell % width));
+			if (boundary == null || boundary.owns(row)) {
+				v.moveTo(f, l);
+			} else {
+				// Leaving for a neighbour, which finishStep hands it to
+				f.clearLocation(v.getLocation());
+				v.setLocation(l);
+			}
+		}
+
+		if (boundary != null) {
+			boundary.finishStep(f, vehicles, stats);
+		}
+	}
+
+	private void index(Vehicle v) {
+		int i = v.getIndex();
+		if (i >= byIndex.length) {
+			byIndex = Arrays.copyOf(byIndex, Math.max(i + 1, 2 * byIndex.length));
+		}
+		byIndex[i] = v;
+	}
+
+	private Vehicle owned(int index) {
+		return index < byIndex.length ? byIndex[index] : null;
+	}
+}
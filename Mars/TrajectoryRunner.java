@@ -0,0 +1,123 @@
+package Mars;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs a simulation headlessly while recording every vehicle's path (see
+ * TrajectoryStore), then reads the file back and reports how the fleet spent
+ * its time: searching at random, following crumbs or carrying a sample home.
+ * It also answers one region query from the index and checks the answer
+ * against a scan of every path.
+ *
+ * Usage: java Mars.TrajectoryRunner [name=value ...]
+ *
+ * Besides the parameters of the simulation (see SimulationConfig.parseArgs()):
+ *
+ * <pre>
+ * file = trajectories.bin   # where the paths are written
+ * region = 0,0,15,15        # top,left,bottom,right of the query, inclusive
+ * from = 0                  # the steps of the query, inclusive
+ * to = 1000
+ * </pre>
+ *
+ * Exits with status 1 if the index and the scan disagree.
+ */
+public class TrajectoryRunner {
+
+	public static void main(String[] args) throws IOException {
+		SimulationConfig config = SimulationConfig.fromModelConstants();
+		Map<String, String> own = SimulationConfig.parseArgs(args, config, "file", "region", "from", "to");
+		Path file = Paths.get(own.getOrDefault("file", "trajectories.bin"));
+		String[] parts = own.getOrDefault("region", "0,0,15,15").split(",");
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Expected top,left,bottom,right: " + own.get("region"));
+		}
+		int[] region = new int[4];
+		for (int i = 0; i < 4; i++) {
+			region[i] = Integer.parseInt(parts[i].trim());
+		}
+		int from = Integer.parseInt(own.getOrDefault("from", "0"));
+		int to = Integer.parseInt(own.getOrDefault("to", "1000"));
+
+		// The same run without and then with the recorder, to see what it costs
+		long start = System.nanoTime();
+		new Simulator(config, false).simulate(config.length);
+		long plain = System.nanoTime() - start;
+
+		Simulator sim = new Simulator(config, false);
+		start = System.nanoTime();
+		long bytes;
+		try (TrajectoryStore store = TrajectoryStore.create(file, config.depth, config.width)) {
+			sim.recordTrajectories(store);
+			sim.simulate(config.length);
+			bytes = store.getBytes();
+		}
+		long recorded = System.nanoTime() - start;
+		int fleet = sim.getVehicles().size();
+		System.out.println(String.format(Locale.ROOT,
+				"%d vehicles, %d steps: %.2f s without recording, %.2f s with, %d bytes (%.2f per vehicle step)",
+				fleet, sim.getStep(), plain / 1e9, recorded / 1e9, Files.size(file),
+				(double) bytes / Math.max(1, (long) fleet * sim.getStep())));
+
+		try (TrajectoryStore store = TrajectoryStore.open(file)) {
+			// The steps each vehicle spent in each state, and a scan for the query
+			int end = sim.getStep();
+			long[] time = new long[VehicleState.values().length];
+			BitSet scanned = new BitSet();
+			int top = region[0], left = region[1], bottom = region[2], right = region[3];
+			int a = from, b = to;
+			for (int v = 0; v < store.getVehicles(); v++) {
+				int[] last = { -1, 0, 0, 0 };
+				TrajectoryStore.Visitor tally = (vehicle, step, row, col, state) -> {
+					if (last[0] >= 0) {
+						count(time, scanned, last, step - 1, top, left, bottom, right, a, b, vehicle);
+					}
+					last[0] = step;
+					last[1] = row;
+					last[2] = col;
+					last[3] = state.ordinal();
+				};
+				store.path(v, tally);
+				if (last[0] >= 0) {
+					count(time, scanned, last, end, top, left, bottom, right, a, b, v);
+				}
+			}
+			long total = Math.max(1, Arrays.stream(time).sum());
+			for (VehicleState s : VehicleState.values()) {
+				System.out.println(String.format(Locale.ROOT, "%-10s %5.1f%% of vehicle steps", s,
+						100.0 * time[s.ordinal()] / total));
+			}
+
+			start = System.nanoTime();
+			int[] found = store.query(top, left, bottom, right, from, to);
+			long queried = System.nanoTime() - start;
+			boolean same = Arrays.equals(found, scanned.stream().toArray());
+			System.out.println(String.format(Locale.ROOT, "%d vehicles in rows %d-%d, columns %d-%d, steps %d-%d"
+					+ " (%.2f ms from the index)%s", found.length, top, bottom, left, right, from, to, queried / 1e6,
+					same ? "" : "; a scan of every path found " + scanned.cardinality()));
+			if (!same) {
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Count the time a vehicle held a position, up to a step, and whether it was
+	 * then in the queried region.
+	 */
+	private static void count(long[] time, BitSet scanned, int[] last, int until, int top, int left, int bottom,
+			int right, int a, int b, int vehicle) {
+		time[last[3]] += until - last[0] + 1;
+		if (last[0] <= until && last[0] <= b && until >= a && last[1] >= top && last[1] <= bottom && last[2] >= left
+				&& last[2] <= right) {
+			scanned.set(vehicle);
+		}
+	}
+}
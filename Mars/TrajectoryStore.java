@@ -0,0 +1,700 @@
+package Mars;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Records where every vehicle goes, compactly enough to leave on for runs of a
+ * hundred thousand vehicles, and answers which vehicles passed through a
+ * region of the field between two steps.
+ *
+ * Vehicles record themselves as they move, pick up a sample or deliver one,
+ * through a Track of their own, while what they touch is still in the cache; a
+ * pass over the whole fleet after each step cost a third as much again as the
+ * step itself on a fleet of 100,000. The state noted is the vehicle's state
+ * just after the event, so a vehicle standing still as crumbs come and go
+ * under it keeps the state it had.
+ *
+ * Each vehicle's path is written into chunks of at most CHUNK_BYTES bytes. A
+ * chunk starts with the vehicle, the step and the vehicle's position and state
+ * in full, so it can be read on its own; after that it holds one record per
+ * event: the steps since the last record and the new state as one varint,
+ * then the change of row and of column as zigzag varints, taken the short way
+ * round the torus. A move to a neighbouring square takes three bytes, and a
+ * vehicle standing still takes none. Each vehicle fills a chunk of its own;
+ * full chunks are copied into a write buffer, which goes to the file through
+ * its channel once it fills up. There are two write buffers: while a thread of
+ * the store's own writes one, the chunks of the next steps go into the other,
+ * so the run only waits for the disk if it falls a whole buffer behind.
+ *
+ * The index divides the field into tiles of TILE x TILE squares and lists for
+ * each tile the chunks whose vehicle was on it, along with the steps each
+ * chunk covers. A query only decodes the chunks listed for the tiles it
+ * overlaps, whose steps overlap its own.
+ *
+ * The file starts with a header of three ints, MAGIC, the depth and the width,
+ * followed by the chunks, each prefixed by its length as a varint. Stores are
+ * written by the thread running the simulation; see
+ * Simulator.recordTrajectories().
+ */
+final class TrajectoryStore implements Closeable {
+	// The most bytes in a chunk, including its start.
+	static final int CHUNK_BYTES = 256;
+	// The side of a tile of the index, in squares.
+	static final int TILE = 16;
+	static final int MAGIC = 0x4d415254;
+	// The largest record: three varints of up to five bytes.
+	private static final int MAX_RECORD = 15;
+	// The size of each write buffer.
+	private static final int BUFFER_BYTES = 1 << 20;
+	private static final int HEADER_BYTES = 12;
+	private static final VehicleState[] STATES = VehicleState.values();
+	private static final int CARRYING = VehicleState.CARRYING.ordinal();
+	private static final int ON_CRUMBS = VehicleState.ON_CRUMBS.ordinal();
+	private static final int SEARCHING = VehicleState.SEARCHING.ordinal();
+
+	/**
+	 * Told about each position of a vehicle as its chunks are decoded.
+	 */
+	interface Visitor {
+		/**
+		 * The vehicle was at a position, in a state, from a step on.
+		 */
+		void visit(int vehicle, int step, int row, int col, VehicleState state);
+	}
+
+	/**
+	 * One vehicle's part of the store: the chunk it is writing and what its
+	 * next record is relative to. Made next to its bytes and held by the
+	 * vehicle, so that recording touches little memory the vehicle has not just
+	 * used.
+	 */
+	static final class Track {
+		private final TrajectoryStore store;
+		private final int vehicle;
+		// The chunk being written, or -1, and its bytes so far.
+		private int chunk = -1;
+		private int length;
+		private byte[] bytes;
+		// The position, step and state of the last record.
+		private int row, col, step, state;
+		// The tile the chunk was last posted to.
+		private int tile;
+		// The vehicle's first and latest chunks, or -1.
+		private int first = -1, latest = -1;
+
+		private Track(TrajectoryStore store, int vehicle) {
+			this.store = store;
+			this.vehicle = vehicle;
+		}
+
+		/**
+		 * Note where the vehicle is and what state it is in, now that it has
+		 * moved, picked up a sample or delivered one.
+		 *
+		 * @throws UncheckedIOException
+		 *             if a full buffer cannot be written
+		 */
+		void record(Vehicle v) {
+			store.record(this, v);
+		}
+	}
+
+	private final FileChannel channel;
+	// Whether the store is being written, rather than read from a file.
+	private final boolean writable;
+	private final int depth, width;
+	private final int tilesAcross;
+	// The field being recorded and the step the vehicles are taking.
+	private Field field;
+	private int step;
+	// Takes the chunks closed since the last write, outLength bytes which go in
+	// the file from outBase on; spare is being written, or is free once pending
+	// is null.
+	private byte[] out = new byte[BUFFER_BYTES];
+	private int outLength;
+	private byte[] spare;
+	private long outBase = HEADER_BYTES;
+	private final ExecutorService writer;
+	private Future<?> pending;
+	// Read buffer for queries.
+	private final ByteBuffer in = ByteBuffer.allocate(CHUNK_BYTES);
+	private final byte[] inBytes = new byte[CHUNK_BYTES];
+
+	// The track of each vehicle, by index.
+	private Track[] tracks = new Track[0];
+
+	// By chunk: its vehicle, the steps it covers, where its bytes are in the
+	// file (-1 while the vehicle is still writing it), their number, and the
+	// vehicle's next chunk, or -1.
+	private int chunks;
+	private int[] chunkVehicle = new int[1024];
+	private int[] chunkFirst = new int[1024];
+	private int[] chunkLast = new int[1024];
+	private long[] chunkOffset = new long[1024];
+	private int[] chunkLength = new int[1024];
+	private int[] chunkNext = new int[1024];
+
+	// By tile: the chunks whose vehicle has been on it, in the order posted.
+	private final int[][] postings;
+	private final int[] postingCount;
+
+	private TrajectoryStore(FileChannel channel, boolean writable, int depth, int width) {
+		this.channel = channel;
+		this.writable = writable;
+		if (writable) {
+			spare = new byte[BUFFER_BYTES];
+			writer = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "trajectory writer");
+				t.setDaemon(true);
+				return t;
+			});
+		} else {
+			writer = null;
+		}
+		this.depth = depth;
+		this.width = width;
+		this.tilesAcross = (width + TILE - 1) / TILE;
+		int tiles = tilesAcross * ((depth + TILE - 1) / TILE);
+		postings = new int[tiles][];
+		postingCount = new int[tiles];
+	}
+
+	/**
+	 * Start a new store, replacing any file already there.
+	 *
+	 * @param file
+	 *            The file to write
+	 * @param depth
+	 *            The depth of the field
+	 * @param width
+	 *            The width of the field
+	 */
+	static TrajectoryStore create(Path file, int depth, int width) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(depth).putInt(width);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		return new TrajectoryStore(channel, true, depth, width);
+	}
+
+	/**
+	 * Open a store written earlier, to query it. The index is built again by
+	 * reading the file once.
+	 *
+	 * @param file
+	 *            The file to read
+	 * @throws IOException
+	 *             if the file cannot be read or is not a store
+	 */
+	static TrajectoryStore open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			channel.close();
+			throw new IOException("Not a trajectory store: " + file);
+		}
+		TrajectoryStore store = new TrajectoryStore(channel, false, header.getInt(), header.getInt());
+		store.rebuild();
+		return store;
+	}
+
+	/**
+	 * Start recording the vehicles of a field, from where they are now.
+	 *
+	 * @param f
+	 *            The field the vehicles are on
+	 * @param vehicles
+	 *            The vehicles, which must then record themselves through the
+	 *            tracks given by track()
+	 * @param step
+	 *            The current step
+	 */
+	void attach(Field f, List<Vehicle> vehicles, int step) {
+		this.field = f;
+		this.step = step;
+		for (int n = 0; n < vehicles.size(); n++) {
+			Vehicle v = vehicles.get(n);
+			record(track(v.getIndex()), v);
+		}
+	}
+
+	/**
+	 * @return The track of a vehicle, made on first use.
+	 */
+	Track track(int vehicle) {
+		if (vehicle >= tracks.length) {
+			tracks = Arrays.copyOf(tracks, Math.max(vehicle + 1, tracks.length * 2));
+		}
+		if (tracks[vehicle] == null) {
+			tracks[vehicle] = new Track(this, vehicle);
+		}
+		return tracks[vehicle];
+	}
+
+	/**
+	 * @param step
+	 *            The step the vehicles are about to take
+	 */
+	void startStep(int step) {
+		this.step = step;
+	}
+
+	private void record(Track t, Vehicle v) {
+		Location l = v.getLocation();
+		int row = l.getRow();
+		int col = l.getCol();
+		// As Vehicle.getState(), from the crumb bitboard: crumbs on a trail to
+		// a cluster picked clean do not count
+		int state = v.carryingSample ? CARRYING
+				: field.hasCrumbs(row, col) && field.isLiveTrail(row, col) ? ON_CRUMBS : SEARCHING;
+		if (t.chunk < 0) {
+			startChunk(t, row, col, state);
+			return;
+		}
+		if (row == t.row && col == t.col && state == t.state) {
+			return;
+		}
+		if (t.length + MAX_RECORD > CHUNK_BYTES) {
+			try {
+				closeChunk(t, step - 1);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			startChunk(t, row, col, state);
+			return;
+		}
+		byte[] b = t.bytes;
+		int p = putVarint(b, t.length, (step - t.step) << 2 | state);
+		p = putVarint(b, p, zigzag(shortWay(row - t.row, depth)));
+		t.length = putVarint(b, p, zigzag(shortWay(col - t.col, width)));
+		note(t, step, row, col, state);
+	}
+
+	/**
+	 * Find the vehicles that were in a region of the field at some step from a to
+	 * b, both included.
+	 *
+	 * @param top
+	 *            The first row of the region
+	 * @param left
+	 *            The first column
+	 * @param bottom
+	 *            The last row, at least top
+	 * @param right
+	 *            The last column, at least left
+	 * @return The indices of the vehicles, in ascending order. Parts of the
+	 *         region off the field hold no vehicles.
+	 */
+	int[] query(int top, int left, int bottom, int right, int a, int b) throws IOException {
+		top = Math.max(0, top);
+		left = Math.max(0, left);
+		bottom = Math.min(depth - 1, bottom);
+		right = Math.min(width - 1, right);
+		BitSet candidates = new BitSet(chunks);
+		for (int tr = top / TILE; tr <= bottom / TILE; tr++) {
+			for (int tc = left / TILE; tc <= right / TILE; tc++) {
+				int t = tr * tilesAcross + tc;
+				for (int k = 0; k < postingCount[t]; k++) {
+					int c = postings[t][k];
+					if (chunkFirst[c] <= b && chunkLast[c] >= a) {
+						candidates.set(c);
+					}
+				}
+			}
+		}
+		BitSet found = new BitSet();
+		RegionCheck check = new RegionCheck(top, left, bottom, right, a, b);
+		for (int c = candidates.nextSetBit(0); c >= 0; c = candidates.nextSetBit(c + 1)) {
+			if (found.get(chunkVehicle[c])) {
+				continue;
+			}
+			check.step = -1;
+			check.hit = false;
+			decode(c, check);
+			// The last position holds until the chunk's last step.
+			check.check(chunkLast[c]);
+			if (check.hit) {
+				found.set(chunkVehicle[c]);
+			}
+		}
+		return found.stream().toArray();
+	}
+
+	/**
+	 * Follows a chunk's positions, noting whether one of them lay in a region
+	 * at some step of a span.
+	 */
+	private static final class RegionCheck implements Visitor {
+		private final int top, left, bottom, right, a, b;
+		// The position last visited and the step it was reached, or -1.
+		int step = -1, row, col;
+		boolean hit;
+
+		RegionCheck(int top, int left, int bottom, int right, int a, int b) {
+			this.top = top;
+			this.left = left;
+			this.bottom = bottom;
+			this.right = right;
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public void visit(int vehicle, int s, int r, int c, VehicleState state) {
+			check(s - 1);
+			step = s;
+			row = r;
+			col = c;
+		}
+
+		/**
+		 * Check the position last visited, held until a step.
+		 */
+		void check(int until) {
+			if (step >= 0 && step <= until && step <= b && until >= a && row >= top && row <= bottom && col >= left
+					&& col <= right) {
+				hit = true;
+			}
+		}
+	}
+
+	/**
+	 * Visit every position of a vehicle's path, in step order.
+	 */
+	void path(int vehicle, Visitor visitor) throws IOException {
+		if (vehicle >= tracks.length || tracks[vehicle] == null) {
+			return;
+		}
+		for (int c = tracks[vehicle].first; c >= 0; c = chunkNext[c]) {
+			decode(c, visitor);
+		}
+	}
+
+	/**
+	 * @return One more than the highest index of a vehicle recorded.
+	 */
+	int getVehicles() {
+		for (int i = tracks.length - 1; i >= 0; i--) {
+			if (tracks[i] != null && tracks[i].first >= 0) {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The bytes of the paths so far, written or not.
+	 */
+	long getBytes() {
+		long bytes = outBase - HEADER_BYTES + outLength;
+		for (Track t : tracks) {
+			if (t != null && t.chunk >= 0) {
+				bytes += t.length;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Write every open chunk and close the file. The store cannot be queried
+	 * afterwards; open it again to do so.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!channel.isOpen()) {
+			return;
+		}
+		if (writable) {
+			for (Track t : tracks) {
+				if (t != null && t.chunk >= 0) {
+					closeChunk(t, Integer.MAX_VALUE);
+				}
+			}
+			flush();
+			awaitWrite();
+			writer.shutdown();
+			channel.force(false);
+		}
+		channel.close();
+	}
+
+	private void startChunk(Track t, int row, int col, int state) {
+		if (chunks == chunkVehicle.length) {
+			growChunks();
+		}
+		int c = chunks++;
+		chunkVehicle[c] = t.vehicle;
+		chunkFirst[c] = step;
+		chunkLast[c] = Integer.MAX_VALUE;
+		chunkOffset[c] = -1;
+		chunkNext[c] = -1;
+		if (t.first < 0) {
+			t.first = c;
+		} else {
+			chunkNext[t.latest] = c;
+		}
+		t.latest = c;
+		t.chunk = c;
+		if (t.bytes == null) {
+			t.bytes = new byte[CHUNK_BYTES];
+		}
+		byte[] b = t.bytes;
+		int p = putVarint(b, 0, t.vehicle);
+		p = putVarint(b, p, step);
+		p = putVarint(b, p, row);
+		p = putVarint(b, p, col);
+		t.length = putVarint(b, p, state);
+		t.tile = -1;
+		note(t, step, row, col, state);
+	}
+
+	// Move a track on to a position, posting its chunk to a new tile.
+	private void note(Track t, int step, int row, int col, int state) {
+		t.row = row;
+		t.col = col;
+		t.step = step;
+		t.state = state;
+		int tile = (row / TILE) * tilesAcross + col / TILE;
+		if (tile != t.tile) {
+			post(tile, t.chunk);
+			t.tile = tile;
+		}
+	}
+
+	private void post(int tile, int c) {
+		int[] list = postings[tile];
+		if (list == null) {
+			list = postings[tile] = new int[8];
+		} else if (postingCount[tile] == list.length) {
+			list = postings[tile] = Arrays.copyOf(list, list.length * 2);
+		}
+		list[postingCount[tile]++] = c;
+	}
+
+	/**
+	 * Copy a track's chunk into the write buffer, handing the buffer to the
+	 * writer first if it is too full to take it.
+	 */
+	private void closeChunk(Track t, int last) throws IOException {
+		int c = t.chunk;
+		if (BUFFER_BYTES - outLength < t.length + 5) {
+			flush();
+		}
+		outLength = putVarint(out, outLength, t.length);
+		chunkOffset[c] = outBase + outLength;
+		chunkLength[c] = t.length;
+		chunkLast[c] = last;
+		System.arraycopy(t.bytes, 0, out, outLength, t.length);
+		outLength += t.length;
+		t.chunk = -1;
+		t.length = 0;
+	}
+
+	/**
+	 * Hand the write buffer to the writer thread and carry on with the other,
+	 * once the writer has finished with it.
+	 */
+	private void flush() throws IOException {
+		awaitWrite();
+		ByteBuffer full = ByteBuffer.wrap(out, 0, outLength);
+		long base = outBase;
+		outBase += outLength;
+		out = spare;
+		spare = full.array();
+		outLength = 0;
+		pending = writer.submit(() -> {
+			long position = base;
+			while (full.hasRemaining()) {
+				position += channel.write(full, position);
+			}
+			return null;
+		});
+	}
+
+	/**
+	 * Wait for the writer thread to finish the buffer it has.
+	 */
+	private void awaitWrite() throws IOException {
+		if (pending == null) {
+			return;
+		}
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing trajectories", e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+		pending = null;
+	}
+
+	/**
+	 * Read the chunks of a store from its file and index them.
+	 */
+	private void rebuild() throws IOException {
+		long size = channel.size();
+		long position = HEADER_BYTES;
+		ByteBuffer lengthBytes = ByteBuffer.allocate(5);
+		int[] at = new int[1];
+		while (position < size) {
+			lengthBytes.clear();
+			lengthBytes.limit((int) Math.min(5, size - position));
+			readFully(channel, lengthBytes, position);
+			at[0] = 0;
+			int length = getVarint(lengthBytes.array(), at);
+			position += at[0];
+			readChunk(position, length);
+
+			// Index the chunk as if it were being written, then close it where it is.
+			at[0] = 0;
+			Track t = track(getVarint(inBytes, at));
+			step = getVarint(inBytes, at);
+			if (t.latest >= 0) {
+				chunkLast[t.latest] = step - 1;
+			}
+			// startChunk writes back the very start it is given, so can use the bytes read
+			t.bytes = inBytes;
+			int row = getVarint(inBytes, at);
+			int col = getVarint(inBytes, at);
+			startChunk(t, row, col, getVarint(inBytes, at));
+			while (at[0] < length) {
+				int head = getVarint(inBytes, at);
+				row = Math.floorMod(row + unzigzag(getVarint(inBytes, at)), depth);
+				col = Math.floorMod(col + unzigzag(getVarint(inBytes, at)), width);
+				note(t, t.step + (head >>> 2), row, col, head & 3);
+			}
+			chunkOffset[t.chunk] = position;
+			chunkLength[t.chunk] = length;
+			t.chunk = -1;
+			t.length = 0;
+			t.bytes = null;
+			position += length;
+		}
+		outBase = size;
+	}
+
+	/**
+	 * Visit the positions of one chunk, wherever its bytes are.
+	 */
+	private void decode(int c, Visitor visitor) throws IOException {
+		int vehicle = chunkVehicle[c];
+		byte[] b;
+		int length;
+		if (chunkOffset[c] < 0) {
+			b = tracks[vehicle].bytes;
+			length = tracks[vehicle].length;
+		} else if (chunkOffset[c] >= outBase) {
+			length = chunkLength[c];
+			System.arraycopy(out, (int) (chunkOffset[c] - outBase), inBytes, 0, length);
+			b = inBytes;
+		} else {
+			length = chunkLength[c];
+			awaitWrite();
+			readChunk(chunkOffset[c], length);
+			b = inBytes;
+		}
+		int[] at = new int[1];
+		getVarint(b, at);
+		int step = getVarint(b, at);
+		int row = getVarint(b, at);
+		int col = getVarint(b, at);
+		int state = getVarint(b, at);
+		visitor.visit(vehicle, step, row, col, STATES[state]);
+		while (at[0] < length) {
+			int head = getVarint(b, at);
+			step += head >>> 2;
+			row = Math.floorMod(row + unzigzag(getVarint(b, at)), depth);
+			col = Math.floorMod(col + unzigzag(getVarint(b, at)), width);
+			visitor.visit(vehicle, step, row, col, STATES[head & 3]);
+		}
+	}
+
+	private void readChunk(long position, int length) throws IOException {
+		in.clear();
+		in.limit(length);
+		readFully(channel, in, position);
+		in.flip();
+		in.get(inBytes, 0, length);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException();
+			}
+			position += n;
+		}
+	}
+
+	private void growChunks() {
+		int n = chunkVehicle.length * 2;
+		chunkVehicle = Arrays.copyOf(chunkVehicle, n);
+		chunkFirst = Arrays.copyOf(chunkFirst, n);
+		chunkLast = Arrays.copyOf(chunkLast, n);
+		chunkOffset = Arrays.copyOf(chunkOffset, n);
+		chunkLength = Arrays.copyOf(chunkLength, n);
+		chunkNext = Arrays.copyOf(chunkNext, n);
+	}
+
+	/**
+	 * @return A change of position taken the short way round a torus of size n.
+	 */
+	private static int shortWay(int d, int n) {
+		if (d > n / 2) {
+			return d - n;
+		}
+		if (d < -(n - 1) / 2) {
+			return d + n;
+		}
+		return d;
+	}
+
+	private static int zigzag(int v) {
+		return (v << 1) ^ (v >> 31);
+	}
+
+	private static int unzigzag(int v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static int putVarint(byte[] b, int p, int v) {
+		while ((v & ~0x7f) != 0) {
+			b[p++] = (byte) (v & 0x7f | 0x80);
+			v >>>= 7;
+		}
+		b[p++] = (byte) v;
+		return p;
+	}
+
+	private static int getVarint(byte[] b, int[] at) {
+		int v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte x = b[at[0]++];
+			v |= (x & 0x7f) << shift;
+			if (x >= 0) {
+				return v;
+			}
+		}
+	}
+}
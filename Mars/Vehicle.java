@@ -3,118 +3,280 @@ package Mars;
 import java.util.ArrayList;
 
 class Vehicle extends Entity {
+	// The number of crumbs dropped per step on the way back to the mothership,
+	// unless the run sets its own.
+	static final int CRUMBS_PER_DROP = 2;
+
 	public boolean carryingSample;
+	// The samples carried, and the most the vehicle can carry at once.
+	private int cargo;
+	private int carryingCapacity = 1;
+	// The cluster the last sample picked up came from, which the crumbs
+	// dropped on the way back lead to, or -1.
+	private int cargoCluster = -1;
+	// The rule set deciding what this vehicle does each step.
+	private BehaviourPolicy policy;
+	// Where pickups and deliveries are counted, may be null.
+	private MissionStats stats;
+	// The vehicle's own stream for its random choices.
+	private RandomStream random;
+	// How far the vehicle can sense rocks, crumbs and the mothership, in king
+	// moves. 1 means the adjacent squares only, 0 the vehicle's own square.
+	private int rockSensingRadius = 1;
+	private int crumbSensingRadius = 0;
+	private int mothershipSensingRadius = 1;
+	// The crumbs this vehicle drops per step on its way back.
+	private int crumbsPerDrop = CRUMBS_PER_DROP;
+	// The vehicle's position in the simulation's list, used by the scheduler.
+	private int index;
+	// While planning, moves, pickups and crumb changes are only noted here, to
+	// be carried out once every vehicle has decided; see SynchronousStep.
+	private boolean planning;
+	private Location plannedMove;
+	private Location plannedPickup;
+	private int plannedCrumbs;
+	// Where this vehicle records its path, or null.
+	private TrajectoryStore.Track track;
+	// The heatmaps this vehicle adds its moves and pickups to, or null.
+	private Heatmaps heatmaps;
+	// Where this vehicle writes what it changes, to be undone, or null.
+	private StepJournal journal;
 
 	public Vehicle(Location l) {
+		this(l, CollaborativePolicy.INSTANCE, null, new RandomStream(ModelConstants.RANDOM_SEED));
+	}
+
+	public Vehicle(Location l, BehaviourPolicy policy, MissionStats stats, RandomStream random) {
 		super(l);
 		this.carryingSample = false;
+		this.policy = policy;
+		this.stats = stats;
+		this.random = random;
 	}
 
 	/**
-	 * Decide which implementation to execute - This must be done manually by
-	 * commenting out the opposite implementation call
+	 * Work out which handler of the behaviour policy should run this vehicle. The
+	 * state only depends on the vehicle itself and the cell it stands on, so it
+	 * cannot be changed by other vehicles acting earlier in the same step.
 	 * 
 	 * @param f
 	 *            Instance of class Field
-	 * @param m
-	 *            Instance of class Mothership
-	 * @param rocksCollected
-	 *            ArrayList containing the rocks this vehicle is carrying
+	 * @return The state of this vehicle
 	 */
-	public void act(Field f, Mothership m, ArrayList<Rock> rocksCollected) {
-		actCollaborative(f, m, rocksCollected);
-		// actSimple(f, m, rocksCollected);
+	public VehicleState getState(Field f) {
+		if (carryingSample) {
+			return VehicleState.CARRYING;
+		}
+		if (senseCrumbs(f)) {
+			return VehicleState.ON_CRUMBS;
+		}
+		return VehicleState.SEARCHING;
 	}
 
 	/**
-	 * Execute the simple implementation
+	 * Set how far the vehicle can sense. The defaults (1, 0, 1) are the original
+	 * sensors: rocks and the mothership in adjacent squares, crumbs underneath.
 	 * 
-	 * @param f
-	 *            Instance of class Field
-	 * @param m
-	 *            Instance of class Mothership
-	 * @param rocksCollected
-	 *            ArrayList containing the rocks this vehicle is carrying
+	 * @param rocks
+	 *            The radius for rocks, at least 1
+	 * @param crumbs
+	 *            The radius for crumbs, at least 0
+	 * @param mothership
+	 *            The radius for the mothership, at least 1
 	 */
-	public void actSimple(Field f, Mothership m, ArrayList<Rock> rocksCollected) {
+	public void setSensingRadii(int rocks, int crumbs, int mothership) {
+		if (rocks < 1 || crumbs < 0 || mothership < 1 || Math.max(rocks, Math.max(crumbs, mothership)) > RowBitboard.MAX_RADIUS) {
+			throw new IllegalArgumentException("Sensing radii out of range: " + rocks + ", " + crumbs + ", " + mothership);
+		}
+		this.rockSensingRadius = rocks;
+		this.crumbSensingRadius = crumbs;
+		this.mothershipSensingRadius = mothership;
+	}
 
-		if (carryingSample) {
-			if (findAdjacentMothership(f) != null) {
-				// if carrying a sample and at the base then drop sample (1)
-				dropSample(rocksCollected);
-			} else {
-				// if carrying a sample and not at the base then travel up gradient (2)
-				moveUpGradient(f);
-			}
-		} else {
-			if (detectSample(f) != null) {
-				// if detect a sample then pick sample (3)
-				pickUpSample(f, detectSample(f), rocksCollected);
-			} else {
-				// if true then move randomly (4)
-				moveRandomly(f);
-			}
+	/**
+	 * @return How far the vehicle can sense crumbs
+	 */
+	public int getCrumbSensingRadius() {
+		return crumbSensingRadius;
+	}
+
+	/**
+	 * @return The vehicle's position in the simulation's list of vehicles
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @param index
+	 *            The vehicle's position in the simulation's list of vehicles
+	 */
+	public void setIndex(int index) {
+		this.index = index;
+	}
+
+	/**
+	 * Start noting what the vehicle decides to do instead of doing it. Reading
+	 * the field and dropping a sample at the mothership still happen at once.
+	 */
+	void startPlanning() {
+		planning = true;
+		plannedMove = null;
+		plannedPickup = null;
+		plannedCrumbs = 0;
+	}
+
+	/**
+	 * Go back to acting on the field at once. The plan is kept for the caller
+	 * to carry out.
+	 */
+	void stopPlanning() {
+		planning = false;
+	}
+
+	/**
+	 * @return The location the vehicle planned to move to, or null
+	 */
+	Location getPlannedMove() {
+		return plannedMove;
+	}
+
+	/**
+	 * @return The location of the sample the vehicle planned to pick up, or null
+	 */
+	Location getPlannedPickup() {
+		return plannedPickup;
+	}
+
+	/**
+	 * @return The crumbs the vehicle planned to drop, negative to pick one up,
+	 *         or 0
+	 */
+	int getPlannedCrumbs() {
+		return plannedCrumbs;
+	}
+
+	/**
+	 * @param capacity
+	 *            The most samples the vehicle can carry at once, at least 1.
+	 *            A vehicle with room for more keeps picking up the samples it
+	 *            senses before heading back.
+	 */
+	public void setCarryingCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Carrying capacity out of range: " + capacity);
 		}
+		this.carryingCapacity = capacity;
+	}
+
+	public int getCarryingCapacity() {
+		return carryingCapacity;
 	}
 
 	/**
-	 * Execute the collaborative implementation - Drop crumbs to help other agents
-	 * find their way to rock clusters
+	 * @return The number of samples carried.
+	 */
+	int getCargo() {
+		return cargo;
+	}
+
+	/**
+	 * @return True if the vehicle cannot carry another sample
+	 */
+	boolean isFull() {
+		return cargo >= carryingCapacity;
+	}
+
+	/**
+	 * @return The cluster the last sample picked up came from, or -1.
+	 */
+	int getCargoCluster() {
+		return cargoCluster;
+	}
+
+	/**
+	 * Put back what the vehicle carries, e.g. when a step is undone or the
+	 * vehicle is copied.
+	 *
+	 * @param samples
+	 *            The number of samples it carries
+	 * @param cluster
+	 *            The cluster the last one came from, or -1
+	 */
+	void restoreCargo(int samples, int cluster) {
+		cargo = samples;
+		carryingSample = samples > 0;
+		cargoCluster = cluster;
+	}
+
+	/**
+	 * @return The vehicle's random stream, e.g. to hand the vehicle on to
+	 *         another process
+	 */
+	RandomStream getRandom() {
+		return random;
+	}
+
+	/**
+	 * @return The rule set this vehicle follows
+	 */
+	public BehaviourPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @param policy
+	 *            The rule set this vehicle should follow
+	 */
+	public void setPolicy(BehaviourPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @param crumbsPerDrop
+	 *            The crumbs to drop per step on the way back to the mothership
+	 */
+	public void setCrumbsPerDrop(int crumbsPerDrop) {
+		this.crumbsPerDrop = crumbsPerDrop;
+	}
+
+	public int getCrumbsPerDrop() {
+		return crumbsPerDrop;
+	}
+
+	/**
+	 * Drop this vehicle's share of crumbs at this location
 	 * 
 	 * @param f
 	 *            Instance of class Field
-	 * @param m
-	 *            Instance of class Mothership
-	 * @param rocksCollected
-	 *            ArrayList containing the rocks this vehicle is carrying
 	 */
-	public void actCollaborative(Field f, Mothership m, ArrayList<Rock> rocksCollected) {
-		if (carryingSample) {
-			if (findAdjacentMothership(f) != null) {
-				// if carrying a sample and at the base then drop sample (1)
-				dropSample(rocksCollected);
-			} else {
-				// if carrying a sample and not at the base then drop two crumbs and travel up
-				// gradient (5)
-				dropCrumbs(f);
-				moveUpGradient(f);
-			}
-		} else {
-			if (detectSample(f) != null) {
-				// if detect a sample then pick sample (3)
-				pickUpSample(f, detectSample(f), rocksCollected);
-			} else {
-				if (senseCrumbs(f)) {
-					// if sense crumbs then pick up one crumb and travel down gradient (6)
-					pickUpCrumb(f);
-					moveDownGradient(f);
-				} else {
-					// if true then move randomly (4)
-					moveRandomly(f);
-				}
-			}
+	void dropCrumbs(Field f) {
+		if (planning) {
+			plannedCrumbs = crumbsPerDrop;
+			return;
 		}
+		f.dropCrumbs(this.getLocation(), crumbsPerDrop, cargoCluster);
 	}
 
 	/**
-	 * Drop 2 crumbs at this location
-	 * 
 	 * @param f
 	 *            Instance of class Field
+	 * @return True if dropping crumbs here would add to the trail
 	 */
-	private void dropCrumbs(Field f) {
-		f.dropCrumbs(this.getLocation(), 2);
+	boolean canDropCrumbs(Field f) {
+		return f.canDropCrumbs(this.getLocation(), crumbsPerDrop);
 	}
 
 	/**
-	 * Sense if there are any crumbs at the vehicles current location
+	 * Sense if there are any crumbs at the vehicles current location, leaving
+	 * out those of a cluster picked clean if the run follows trails
 	 * 
 	 * @param f
 	 *            Instance of class Field
 	 * @return True if there are crumbs present
 	 */
-	private Boolean senseCrumbs(Field f) {
-		return (f.getCrumbQuantityAt(this.getLocation()) > 0);
+	boolean senseCrumbs(Field f) {
+		return f.hasLiveCrumbs(this.getLocation());
 	}
 
 	/**
@@ -123,115 +285,227 @@ class Vehicle extends Entity {
 	 * @param f
 	 *            Instance of class Field
 	 */
-	private void pickUpCrumb(Field f) {
+	void pickUpCrumb(Field f) {
+		if (planning) {
+			plannedCrumbs = -1;
+			return;
+		}
 		f.pickUpACrumb(this.getLocation());
 	}
 
 	/**
-	 * Move away from the mothership, by detecting the signal values of adjacent
-	 * locations and moving to the lowest value
+	 * Move away from the mothership, by moving to the free adjacent location with
+	 * the lowest signal value
 	 * 
 	 * @param f
 	 *            Instance of class Field
 	 */
-	private void moveDownGradient(Field f) {
-		ArrayList<Location> adjacentLocations = f.getAllAdjacentLocations(this.getLocation());
-
-		// Find adjacent empty location with lowest signal strength
-		{
-			double currentMin = 9999;
-			Location minSignalStrengthAdjacent = f.freeAdjacentLocation(this.getLocation());
-
-			for (Location adjacent : adjacentLocations) {
-				if (f.getObjectAt(adjacent) == null) {
-					if (f.getSignalStrength(adjacent) < currentMin) {
-						currentMin = f.getSignalStrength(adjacent);
-						minSignalStrengthAdjacent = adjacent;
-					}
-				}
-			}
+	void moveDownGradient(Field f) {
+		Location minSignalStrengthAdjacent = f.gradientStep(this.getLocation(), false, random);
+		if (minSignalStrengthAdjacent != null) {
+			moveTo(f, minSignalStrengthAdjacent);
+		}
+	}
 
-			if (minSignalStrengthAdjacent != null) {
-				moveTo(f, minSignalStrengthAdjacent);
-			}
+	/**
+	 * Drop every sample carried at the mothership, in one delivery. I couldn't
+	 * find anywhere to 'store' the rocks once the rover was no longer carrying
+	 * them, so they're just deleted.
+	 */
+	void dropSample() {
+		if (journal != null) {
+			journal.cargo(this);
+		}
+		int delivered = cargo;
+		cargo = 0;
+		carryingSample = false;
+		cargoCluster = -1;
+		if (stats != null) {
+			stats.delivered(delivered);
+		}
+		if (track != null) {
+			track.record(this);
 		}
 	}
 
 	/**
-	 * Drop the sample at the mothership. I couldn't find anywhere to 'store' the
-	 * rock once the rover was no longer carrying it, so it's just deleted.
+	 * Move towards the mothership, by moving to the free adjacent location with
+	 * the highest signal value
 	 * 
-	 * @param rocksCollected
-	 *            ArrayList containing the rocks this vehicle is carrying
+	 * @param f
+	 *            Instance of class Field
 	 */
-	private void dropSample(ArrayList<Rock> rocksCollected) {
-		rocksCollected.clear();
-		carryingSample = false;
+	void moveUpGradient(Field f) {
+		Location maxSignalStrengthAdjacent = f.gradientStep(this.getLocation(), true, random);
+		if (maxSignalStrengthAdjacent != null) {
+			moveTo(f, maxSignalStrengthAdjacent);
+		}
 	}
 
 	/**
-	 * Move towards the mothership, by detecting signal values of adjacent locations
-	 * and moving to highest value
+	 * Search for the nearest rock sample within sensing range
 	 * 
 	 * @param f
 	 *            Instance of class Field
+	 * @return Location of the rock sample, or null if none is in range
 	 */
-	private void moveUpGradient(Field f) {
-		ArrayList<Location> adjacentLocations = f.getAllAdjacentLocations(this.getLocation());
-
-		// Find adjacent empty location with lowest signal strength
-		{
-			double currentMax = 0;
-			Location maxSignalStrengthAdjacent = f.freeAdjacentLocation(this.getLocation());
-
-			for (Location adjacent : adjacentLocations) {
-				if (f.getObjectAt(adjacent) == null) {
-					if (f.getSignalStrength(adjacent) > currentMax) {
-						currentMax = f.getSignalStrength(adjacent);
-						maxSignalStrengthAdjacent = adjacent;
-					}
-				}
-			}
+	Location detectSample(Field f) {
+		return f.senseNearest(Rock.class, this.getLocation(), rockSensingRadius, random);
+	}
 
-			if (maxSignalStrengthAdjacent != null) {
-				moveTo(f, maxSignalStrengthAdjacent);
-			}
+	/**
+	 * Search for the nearest location with crumbs within sensing range, other than
+	 * the vehicle's own
+	 * 
+	 * @param f
+	 *            Instance of class Field
+	 * @return Location with crumbs, or null if none is in range
+	 */
+	Location senseNearbyCrumbs(Field f) {
+		if (crumbSensingRadius == 0) {
+			return null;
 		}
+		Location crumbs = f.senseNearestCrumbs(this.getLocation(), crumbSensingRadius, random);
+		return crumbs == null || crumbs.equals(this.getLocation()) ? null : crumbs;
 	}
 
 	/**
-	 * Search for an adjacent location with a rock sample in it
+	 * The checks below tell whether the sensing methods above would find
+	 * anything, without making the random choice between what they find.
 	 * 
 	 * @param f
 	 *            Instance of class Field
-	 * @return Location of adjacent rock sample
-	 */
-	private Location detectSample(Field f) {
-		ArrayList<Location> adjacentLocations = f.getAllAdjacentLocations(this.getLocation());
-		for (Location adjacent : adjacentLocations) {
-			Entity objectAtLocation = f.getObjectAt(adjacent);
-			if (objectAtLocation instanceof Rock) {
-				return adjacent;
+	 * @return True if a rock sample is within sensing range
+	 */
+	boolean sensesSample(Field f) {
+		return f.senses(Rock.class, this.getLocation(), rockSensingRadius);
+	}
+
+	/**
+	 * @param f
+	 *            Instance of class Field
+	 * @return True if crumbs are within sensing range, the vehicle's own
+	 *         location included
+	 */
+	boolean sensesNearbyCrumbs(Field f) {
+		return crumbSensingRadius > 0 && f.sensesCrumbs(this.getLocation(), crumbSensingRadius);
+	}
+
+	/**
+	 * @param f
+	 *            Instance of class Field
+	 * @return True if the mothership is within sensing range
+	 */
+	boolean sensesMothership(Field f) {
+		return f.senses(Mothership.class, this.getLocation(), mothershipSensingRadius);
+	}
+
+	/**
+	 * @param f
+	 *            Instance of class Field
+	 * @return True if every adjacent location is taken, so the vehicle cannot
+	 *         move
+	 */
+	boolean isBoxedIn(Field f) {
+		return !f.hasFreeAdjacentLocation(this.getLocation());
+	}
+
+	/**
+	 * Search for the mothership within sensing range
+	 * 
+	 * @param f
+	 *            Instance of class Field
+	 * @return Location of mothership, or null if it is out of range
+	 */
+	Location senseMothership(Field f) {
+		return f.senseNearest(Mothership.class, this.getLocation(), mothershipSensingRadius, random);
+	}
+
+	/**
+	 * @param f
+	 *            Instance of class Field
+	 * @param l
+	 *            A location
+	 * @return True if the location is next to the vehicle
+	 */
+	boolean isAdjacent(Field f, Location l) {
+		return f.distance(this.getLocation(), l) <= 1;
+	}
+
+	/**
+	 * Move to the free adjacent location closest to a target, choosing at random
+	 * between equally close ones
+	 * 
+	 * @param f
+	 *            Instance of class Field
+	 * @param target
+	 *            The location to head for
+	 */
+	void moveTowards(Field f, Location target) {
+		int row = this.getLocation().getRow();
+		int col = this.getLocation().getCol();
+		int best = Integer.MAX_VALUE;
+		int seen = 0;
+		Location chosen = null;
+		for (int d = 0; d < 8; d++) {
+			int r = Math.floorMod(row + FlowField.DR[d], f.getDepth());
+			int c = Math.floorMod(col + FlowField.DC[d], f.getWidth());
+			if (f.getObjectAt(r, c) != null) {
+				continue;
+			}
+			int dr = Math.abs(r - target.getRow());
+			dr = Math.min(dr, f.getDepth() - dr);
+			int dc = Math.abs(c - target.getCol());
+			dc = Math.min(dc, f.getWidth() - dc);
+			int dist = dr * dr + dc * dc;
+			if (dist < best) {
+				best = dist;
+				seen = 1;
+				chosen = f.locationAt(r, c);
+			} else if (dist == best && random.nextInt(++seen) == 0) {
+				chosen = f.locationAt(r, c);
 			}
 		}
-		return null;
+		if (chosen != null) {
+			moveTo(f, chosen);
+		}
 	}
 
 	/**
-	 * Remove the rock sample from the location and add rock sample to ArrayList
-	 * variable
+	 * Remove the rock sample from the location, add it to the vehicle's cargo
+	 * and to the rocks collected this step
 	 * 
 	 * @param f
 	 *            Instance of class Field
 	 * @param l
 	 *            Location of adjacent rock sample
 	 * @param rocksCollected
-	 *            ArrayList containing the rocks this vehicle is carrying
+	 *            ArrayList containing the rocks collected this step
 	 */
-	private void pickUpSample(Field f, Location l, ArrayList<Rock> rocksCollected) {
-		rocksCollected.add((Rock) f.getObjectAt(l));
+	void pickUpSample(Field f, Location l, ArrayList<Rock> rocksCollected) {
+		if (planning) {
+			plannedPickup = l;
+			return;
+		}
+		Rock rock = (Rock) f.getObjectAt(l);
+		if (journal != null) {
+			journal.pickedUp(rock, l);
+			journal.cargo(this);
+		}
+		rocksCollected.add(rock);
 		f.clearLocation(l);
+		cargo++;
 		this.carryingSample = true;
+		cargoCluster = rock.getCluster();
+		if (stats != null) {
+			stats.rockPickedUp();
+		}
+		if (heatmaps != null) {
+			heatmaps.pickUp(l.getRow(), l.getCol());
+		}
+		if (track != null) {
+			track.record(this);
+		}
 	}
 
 	/**
@@ -241,15 +515,8 @@ class Vehicle extends Entity {
 	 *            Instance of class Field
 	 * @return Location of mothership
 	 */
-	private Location findAdjacentMothership(Field f) {
-		ArrayList<Location> adjacentLocations = f.getAllAdjacentLocations(this.getLocation());
-		for (Location adjacent : adjacentLocations) {
-			Entity objectAtLocation = f.getObjectAt(adjacent);
-			if (objectAtLocation instanceof Mothership) {
-				return adjacent;
-			}
-		}
-		return null;
+	Location findAdjacentMothership(Field f) {
+		return f.senseNearest(Mothership.class, this.getLocation(), 1, random);
 	}
 
 	/**
@@ -258,11 +525,14 @@ class Vehicle extends Entity {
 	 * @param f
 	 *            Instance of class Field
 	 */
-	private void moveRandomly(Field f) {
+	void moveRandomly(Field f) {
 		Location vehicleLocation = this.getLocation();
-		Location freeAdjacentLocation = f.freeAdjacentLocation(vehicleLocation);
+		Location freeAdjacentLocation = f.freeAdjacentLocation(vehicleLocation, random);
 
-		moveTo(f, freeAdjacentLocation);
+		// stay put when boxed in
+		if (freeAdjacentLocation != null) {
+			moveTo(f, freeAdjacentLocation);
+		}
 	}
 
 	/**
@@ -273,9 +543,48 @@ class Vehicle extends Entity {
 	 * @param l
 	 *            Location to move to
 	 */
-	private void moveTo(Field f, Location l) {
+	void moveTo(Field f, Location l) {
+		if (planning) {
+			plannedMove = l;
+			return;
+		}
+		if (journal != null) {
+			journal.moved(this, this.getLocation());
+		}
 		f.clearLocation(this.getLocation());
 		f.place(this, l);
 		this.setLocation(l);
+		if (heatmaps != null) {
+			heatmaps.visit(l.getRow(), l.getCol());
+		}
+		if (track != null) {
+			track.record(this);
+		}
+	}
+
+	/**
+	 * @param store
+	 *            Where to record this vehicle's path from now on, or null
+	 */
+	void recordTo(TrajectoryStore store) {
+		this.track = store == null ? null : store.track(index);
+	}
+
+	/**
+	 * @param heatmaps
+	 *            The heatmaps to add this vehicle's moves and pickups to from
+	 *            now on, or null
+	 */
+	void accumulateInto(Heatmaps heatmaps) {
+		this.heatmaps = heatmaps;
+	}
+
+	/**
+	 * @param journal
+	 *            Where to write what this vehicle changes from now on, so it
+	 *            can be undone, or null
+	 */
+	void journalTo(StepJournal journal) {
+		this.journal = journal;
 	}
 }
@@ -0,0 +1,14 @@
+package Mars;
+
+/**
+ * The states a vehicle can be in at the start of a step. Vehicles in the same
+ * state are run together by the handler of their behaviour policy.
+ */
+enum VehicleState {
+	// Carrying a sample back to the mothership.
+	CARRYING,
+	// Not carrying a sample and standing on crumbs.
+	ON_CRUMBS,
+	// Not carrying a sample and not standing on crumbs.
+	SEARCHING
+}
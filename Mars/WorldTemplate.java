@@ -0,0 +1,251 @@
+package Mars;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The parts of a world that no run ever changes: where the rocks, obstacles,
+ * vehicles and mothership start, the mothership's signal, the flow field
+ * ranked from it and one Location per cell. A field made from a template
+ * shares these with every other field made from it and keeps only its own
+ * entities and crumbs, so many runs of one world fit in one JVM.
+ *
+ * Rock and obstacle entities are shared too. They hold nothing but their
+ * location and, for rocks, their cluster (see ClusterIndex); each run keeps
+ * its own list of the rocks still on its field and count of each cluster's.
+ *
+ * A configuration with a worldSeed of 0 or more takes its world from that
+ * seed and shares it with every run of the same world in the JVM; the run's
+ * own seed then only drives the vehicles' movements. With a negative
+ * worldSeed the world comes from the run's seed and is not shared, as
+ * before.
+ */
+final class WorldTemplate {
+	// The worlds built so far, kept while some run still uses them, and the
+	// references the collector has cleared, whose entries are then dropped.
+	private static final HashMap<String, SharedWorld> SHARED = new HashMap<String, SharedWorld>();
+	private static final ReferenceQueue<WorldTemplate> CLEARED = new ReferenceQueue<WorldTemplate>();
+
+	private final int depth;
+	private final int width;
+	private final Rock[] rocks;
+	private final int[] clusterSizes;
+	private final Obstacle[] obstacles;
+	private final Location[] vehicleStarts;
+	private final Location mothership;
+	private final int[][] signal;
+	private final FlowField flowField;
+	private final Location[] locations;
+
+	/**
+	 * Generate a world. The draws are those a simulation has always made, so a
+	 * world built from a seed is the one a run with that seed used to build
+	 * for itself.
+	 *
+	 * @param shared
+	 *            Whether several runs will use the world, possibly at once
+	 */
+	private WorldTemplate(SimulationConfig config, long worldSeed, boolean shared) {
+		depth = config.depth;
+		width = config.width;
+		RandomStream random = new RandomStream(worldSeed);
+		// Build on a field of our own, to find free cells and work out the signal
+		Field scratch = new Field(depth, width, random.split(RandomStream.FIELD));
+
+		Location[] rockLocations = ClusterGenerator.generateClusters(config.rockClusters, config.rockLocations, width,
+				depth, config.rockClusterStd, random.split(RandomStream.WORLD_GENERATION));
+		rocks = new Rock[rockLocations.length];
+		for (int i = 0; i < rockLocations.length; i++) {
+			Location location = scratch.locationAt(rockLocations[i].getRow(), rockLocations[i].getCol());
+			rocks[i] = new Rock(location);
+			scratch.place(rocks[i], location);
+		}
+		clusterSizes = ClusterIndex.label(rocks, scratch);
+
+		RandomStream population = random.split(RandomStream.POPULATION);
+		double obsProb = config.obstacleCreationProbability;
+		double vehProb = config.obstacleCreationProbability + config.vehicleCreationProbability;
+		ArrayList<Obstacle> obstacleList = new ArrayList<Obstacle>();
+		ArrayList<Location> starts = new ArrayList<Location>();
+
+		// Every empty cell gets an obstacle or a vehicle with probability vehProb.
+		// Rather than draw for each cell, draw the gap to the next selected cell
+		// from the geometric distribution, so the cost follows the number of
+		// entities placed instead of the number of cells. A selected cell that
+		// already holds a rock is left alone, which gives empty cells exactly
+		// the same chances as drawing cell by cell.
+		long cells = (long) depth * width;
+		double p = Math.min(vehProb, 1.0);
+		double logMiss = Math.log1p(-p);
+		for (long cell = nextSelectedCell(-1, p, logMiss, population); cell < cells; cell = nextSelectedCell(cell, p,
+				logMiss, population)) {
+			int row = (int) (cell / width);
+			int col = (int) (cell % width);
+			if (scratch.getObjectAt(row, col) == null) {
+				Location location = scratch.locationAt(row, col);
+				if (population.nextDouble() * p < obsProb) {
+					Obstacle o = new Obstacle(location);
+					scratch.place(o, location);
+					obstacleList.add(o);
+				} else {
+					// Keep the cell taken, so the mothership cannot land on it
+					scratch.place(new Obstacle(location), location);
+					starts.add(location);
+				}
+			}
+			// else leave the location to its rock.
+		}
+		obstacles = obstacleList.toArray(new Obstacle[0]);
+		vehicleStarts = starts.toArray(new Location[0]);
+
+		// Land the mothership at a random free location
+		RandomStream landing = random.split(RandomStream.MOTHERSHIP);
+		int x = landing.nextInt(depth - 1);
+		int y = landing.nextInt(width - 1);
+		while (scratch.getObjectAt(x, y) != null) {
+			x = landing.nextInt(depth - 1);
+			y = landing.nextInt(width - 1);
+		}
+		mothership = scratch.locationAt(x, y);
+		new Mothership(mothership).emitSignal(scratch);
+		scratch.prepareGradient();
+
+		signal = scratch.signalRows();
+		flowField = scratch.flowField();
+		// A shared world makes every Location now, so that runs on other
+		// threads only ever read them; a run's own world makes them as its
+		// field asks for them, which spares large worlds most of the cells.
+		locations = shared ? scratch.allLocations() : scratch.locations();
+	}
+
+	/**
+	 * @return The world a configuration asks for: shared with other runs if it
+	 *         has a world seed, or built for it alone from its seed.
+	 */
+	static WorldTemplate forConfig(SimulationConfig config) {
+		if (config.worldSeed < 0) {
+			return new WorldTemplate(config, config.seed, false);
+		}
+		String key = config.worldSeed + " " + config.depth + "x" + config.width + " " + config.rockClusters + " "
+				+ config.rockClusterStd + " " + config.rockLocations + " " + config.obstacleCreationProbability + " "
+				+ config.vehicleCreationProbability;
+		synchronized (SHARED) {
+			// A sweep over many world seeds would otherwise keep every key
+			for (Reference<? extends WorldTemplate> r; (r = CLEARED.poll()) != null;) {
+				SHARED.remove(((SharedWorld) r).key, r);
+			}
+			SharedWorld ref = SHARED.get(key);
+			WorldTemplate world = ref == null ? null : ref.get();
+			if (world == null) {
+				world = new WorldTemplate(config, config.worldSeed, true);
+				SHARED.put(key, new SharedWorld(key, world));
+			}
+			return world;
+		}
+	}
+
+	/**
+	 * A shared world and the key it is kept under.
+	 */
+	private static final class SharedWorld extends SoftReference<WorldTemplate> {
+		final String key;
+
+		SharedWorld(String key, WorldTemplate world) {
+			super(world, CLEARED);
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Skip ahead to the next cell selected by independent trials of probability
+	 * p, using one draw from the geometric distribution of the gap.
+	 *
+	 * @param cell
+	 *            The last selected cell, or -1 to start
+	 * @param p
+	 *            The probability that a cell is selected
+	 * @param logMiss
+	 *            log(1 - p), computed once by the caller
+	 * @param random
+	 *            The stream to draw from
+	 * @return The next selected cell, or Long.MAX_VALUE if there are none.
+	 */
+	private static long nextSelectedCell(long cell, double p, double logMiss, RandomStream random) {
+		if (p <= 0) {
+			return Long.MAX_VALUE;
+		}
+		if (p >= 1) {
+			return cell + 1;
+		}
+		// 1 - nextDouble() lies in (0, 1], so the logarithm is finite.
+		double gap = Math.floor(Math.log(1 - random.nextDouble()) / logMiss);
+		return gap >= Long.MAX_VALUE - cell - 1 ? Long.MAX_VALUE : cell + 1 + (long) gap;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The rocks at the start of a run; the array must not be changed.
+	 */
+	Rock[] getRocks() {
+		return rocks;
+	}
+
+	/**
+	 * @return The rocks each cluster starts with; the array must not be
+	 *         changed.
+	 */
+	int[] getClusterSizes() {
+		return clusterSizes;
+	}
+
+	/**
+	 * @return The obstacles; the array must not be changed.
+	 */
+	Obstacle[] getObstacles() {
+		return obstacles;
+	}
+
+	/**
+	 * @return Where each vehicle starts, in the order vehicles are numbered; the
+	 *         array must not be changed.
+	 */
+	Location[] getVehicleStarts() {
+		return vehicleStarts;
+	}
+
+	/**
+	 * @return Where the mothership lands.
+	 */
+	Location getMothership() {
+		return mothership;
+	}
+
+	/**
+	 * @return The signal, by row; no run may change it.
+	 */
+	int[][] getSignal() {
+		return signal;
+	}
+
+	FlowField getFlowField() {
+		return flowField;
+	}
+
+	/**
+	 * @return One location per cell, row by row; for a world of one run's own,
+	 *         null for cells not asked for yet.
+	 */
+	Location[] getLocations() {
+		return locations;
+	}
+}